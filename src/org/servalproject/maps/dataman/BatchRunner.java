@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * run a list of jobs within a single process, each job is a line containing
+ * the same options used on the command line, blank lines and lines starting
+ * with # are ignored
+ * 
+ * running many jobs in one process means the cost of starting the JVM and 
+ * loading the classes and time zone data is only paid once
+ */
+public class BatchRunner {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the path used to read the list of jobs from standard input
+	 */
+	public static final String STANDARD_INPUT = "-";
+	
+	/*
+	 * private class level variables
+	 */
+	private int threads;
+	
+	/**
+	 * create a new batch runner
+	 * 
+	 * @param threads the number of jobs run at the same time
+	 */
+	public BatchRunner(int threads) {
+		
+		if(threads < 1) {
+			throw new IllegalArgumentException("the threads parameter must be > 0");
+		}
+		
+		this.threads = threads;
+	}
+	
+	/**
+	 * run the jobs listed in a file and output a summary of each job
+	 * 
+	 * @param path the path to the list of jobs, or - to read the list from standard input
+	 * @return true if all of the jobs succeeded
+	 * @throws IOException if the list of jobs cannot be read
+	 */
+	public boolean run(String path) throws IOException {
+		
+		if(Utils.isEmpty(path) == true) {
+			throw new IllegalArgumentException("the path parameter is required");
+		}
+		
+		// read and check all of the jobs before any are started
+		List<String> lines = readLines(path);
+		List<Entry> entries = new ArrayList<Entry>();
+		
+		Options options = DataManCli.createOptions();
+		CommandLineParser parser = new PosixParser();
+		HashSet<String> outputPaths = new HashSet<String>();
+		
+		for(int i = 0; i < lines.size(); i++) {
+			
+			String line = lines.get(i).trim();
+			
+			if(line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			
+			Entry entry = new Entry(i + 1, line);
+			entries.add(entry);
+			
+			// an invalid job fails without stopping the others
+			try {
+				CommandLine cmd = parser.parse(options, splitArguments(line));
+				
+				if(cmd.hasOption("batch") || cmd.hasOption("server") || cmd.hasOption("watch") || cmd.hasOption("follow")) {
+					throw new IllegalArgumentException("a batch job cannot run another batch, a server, a watch or a follow");
+				}
+				
+				entry.job = DataManCli.createJob(cmd);
+				
+				// jobs can't write to the same file at the same time
+				if(outputPaths.add(entry.job.outputFile.getCanonicalPath()) == false) {
+					entry.job = null;
+					throw new IllegalArgumentException("the output file is used by an earlier job");
+				}
+				
+			} catch (org.apache.commons.cli.ParseException e) {
+				entry.error = "invalid options, " + e.getMessage();
+			} catch (IllegalArgumentException e) {
+				entry.error = e.getMessage();
+			}
+		}
+		
+		long started = System.nanoTime();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+		
+		try {
+			for(Entry entry : entries) {
+				results.add(executor.submit(entry));
+			}
+			
+			// output the results in the order of the jobs
+			int failed = 0;
+			
+			for(Future<Entry> future : results) {
+				
+				Entry result;
+				
+				try {
+					result = future.get();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted while waiting for the jobs to finish", e);
+				} catch (ExecutionException e) {
+					throw new IOException("unable to run a job", e.getCause());
+				}
+				
+				if(result.error == null) {
+					System.out.println(String.format("ok     line %d in %d ms: %s", result.line, result.nanos / 1000000, result.description));
+				} else {
+					System.out.println(String.format("FAILED line %d in %d ms: %s", result.line, result.nanos / 1000000, result.description));
+					System.out.println("       " + result.error);
+					failed++;
+				}
+			}
+			
+			System.out.println(String.format("%d jobs, %d succeeded, %d failed in %d ms using %d threads", 
+					results.size(), results.size() - failed, failed, (System.nanoTime() - started) / 1000000, threads));
+			
+			return failed == 0;
+			
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// read all of the lines in the list of jobs
+	private List<String> readLines(String path) throws IOException {
+		
+		InputStream input;
+		
+		if(path.equals(STANDARD_INPUT)) {
+			input = System.in;
+		} else {
+			input = new FileInputStream(path);
+		}
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		List<String> lines = new ArrayList<String>();
+		
+		try {
+			String line;
+			
+			while((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			if(input != System.in) {
+				reader.close();
+			}
+		}
+		
+		return lines;
+	}
+	
+	/*
+	 * split a line into arguments at spaces, keeping quoted text
+	 * together so that paths and styles may contain spaces
+	 */
+	static String[] splitArguments(String line) {
+		
+		List<String> arguments = new ArrayList<String>();
+		StringBuilder argument = new StringBuilder();
+		
+		boolean inArgument = false;
+		char quote = 0;
+		
+		for(int i = 0; i < line.length(); i++) {
+			
+			char c = line.charAt(i);
+			
+			if(quote != 0) {
+				if(c == quote) {
+					quote = 0;
+				} else {
+					argument.append(c);
+				}
+			} else if(c == '"' || c == '\'') {
+				quote = c;
+				inArgument = true;
+			} else if(Character.isWhitespace(c)) {
+				if(inArgument) {
+					arguments.add(argument.toString());
+					argument.setLength(0);
+					inArgument = false;
+				}
+			} else {
+				argument.append(c);
+				inArgument = true;
+			}
+		}
+		
+		if(quote != 0) {
+			throw new IllegalArgumentException("the job has an unmatched quote");
+		}
+		
+		if(inArgument) {
+			arguments.add(argument.toString());
+		}
+		
+		return arguments.toArray(new String[arguments.size()]);
+	}
+	
+	/*
+	 * a job in the list and its outcome
+	 */
+	private static class Entry implements Callable<Entry> {
+		
+		private int            line;
+		private String         description;
+		private DataManCli.Job job;
+		private long           nanos = 0;
+		private String         error;
+		
+		public Entry(int line, String description) {
+			this.line = line;
+			this.description = description;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Entry call() {
+			
+			// jobs that failed their checks aren't run
+			if(job == null) {
+				return this;
+			}
+			
+			long start = System.nanoTime();
+			
+			try {
+				job.run();
+			} catch (Exception e) {
+				error = e.toString();
+			}
+			
+			nanos = System.nanoTime() - start;
+			
+			return this;
+		}
+	}
+}
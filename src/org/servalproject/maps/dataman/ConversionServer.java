@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.servalproject.maps.dataman.readers.BinaryLocationReader;
+import org.servalproject.maps.dataman.tasks.LocationsToKml;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.TaskTypes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * a long running server that converts binary location files posted to it,
+ * so that the cost of starting the JVM is only paid once
+ * 
+ * the binary location data is posted to /convert with the task and options
+ * in the query string, for example /convert?task=binloctokml2&precision=6&split
+ * the converted data is streamed back as it is produced, if the conversion
+ * fails after output has been sent the connection is closed before the 
+ * response is complete
+ * 
+ * the server only listens on the loopback address
+ */
+public class ConversionServer {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the path that conversions are posted to
+	 */
+	public static final String CONVERT_PATH = "/convert";
+	
+	/**
+	 * the content type of KML output
+	 */
+	public static final String KML_CONTENT_TYPE = "application/vnd.google-earth.kml+xml; charset=utf-8";
+	
+	/**
+	 * the content type of JSON output
+	 */
+	public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+	
+	/**
+	 * the content type of GeoJSON output
+	 */
+	public static final String GEOJSON_CONTENT_TYPE = "application/geo+json; charset=utf-8";
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int QUEUE_SIZE = 16;
+	
+	/*
+	 * private class level variables
+	 */
+	private int                port;
+	private int                threads;
+	private boolean            verbose;
+	
+	private HttpServer         server;
+	private ThreadPoolExecutor executor;
+	
+	/**
+	 * create a new server
+	 * 
+	 * @param port the port to listen on
+	 * @param threads the number of conversions undertaken at the same time
+	 * @param verbose indicates if verbose output is required
+	 */
+	public ConversionServer(int port, int threads, boolean verbose) {
+		
+		if(port < 0 || port > 65535) {
+			throw new IllegalArgumentException("the port must be between 0 and 65535");
+		}
+		
+		if(threads < 1) {
+			throw new IllegalArgumentException("the threads parameter must be > 0");
+		}
+		
+		this.port = port;
+		this.threads = threads;
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * start listening for requests
+	 * 
+	 * @throws IOException if the server cannot listen on the port
+	 */
+	public void start() throws IOException {
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(CONVERT_PATH, new ConvertHandler());
+		
+		/*
+		 * a fixed number of threads undertake the conversions, when they are all 
+		 * busy and the queue is full new connections wait to be accepted
+		 */
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new RejectedExecutionHandler() {
+			
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+				
+				if(executor.isShutdown()) {
+					throw new RejectedExecutionException("the server has stopped");
+				}
+				
+				try {
+					executor.getQueue().put(runnable);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("interrupted while waiting for a thread", e);
+				}
+			}
+		});
+		
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	/**
+	 * get the port the server is listening on
+	 * 
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return server == null ? port : server.getAddress().getPort();
+	}
+	
+	/**
+	 * stop the server, waiting a short time for conversions to finish
+	 */
+	public void stop() {
+		
+		if(server != null) {
+			server.stop(1);
+			server = null;
+		}
+		
+		if(executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+	
+	/*
+	 * undertake a conversion
+	 */
+	private class ConvertHandler implements HttpHandler {
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+		 */
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			
+			long start = System.nanoTime();
+			boolean isComplete = false;
+			
+			try {
+				if(exchange.getRequestMethod().equals("POST") == false) {
+					exchange.getResponseHeaders().set("Allow", "POST");
+					sendError(exchange, 405, "the binary location data must be posted");
+					isComplete = true;
+					return;
+				}
+				
+				// check the options before any output is sent
+				HashMap<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+				
+				String taskType = parameters.get("task");
+				LocationsToKml task;
+				
+				try {
+					task = createTask(taskType, parameters);
+				} catch (IllegalArgumentException e) {
+					sendError(exchange, 400, e.getMessage());
+					isComplete = true;
+					return;
+				}
+				
+				exchange.getResponseHeaders().set("Content-Type", getContentType(taskType));
+				
+				ResponseStream response = new ResponseStream(exchange);
+				
+				long count;
+				
+				try {
+					count = task.convert(new BinaryLocationReader(exchange.getRequestBody()), new OutputStreamWriter(response, "UTF-8"), taskType);
+				} catch (TaskException e) {
+					
+					// an error can only be returned if no output has been sent
+					if(response.isStarted() == false) {
+						sendError(exchange, 400, "unable to convert the data, " + e.getMessage());
+						isComplete = true;
+						return;
+					}
+					
+					throw new IOException("conversion failed after output was sent", e);
+				}
+				
+				response.finish();
+				isComplete = true;
+				
+				if(verbose) {
+					System.out.println(String.format("converted %d locations with %s in %d ms", count, taskType, (System.nanoTime() - start) / 1000000));
+				}
+				
+			} catch (IOException e) {
+				if(verbose) {
+					System.err.println("request failed: " + e.toString());
+				}
+				
+				throw e;
+			} finally {
+				
+				// an incomplete response is left unfinished so the server drops the connection
+				if(isComplete) {
+					exchange.close();
+				}
+			}
+		}
+	}
+	
+	// get the content type of the output of a task
+	private static String getContentType(String taskType) {
+		
+		if("binloctogeojson".equals(taskType)) {
+			return GEOJSON_CONTENT_TYPE;
+		} else if(LocationsToKml.isJsonTask(taskType)) {
+			return JSON_CONTENT_TYPE;
+		}
+		
+		return KML_CONTENT_TYPE;
+	}
+	
+	// create a task from the request parameters, throwing an IllegalArgumentException if they aren't valid
+	private LocationsToKml createTask(String taskType, HashMap<String, String> parameters) {
+		
+		if(Utils.isEmpty(taskType)) {
+			throw new IllegalArgumentException("the task parameter is required");
+		}
+		
+		if(TaskTypes.getTaskTypes().containsKey(taskType) == false || (taskType.startsWith("binloctokml") == false && LocationsToKml.isJsonTask(taskType) == false)) {
+			throw new IllegalArgumentException("the task type '" + taskType + "' is not supported");
+		}
+		
+		LocationsToKml task = new LocationsToKml(false, null);
+		
+		try {
+			if(parameters.containsKey("precision")) {
+				task.setPrecision(Integer.parseInt(parameters.get("precision")));
+			}
+			
+			if(parameters.containsKey("simplify")) {
+				task.setSimplifyTolerance(Double.parseDouble(parameters.get("simplify")));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("the precision and simplify parameters must be numbers");
+		}
+		
+		task.setSplitByDevice(parameters.containsKey("split"));
+		task.setSortByTime(parameters.containsKey("sort"));
+		task.setRemoveDuplicates(parameters.containsKey("dedup"));
+		
+		return task;
+	}
+	
+	// split a query string into a map of parameters, a parameter without a value maps to an empty string
+	private static HashMap<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		
+		HashMap<String, String> parameters = new HashMap<String, String>();
+		
+		if(query == null) {
+			return parameters;
+		}
+		
+		for(String pair : query.split("&")) {
+			
+			if(pair.length() == 0) {
+				continue;
+			}
+			
+			int equals = pair.indexOf('=');
+			
+			if(equals == -1) {
+				parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		
+		return parameters;
+	}
+	
+	// send an error response with a plain text message
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		
+		byte[] body = (message + "\n").getBytes("UTF-8");
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		
+		OutputStream output = exchange.getResponseBody();
+		output.write(body);
+		output.close();
+	}
+	
+	/*
+	 * the body of a response, the first part of the body is held in memory so that
+	 * an error can still be returned, and small responses can be sent with a length
+	 */
+	private static class ResponseStream extends OutputStream {
+		
+		private static final int HOLD_SIZE = 65536;
+		
+		private HttpExchange          exchange;
+		private ByteArrayOutputStream held = new ByteArrayOutputStream();
+		private OutputStream          output;
+		
+		public ResponseStream(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+		
+		public boolean isStarted() {
+			return output != null;
+		}
+		
+		// send the headers and the held output for a response of unknown length
+		private void start() throws IOException {
+			exchange.sendResponseHeaders(200, 0);
+			output = exchange.getResponseBody();
+			held.writeTo(output);
+			held = null;
+		}
+		
+		// complete the response
+		public void finish() throws IOException {
+			
+			if(output == null) {
+				exchange.sendResponseHeaders(200, held.size());
+				output = exchange.getResponseBody();
+				held.writeTo(output);
+				held = null;
+			}
+			
+			output.close();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			
+			if(output == null) {
+				if(held.size() + len <= HOLD_SIZE) {
+					held.write(b, off, len);
+					return;
+				}
+				
+				start();
+			}
+			
+			output.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(output != null) {
+				output.flush();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.OutputStream#close()
+		 * 
+		 * the response is only completed by finish()
+		 */
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman;
+
+/**
+ * writes coordinates as decimal text directly into a character buffer
+ * without creating intermediate strings
+ * 
+ * coordinates are written either with the shortest number of digits that 
+ * uniquely identify the value, the same as Double.toString, or rounded to 
+ * a fixed number of decimal places with trailing zeros removed
+ * 
+ * a formatter reuses internal buffers so it must not be shared between threads
+ */
+public class CoordinateFormatter {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * indicates that coordinates are written with full precision
+	 */
+	public static final int FULL_PRECISION = -1;
+	
+	/**
+	 * the maximum number of decimal places that can be used
+	 */
+	public static final int MAX_PRECISION = 12;
+	
+	/**
+	 * the maximum number of characters in a formatted coordinate
+	 */
+	public static final int MAX_LENGTH = 32;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final double MAX_SCALED_VALUE = 9.0E15;
+	
+	/*
+	 * private class level variables
+	 */
+	private int           precision;
+	private double        scale;
+	private long          longScale;
+	private StringBuilder fullPrecision = new StringBuilder(MAX_LENGTH);
+	
+	/**
+	 * create a new formatter that writes coordinates with full precision
+	 */
+	public CoordinateFormatter() {
+		this(FULL_PRECISION);
+	}
+	
+	/**
+	 * create a new formatter
+	 * 
+	 * @param precision the number of decimal places, or FULL_PRECISION
+	 */
+	public CoordinateFormatter(int precision) {
+		
+		if(precision != FULL_PRECISION && (precision < 0 || precision > MAX_PRECISION)) {
+			throw new IllegalArgumentException("the precision parameter must be between 0 and " + MAX_PRECISION);
+		}
+		
+		this.precision = precision;
+		
+		longScale = 1;
+		
+		for(int i = 0; i < precision; i++) {
+			longScale *= 10;
+		}
+		
+		scale = longScale;
+	}
+	
+	/**
+	 * get the number of decimal places used by this formatter
+	 * 
+	 * @return the number of decimal places, or FULL_PRECISION
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+	
+	/**
+	 * write a coordinate into the buffer
+	 * 
+	 * @param value the coordinate to write
+	 * @param buffer the buffer to write the characters into
+	 * @param offset the offset in the buffer of the first character
+	 * @return the number of characters written
+	 */
+	public int format(double value, char[] buffer, int offset) {
+		
+		if(buffer.length - offset < MAX_LENGTH) {
+			throw new IllegalArgumentException("the buffer must have room for at least " + MAX_LENGTH + " characters");
+		}
+		
+		double scaled = value * scale;
+		
+		// values that can't be represented as a scaled long are written in full
+		if(precision == FULL_PRECISION || Double.isNaN(scaled) || Math.abs(scaled) >= MAX_SCALED_VALUE) {
+			fullPrecision.setLength(0);
+			fullPrecision.append(value);
+			fullPrecision.getChars(0, fullPrecision.length(), buffer, offset);
+			return fullPrecision.length();
+		}
+		
+		long rounded = Math.round(scaled);
+		int position = offset;
+		
+		if(rounded < 0) {
+			buffer[position++] = '-';
+			rounded = -rounded;
+		}
+		
+		long integer = rounded / longScale;
+		long fraction = rounded % longScale;
+		
+		// write the integer part
+		position = writeDigits(buffer, position, integer, countDigits(integer));
+		
+		// write the fractional part without any trailing zeros
+		if(fraction != 0) {
+			
+			int digits = precision;
+			
+			while(fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			
+			buffer[position++] = '.';
+			position = writeDigits(buffer, position, fraction, digits);
+		}
+		
+		return position - offset;
+	}
+	
+	/**
+	 * round a coordinate to the precision used by this formatter
+	 * 
+	 * @param value the coordinate to round
+	 * @return the coordinate rounded to the precision of this formatter
+	 */
+	public double round(double value) {
+		
+		double scaled = value * scale;
+		
+		if(precision == FULL_PRECISION || Double.isNaN(scaled) || Math.abs(scaled) >= MAX_SCALED_VALUE) {
+			return value;
+		}
+		
+		return Math.round(scaled) / scale;
+	}
+	
+	// write a number padded with leading zeros
+	private static int writeDigits(char[] buffer, int position, long value, int digits) {
+		
+		for(int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		
+		return position + digits;
+	}
+	
+	private static int countDigits(long value) {
+		
+		int digits = 1;
+		
+		while(value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		
+		return digits;
+	}
+}
@@ -22,7 +22,7 @@ package org.servalproject.maps.dataman;
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,10 +31,16 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
+import org.servalproject.maps.dataman.tasks.LocationArchiver;
+import org.servalproject.maps.dataman.tasks.LocationWatcher;
 import org.servalproject.maps.dataman.tasks.LocationsToKml;
+import org.servalproject.maps.dataman.tasks.PointsOfInterestToKml;
 import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
 import org.servalproject.maps.dataman.types.KmlStyle;
+import org.servalproject.maps.dataman.types.ReaderTypes;
 import org.servalproject.maps.dataman.types.TaskTypes;
+import org.servalproject.maps.protobuf.BinaryFileContract;
 
 /**
  * main driving class for the command line interface entry 
@@ -81,32 +87,202 @@ public class DataManCli {
 			printCliHelp("Error in parsing arguments:\n" + e.getMessage());
 		}
 		
+		// number of jobs or requests handled at the same time
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		if(cmd.hasOption("threads")) {
+			try {
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			} catch (NumberFormatException e) {
+				printCliHelp("Error: the number of threads must be a number");
+			}
+			
+			if(threads < 1) {
+				printCliHelp("Error: the number of threads must be at least 1");
+			}
+		}
+		
+		// run as a server if required
+		if(cmd.hasOption("server")) {
+			
+			int port = -1;
+			
+			try {
+				port = Integer.parseInt(cmd.getOptionValue("server"));
+			} catch (NumberFormatException e) {
+				printCliHelp("Error: the server port must be a number");
+			}
+			
+			if(port < 1 || port > 65535) {
+				printCliHelp("Error: the server port must be between 1 and 65535");
+			}
+			
+			final ConversionServer server = new ConversionServer(port, threads, cmd.hasOption("verbose"));
+			
+			try {
+				server.start();
+			} catch (IOException e) {
+				System.err.println("Error: unable to start the server\n" + e.toString());
+				System.exit(-1);
+			}
+			
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					server.stop();
+				}
+			});
+			
+			System.out.println("listening on http://localhost:" + server.getPort() + ConversionServer.CONVERT_PATH);
+			return;
+		}
+		
+		// run a list of jobs if required
+		if(cmd.hasOption("batch")) {
+			
+			BatchRunner runner = new BatchRunner(threads);
+			
+			boolean success = false;
+			
+			try {
+				success = runner.run(cmd.getOptionValue("batch"));
+			} catch (IOException e) {
+				System.err.println("Error: unable to read the list of jobs\n" + e.toString());
+			}
+			
+			if(success == false) {
+				System.exit(-1);
+			}
+			
+			return;
+		}
+		
+		// watch a directory or follow a file if required
+		if(cmd.hasOption("watch") || cmd.hasOption("follow")) {
+			
+			LocationWatcher watcher = null;
+			long interval = 0;
+			
+			try {
+				watcher = createWatcher(cmd);
+				
+				if(cmd.hasOption("follow")) {
+					interval = getFollowInterval(cmd);
+				}
+			} catch (IllegalArgumentException e) {
+				printCliHelp("Error: " + e.getMessage());
+			} catch (TaskException e) {
+				System.err.println("Error: unable to start watching\n" + e.toString());
+				System.exit(-1);
+			}
+			
+			if(cmd.hasOption("verbose")) {
+				System.out.println((interval > 0 ? "following " : "watching ") + cmd.getOptionValue("input"));
+			}
+			
+			try {
+				if(interval > 0) {
+					watcher.follow(new File(cmd.getOptionValue("input")), interval);
+				} else {
+					watcher.watch();
+				}
+			} catch (TaskException e) {
+				System.err.println("Error: Task execution failed\n" + e.toString());
+				System.exit(-1);
+			}
+			
+			return;
+		}
+		
 		/*
 		 * get and test the command line arguments
 		 */
+		Job job = null;
+		
+		try {
+			job = createJob(cmd);
+		} catch (IllegalArgumentException e) {
+			printCliHelp("Error: " + e.getMessage());
+		}
+		
+		// output info if required
+		if(job.verbose) {
+			System.out.println(APP_NAME);
+			System.out.println("Version: " + APP_VERSION);
+			System.out.println("More info: " + MORE_INFO + "\n");
+			System.out.println("License info: " + LICENSE_INFO + "\n");
+			try {
+				if(job.inputFiles.size() == 1) {
+					System.out.println("Input file: " + job.inputFiles.get(0).getCanonicalPath());
+				} else {
+					System.out.println("Input files: " + job.inputFiles.size() + " files matching " + job.inputPath);
+				}
+				System.out.println("Output file: " + job.outputFile.getCanonicalPath());
+			} catch (IOException e) {
+				
+			}
+			
+			System.out.println("Undertaking the task to: " + TaskTypes.getTaskTypes().get(job.taskType));
+		}
+		
+		// undertake the specific task
+		try {
+			job.run();
+		} catch (TaskException e) {
+			System.err.println("Error: Task execution failed\n" + e.toString());
+		}
+	}
+	
+	/*
+	 * get and test the command line arguments of a job,
+	 * throwing an IllegalArgumentException if they are not valid
+	 */
+	static Job createJob(CommandLine cmd) {
 		
 		// input path
 		String inputPath = cmd.getOptionValue("input");
 		
 		if(Utils.isEmpty(inputPath)) {
-			printCliHelp("Error: the path to the input file is required");
+			throw new IllegalArgumentException("the path to the input file is required");
 		}
 		
-		if(Utils.isFileAccessible(inputPath) == false) {
-			printCliHelp("Error: the input file is not accessible");
+		// task type
+		String taskType = checkTaskType(cmd);
+		
+		// the input may be a file, a directory or a glob pattern
+		String extension = BinaryFileContract.LOCATION_EXT;
+		
+		if(PointsOfInterestToKml.isPoiTask(taskType)) {
+			extension = BinaryFileContract.POI_EXT;
+		} else if(LocationArchiver.isArchiveTask(taskType)) {
+			extension = LocationArchiver.getInputExtension(taskType);
 		}
 		
-		File inputFile = new File(inputPath);
+		List<File> inputFiles = null;
+		
+		try {
+			inputFiles = Utils.findFiles(inputPath, extension);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("the input directory is not accessible");
+		}
+		
+		if(inputFiles.isEmpty()) {
+			if(new File(inputPath).isDirectory()) {
+				throw new IllegalArgumentException("no '" + extension + "' files were found in the input directory");
+			} else {
+				throw new IllegalArgumentException("the input file is not accessible");
+			}
+		}
 		
 		// output path
 		String outputPath = cmd.getOptionValue("output");
 		
 		if(Utils.isEmpty(outputPath)) {
-			printCliHelp("Error: the path to the output file is required");
+			throw new IllegalArgumentException("the path to the output file is required");
 		}
 		
 		if(Utils.isFileAccessible(outputPath) == true) {
-			printCliHelp("Error: the output file already exists");
+			throw new IllegalArgumentException("the output file already exists");
 		}
 		
 		// create output directory if needed 
@@ -115,71 +291,349 @@ public class DataManCli {
 			if (last >= 0) {
 				String dir = outputPath.substring(0, last);
 				boolean success = (new File(dir)).mkdirs();
-				if (!success) {
+				if (!success && (new File(dir)).isDirectory() == false) {
 					System.err.println("Unable to create directory " + dir);
 				}
 			}
 		}
 		File outputFile = new File(outputPath);
 		
-		// task type
+		// style information
+		KmlStyle kmlStyle = parseStyle(cmd);
+		
+		// verbose output
+		boolean verbose = cmd.hasOption("verbose");
+		
+		Job job = new Job();
+		job.inputPath = inputPath;
+		job.inputFiles = inputFiles;
+		job.outputFile = outputFile;
+		job.taskType = taskType;
+		job.verbose = verbose;
+		
+		// prepare the specific task
+		if(taskType.startsWith("binloctokml") == true || LocationsToKml.isJsonTask(taskType)) {
+			
+			LocationsToKml task = new LocationsToKml(inputFiles, outputFile, LocationsToKml.BINARY_FILE_TYPE, verbose, kmlStyle);
+			applyOptions(cmd, task);
+			task.setBoundingBox(parseBoundingBox(cmd));
+			
+			long[] timeRange = parseTimeRange(cmd);
+			task.setTimeRange(timeRange[0], timeRange[1]);
+			
+			job.task = task;
+			
+		} else if(PointsOfInterestToKml.isPoiTask(taskType)) {
+			
+			checkLocationOptions(cmd, taskType);
+			
+			PointsOfInterestToKml task = new PointsOfInterestToKml(inputFiles, outputFile, verbose);
+			task.setPrecision(parsePrecision(cmd));
+			task.setBoundingBox(parseBoundingBox(cmd));
+			
+			if(cmd.hasOption("from") || cmd.hasOption("to")) {
+				throw new IllegalArgumentException("a time range can only be used with binary location files");
+			}
+			
+			// group the points of interest by category
+			if(cmd.hasOption("category")) {
+				
+				String categoryOutput = cmd.getOptionValue("category");
+				
+				if("folders".equals(categoryOutput)) {
+					
+					if(taskType.equals("binpoitokml") == false) {
+						throw new IllegalArgumentException("category folders can only be written to KML");
+					}
+					
+					task.setCategoryOutput(PointsOfInterestToKml.CATEGORY_FOLDERS);
+					
+				} else if("files".equals(categoryOutput)) {
+					task.setCategoryOutput(PointsOfInterestToKml.CATEGORY_FILES);
+				} else {
+					throw new IllegalArgumentException("the category output must be 'folders' or 'files'");
+				}
+			}
+			
+			job.poiTask = task;
+			
+		} else if(LocationArchiver.isArchiveTask(taskType)) {
+			
+			checkLocationOptions(cmd, taskType);
+			
+			LocationArchiver task = new LocationArchiver(inputFiles, outputFile, verbose);
+			task.setBoundingBox(parseBoundingBox(cmd));
+			
+			long[] timeRange = parseTimeRange(cmd);
+			task.setTimeRange(timeRange[0], timeRange[1]);
+			
+			job.archiver = task;
+		}
+		
+		return job;
+	}
+	
+	/*
+	 * make sure that none of the options that only apply to converting locations 
+	 * to KML or JSON are used with a task that would otherwise ignore them
+	 */
+	static void checkLocationOptions(CommandLine cmd, String taskType) {
+		
+		String[] options = {"reader", "simplify", "split", "sort", "sortmemory", "dedup", "merge"};
+		
+		for(String option : options) {
+			if(cmd.hasOption(option)) {
+				throw new IllegalArgumentException("the -" + option + " option cannot be used with the '" + taskType + "' task");
+			}
+		}
+	}
+	
+	/*
+	 * get and test the command line arguments for watching a directory or
+	 * following a file, throwing an IllegalArgumentException if they are not valid
+	 */
+	static LocationWatcher createWatcher(CommandLine cmd) throws TaskException {
+		
+		if(cmd.hasOption("watch") && cmd.hasOption("follow")) {
+			throw new IllegalArgumentException("a directory cannot be watched and a file followed at the same time");
+		}
+		
+		if(cmd.hasOption("bbox") || cmd.hasOption("from") || cmd.hasOption("to")) {
+			throw new IllegalArgumentException("a bounding box or time range cannot be used when watching or following");
+		}
+		
+		// input directory, or the directory containing the followed file
+		String inputPath = cmd.getOptionValue("input");
+		File inputDirectory;
+		
+		if(cmd.hasOption("follow")) {
+			
+			if(Utils.isEmpty(inputPath) || new File(inputPath).isFile() == false) {
+				throw new IllegalArgumentException("the input path must be a file when following");
+			}
+			
+			inputDirectory = new File(inputPath).getAbsoluteFile().getParentFile();
+			
+		} else {
+			
+			if(Utils.isEmpty(inputPath) || new File(inputPath).isDirectory() == false) {
+				throw new IllegalArgumentException("the input path must be a directory when watching");
+			}
+			
+			inputDirectory = new File(inputPath);
+		}
+		
+		// output directory
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(Utils.isEmpty(outputPath)) {
+			throw new IllegalArgumentException("the path to the output directory is required");
+		}
+		
+		if(new File(outputPath).isFile()) {
+			throw new IllegalArgumentException("the output path must be a directory when watching");
+		}
+		
+		String taskType = checkTaskType(cmd);
+		
+		if(taskType.startsWith("binloctokml") == false) {
+			throw new IllegalArgumentException("the task type cannot be used when watching");
+		}
+		
+		boolean verbose = cmd.hasOption("verbose");
+		
+		LocationsToKml task = new LocationsToKml(false, parseStyle(cmd));
+		applyOptions(cmd, task);
+		
+		return new LocationWatcher(inputDirectory, new File(outputPath), task, taskType, verbose);
+	}
+	
+	/*
+	 * get and test the number of seconds between checks of a followed file,
+	 * returning it in milliseconds
+	 */
+	static long getFollowInterval(CommandLine cmd) {
+		
+		double seconds;
+		
+		try {
+			seconds = Double.parseDouble(cmd.getOptionValue("follow"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("the follow interval must be a number");
+		}
+		
+		if(seconds < 0.1 || Double.isInfinite(seconds)) {
+			throw new IllegalArgumentException("the follow interval must be at least 0.1 seconds");
+		}
+		
+		return Math.round(seconds * 1000);
+	}
+	
+	/*
+	 * get and test the task type
+	 */
+	static String checkTaskType(CommandLine cmd) {
+		
 		String taskType = cmd.getOptionValue("task");
 		
 		if(Utils.isEmpty(taskType)) {
-			printCliHelp("Error: the task type is required");
+			throw new IllegalArgumentException("the task type is required");
 		}
 		
-		HashMap<String, String> taskTypes = TaskTypes.getTaskTypes();
-		
-		if(taskTypes.containsKey(taskType) == false) {
-			printCliHelp("Error: the task type was not recognised.\nKnown task types are:" + TaskTypes.getTaskList());
+		if(TaskTypes.getTaskTypes().containsKey(taskType) == false) {
+			throw new IllegalArgumentException("the task type was not recognised.\nKnown task types are:" + TaskTypes.getTaskList());
 		}
 		
-		// style information
+		return taskType;
+	}
+	
+	/*
+	 * parse the style definition if there is one
+	 */
+	static KmlStyle parseStyle(CommandLine cmd) {
+		
 		String style = cmd.getOptionValue("style");
-		KmlStyle kmlStyle = null;
 		
 		// expand on the list of styles
 		if(style != null) {
 			try {
-				kmlStyle = new KmlStyle(style);
+				return new KmlStyle(style);
 			} catch (ParseException e) {
-				System.err.println("unable to parse the style definition\n" + e.toString());
-				System.exit(-1);
+				throw new IllegalArgumentException("unable to parse the style definition\n" + e.toString());
 			}
 		}
 		
+		return null;
+	}
+	
+	/*
+	 * get and test the options that control a conversion and apply them to the task
+	 */
+	static void applyOptions(CommandLine cmd, LocationsToKml task) {
 		
-		// verbose output
-		boolean verbose = cmd.hasOption("verbose");
+		// reader type
+		String readerType = cmd.getOptionValue("reader", ReaderTypes.DEFAULT);
 		
-		// output info if required
-		if(verbose) {
-			System.out.println(APP_NAME);
-			System.out.println("Version: " + APP_VERSION);
-			System.out.println("More info: " + MORE_INFO + "\n");
-			System.out.println("License info: " + LICENSE_INFO + "\n");
+		if(ReaderTypes.getReaderTypes().containsKey(readerType) == false) {
+			throw new IllegalArgumentException("the reader type was not recognised.\nKnown reader types are:" + ReaderTypes.getReaderList());
+		}
+		
+		// coordinate precision
+		int precision = parsePrecision(cmd);
+		
+		// trace simplification
+		double simplifyTolerance = 0;
+		
+		if(cmd.hasOption("simplify")) {
 			try {
-				System.out.println("Input file: " + inputFile.getCanonicalPath());
-				System.out.println("Output file: " + outputFile.getCanonicalPath());
-			} catch (IOException e) {
-				
+				simplifyTolerance = Double.parseDouble(cmd.getOptionValue("simplify"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("the simplification tolerance must be a number");
 			}
 			
-			System.out.println("Undertaking the task to: " + taskTypes.get(taskType));
+			if(simplifyTolerance <= 0 || Double.isNaN(simplifyTolerance)) {
+				throw new IllegalArgumentException("the simplification tolerance must be greater than 0");
+			}
 		}
 		
-		// undertake the specific task
-		if(taskType.startsWith("binloctokml") == true) {
-			
-			LocationsToKml task = new LocationsToKml(inputFile, outputFile, LocationsToKml.BINARY_FILE_TYPE, verbose, kmlStyle);
+		// split traces by device
+		boolean splitByDevice = cmd.hasOption("split");
+		
+		// sort locations by time
+		boolean sortByTime = cmd.hasOption("sort");
+		
+		int sortMemory = 0;
+		
+		if(cmd.hasOption("sortmemory")) {
+			try {
+				sortMemory = Integer.parseInt(cmd.getOptionValue("sortmemory"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("the sort memory must be a number");
+			}
 			
+			if(sortMemory < 1) {
+				throw new IllegalArgumentException("the sort memory must be at least 1 megabyte");
+			}
+		}
+		
+		// remove duplicate locations
+		boolean removeDuplicates = cmd.hasOption("dedup");
+		
+		// merge input files by time
+		boolean mergeByTime = cmd.hasOption("merge");
+		
+		task.setReaderType(readerType);
+		task.setPrecision(precision);
+		task.setSimplifyTolerance(simplifyTolerance);
+		task.setSplitByDevice(splitByDevice);
+		task.setSortByTime(sortByTime);
+		task.setRemoveDuplicates(removeDuplicates);
+		task.setMergeByTime(mergeByTime);
+		
+		if(sortMemory > 0) {
+			task.setSortMemory(sortMemory);
+		}
+	}
+	
+	/*
+	 * get and test the number of decimal places used for coordinates
+	 */
+	static int parsePrecision(CommandLine cmd) {
+		
+		int precision = CoordinateFormatter.FULL_PRECISION;
+		
+		if(cmd.hasOption("precision")) {
 			try {
-				task.undertakeTask(taskType);
-			} catch (TaskException e) {
-				System.err.println("Error: Task execution failed\n" + e.toString());
+				precision = Integer.parseInt(cmd.getOptionValue("precision"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("the precision must be a number");
+			}
+			
+			if(precision < 0 || precision > CoordinateFormatter.MAX_PRECISION) {
+				throw new IllegalArgumentException("the precision must be between 0 and " + CoordinateFormatter.MAX_PRECISION);
+			}
+		}
+		
+		return precision;
+	}
+	
+	/*
+	 * get and test the bounding box that limits the data converted, returning null if there isn't one
+	 */
+	static BoundingBox parseBoundingBox(CommandLine cmd) {
+		
+		if(cmd.hasOption("bbox") == false) {
+			return null;
+		}
+		
+		return BoundingBox.parse(cmd.getOptionValue("bbox"));
+	}
+	
+	/*
+	 * get and test the range of time that limits the locations converted, returning 
+	 * the start and the end of the range, which are unlimited if they aren't set
+	 */
+	static long[] parseTimeRange(CommandLine cmd) {
+		
+		long[] range = new long[] {Long.MIN_VALUE, Long.MAX_VALUE};
+		
+		try {
+			if(cmd.hasOption("from")) {
+				range[0] = TimeFormatter.parse(cmd.getOptionValue("from"));
 			}
+			
+			if(cmd.hasOption("to")) {
+				range[1] = TimeFormatter.parse(cmd.getOptionValue("to"));
+			}
+		} catch (ParseException e) {
+			throw new IllegalArgumentException(e.getMessage() + ", the time must be in a form such as 2012-06-18T15:43:20+09:30");
+		}
+		
+		if(range[0] >= range[1]) {
+			throw new IllegalArgumentException("the start of the time range must be before the end");
 		}
+		
+		return range;
 	}
 	
 	/*
@@ -195,29 +649,29 @@ public class DataManCli {
 	/*
 	 * create the command line options used by the app
 	 */
-	private static Options createOptions() {
+	static Options createOptions() {
 		
 		Options options = new Options();
 		
 		// path to the input file
 		OptionBuilder.withArgName("path");
 		OptionBuilder.hasArg(true);
-		OptionBuilder.withDescription("path to the input file");
-		OptionBuilder.isRequired(true);
+		OptionBuilder.withDescription("path to the input file, a directory of input files or a quoted glob pattern");
+		OptionBuilder.isRequired(false);
 		options.addOption(OptionBuilder.create("input"));
 
 		// path to the output file
 		OptionBuilder.withArgName("path");
 		OptionBuilder.hasArg(true);
 		OptionBuilder.withDescription("path to the output file");
-		OptionBuilder.isRequired(true);
+		OptionBuilder.isRequired(false);
 		options.addOption(OptionBuilder.create("output"));
 		
 		// task to undertake
 		OptionBuilder.withArgName("text");
 		OptionBuilder.hasArg(true);
 		OptionBuilder.withDescription("manipulation task to undertake");
-		OptionBuilder.isRequired(true);
+		OptionBuilder.isRequired(false);
 		options.addOption(OptionBuilder.create("task"));
 		
 		// style information
@@ -227,9 +681,135 @@ public class DataManCli {
 		OptionBuilder.isRequired(false);
 		options.addOption(OptionBuilder.create("style"));
 		
+		// reader type
+		OptionBuilder.withArgName("text");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("type of reader used for binary input files");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("reader"));
+		
+		// coordinate precision
+		OptionBuilder.withArgName("places");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("number of decimal places used for coordinates");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("precision"));
+		
+		// trace simplification
+		OptionBuilder.withArgName("metres");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("simplify traces, removing locations within this distance of the simplified trace");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("simplify"));
+		
+		// split traces by device or not
+		options.addOption(new Option("split", "write a separate trace for each device"));
+		
+		// sort locations by time or not
+		options.addOption(new Option("sort", "sort locations by device and time before they are written"));
+		
+		// memory used for sorting
+		OptionBuilder.withArgName("megabytes");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("memory used to sort locations before temporary files are used");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("sortmemory"));
+		
+		// remove duplicates or not
+		options.addOption(new Option("dedup", "remove duplicate locations"));
+		
+		// merge input files or not
+		options.addOption(new Option("merge", "merge the locations from multiple input files by time"));
+		
+		// bounding box
+		OptionBuilder.withArgName("west,south,east,north");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("only convert the data inside this bounding box, using a spatial index stored next to each input file");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("bbox"));
+		
+		// range of time
+		OptionBuilder.withArgName("time");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("only convert the locations at or after this time, using a time index stored next to each input file");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("from"));
+		
+		OptionBuilder.withArgName("time");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("only convert the locations before this time");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("to"));
+		
+		// list of jobs to run
+		OptionBuilder.withArgName("path");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("run the jobs listed in a file, one set of options per line, or - to read the jobs from standard input");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("batch"));
+		
+		// group points of interest by category
+		OptionBuilder.withArgName("folders|files");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("write the points of interest in each category to a separate KML folder or a separate file");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("category"));
+		
+		// watch a directory
+		options.addOption(new Option("watch", "watch the input directory and convert locations as they are added, writing to the output directory"));
+		
+		// follow a file
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("follow the input file as it grows, checking for new locations at this interval and writing to the output directory");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("follow"));
+		
+		// run as a server
+		OptionBuilder.withArgName("port");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("run as a server converting data posted to this port on the local host");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("server"));
+		
+		// number of batch jobs or server requests run at the same time
+		OptionBuilder.withArgName("number");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("number of batch jobs or server requests run at the same time");
+		OptionBuilder.isRequired(false);
+		options.addOption(OptionBuilder.create("threads"));
+		
 		// verbose output or not
 		options.addOption(new Option("verbose", "use verbose output"));
 		
 		return options;
 	}
+	
+	/*
+	 * a validated task ready to be undertaken
+	 */
+	static class Job {
+		
+		String         inputPath;
+		List<File>     inputFiles;
+		File           outputFile;
+		String         taskType;
+		boolean        verbose;
+		LocationsToKml task;
+		PointsOfInterestToKml poiTask;
+		LocationArchiver archiver;
+		
+		/*
+		 * undertake the task
+		 */
+		void run() throws TaskException {
+			if(task != null) {
+				task.undertakeTask(taskType);
+			} else if(poiTask != null) {
+				poiTask.undertakeTask(taskType);
+			} else if(archiver != null) {
+				archiver.undertakeTask(taskType);
+			}
+		}
+	}
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * formats times according to the KML specification, for example
+ * 2012-06-18T15:43:20+09:30, without creating any calendar or date format objects
+ * 
+ * the offset of each time zone is cached along with the period of time in 
+ * which it applies, so the time zone rules are only consulted when a time 
+ * falls outside of the cached period, this class is safe to use from
+ * multiple threads
+ */
+public class TimeFormatter {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the maximum number of characters in a formatted time
+	 */
+	public static final int MAX_LENGTH = 32;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final long MILLIS_PER_DAY = 86400000L;
+	
+	/*
+	 * private class level variables
+	 */
+	// keyed on the id of the resolved time zone so that the number of entries is limited
+	// to the time zones that exist, however many different names are formatted
+	private static final ConcurrentHashMap<String, ZoneOffsets> zones = new ConcurrentHashMap<String, ZoneOffsets>();
+	private static final ZoneOffsets utc = new ZoneOffsets(TimeZone.getTimeZone("UTC").toZoneId().getRules());
+	
+	// the most recent name that isn't the id of a time zone, so that it isn't resolved for every time
+	private static volatile ZoneAlias lastAlias = new ZoneAlias("", utc);
+	
+	/**
+	 * build a string representing a time according to the KML specification
+	 * 
+	 * @param time the time in milliseconds since the epoch
+	 * @param timeZone the id of the local time zone of the time
+	 * @return a string representing the time according to the KML specification
+	 */
+	public static String format(long time, String timeZone) {
+		
+		char[] buffer = new char[MAX_LENGTH];
+		int length = format(time, timeZone, buffer, 0);
+		
+		return new String(buffer, 0, length);
+	}
+	
+	/**
+	 * parse a time written according to the KML specification, if the time zone is left
+	 * out the time is in UTC and the time of day can also be left out, alternatively the
+	 * time can be a number of milliseconds since the epoch
+	 * 
+	 * @param time the time to parse
+	 * @return the time in milliseconds since the epoch
+	 * @throws ParseException if the time cannot be parsed
+	 */
+	public static long parse(String time) throws ParseException {
+		
+		if(time == null) {
+			throw new IllegalArgumentException("the time parameter is required");
+		}
+		
+		time = time.trim();
+		
+		if(time.matches("\\d+")) {
+			try {
+				return Long.parseLong(time);
+			} catch (NumberFormatException e) {
+				throw new ParseException("the time '" + time + "' is too large", 0);
+			}
+		}
+		
+		try {
+			if(time.indexOf('T') < 0) {
+				return LocalDate.parse(time).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+			} else if(time.endsWith("Z") || time.lastIndexOf('+') > 0 || time.lastIndexOf('-') > time.indexOf('T')) {
+				return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+			} else {
+				return LocalDateTime.parse(time).toInstant(ZoneOffset.UTC).toEpochMilli();
+			}
+		} catch (DateTimeParseException e) {
+			throw new ParseException("unable to parse the time '" + time + "'", e.getErrorIndex());
+		}
+	}
+	
+	/**
+	 * write the characters representing a time according to the KML specification
+	 * 
+	 * @param time the time in milliseconds since the epoch
+	 * @param timeZone the id of the local time zone of the time
+	 * @param buffer the buffer to write the characters into
+	 * @param offset the offset in the buffer of the first character
+	 * @return the number of characters written
+	 */
+	public static int format(long time, String timeZone, char[] buffer, int offset) {
+		
+		if(buffer.length - offset < MAX_LENGTH) {
+			throw new IllegalArgumentException("the buffer must have room for at least " + MAX_LENGTH + " characters");
+		}
+		
+		int offsetSeconds = getZoneOffsets(timeZone).getOffsetSeconds(time);
+		long localTime = time + offsetSeconds * 1000L;
+		
+		// split the local time into the day and the time of day
+		long epochDay = floorDiv(localTime, MILLIS_PER_DAY);
+		int secondOfDay = (int) ((localTime - epochDay * MILLIS_PER_DAY) / 1000);
+		
+		// convert the day into the civil date
+		// see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+		long days = epochDay + 719468;
+		long era = floorDiv(days, 146097);
+		int dayOfEra = (int) (days - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		int position = offset;
+		
+		// write the date
+		if(year >= 0 && year <= 9999) {
+			position = writeDigits(buffer, position, (int) year, 4);
+		} else {
+			String yearString = Long.toString(year);
+			yearString.getChars(0, yearString.length(), buffer, position);
+			position += yearString.length();
+		}
+		
+		buffer[position++] = '-';
+		position = writeDigits(buffer, position, month, 2);
+		buffer[position++] = '-';
+		position = writeDigits(buffer, position, day, 2);
+		
+		// write the time
+		buffer[position++] = 'T';
+		position = writeDigits(buffer, position, secondOfDay / 3600, 2);
+		buffer[position++] = ':';
+		position = writeDigits(buffer, position, (secondOfDay / 60) % 60, 2);
+		buffer[position++] = ':';
+		position = writeDigits(buffer, position, secondOfDay % 60, 2);
+		
+		// write the offset from UTC
+		if(offsetSeconds < 0) {
+			buffer[position++] = '-';
+			offsetSeconds = -offsetSeconds;
+		} else {
+			buffer[position++] = '+';
+		}
+		
+		position = writeDigits(buffer, position, offsetSeconds / 3600, 2);
+		buffer[position++] = ':';
+		position = writeDigits(buffer, position, (offsetSeconds / 60) % 60, 2);
+		
+		return position - offset;
+	}
+	
+	// get the cached offsets of a time zone
+	private static ZoneOffsets getZoneOffsets(String timeZone) {
+		
+		if(Utils.isEmpty(timeZone)) {
+			return utc;
+		}
+		
+		ZoneOffsets offsets = zones.get(timeZone);
+		
+		if(offsets != null) {
+			return offsets;
+		}
+		
+		ZoneAlias alias = lastAlias;
+		
+		if(alias.name.equals(timeZone)) {
+			return alias.offsets;
+		}
+		
+		// unknown time zones are treated as GMT in the same way as TimeZone.getTimeZone,
+		// so they all share the GMT entry
+		TimeZone zone = TimeZone.getTimeZone(timeZone);
+		String id = zone.getID();
+		
+		offsets = zones.get(id);
+		
+		if(offsets == null) {
+			offsets = new ZoneOffsets(zone.toZoneId().getRules());
+			
+			ZoneOffsets existing = zones.putIfAbsent(id, offsets);
+			
+			if(existing != null) {
+				offsets = existing;
+			}
+		}
+		
+		if(id.equals(timeZone) == false) {
+			lastAlias = new ZoneAlias(timeZone, offsets);
+		}
+		
+		return offsets;
+	}
+	
+	// write a number padded with leading zeros
+	private static int writeDigits(char[] buffer, int position, int value, int digits) {
+		
+		for(int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		
+		return position + digits;
+	}
+	
+	private static long floorDiv(long x, long y) {
+		
+		long result = x / y;
+		
+		if((x % y != 0) && ((x ^ y) < 0)) {
+			result--;
+		}
+		
+		return result;
+	}
+	
+	/*
+	 * a name that resolves to a time zone with a different id
+	 */
+	private static class ZoneAlias {
+		
+		private final String name;
+		private final ZoneOffsets offsets;
+		
+		ZoneAlias(String name, ZoneOffsets offsets) {
+			this.name = name;
+			this.offsets = offsets;
+		}
+	}
+	
+	/*
+	 * the offsets of a time zone along with the most recently used period
+	 * during which the offset doesn't change
+	 */
+	private static class ZoneOffsets {
+		
+		private final ZoneRules rules;
+		private volatile Period period;
+		
+		ZoneOffsets(ZoneRules rules) {
+			this.rules = rules;
+			
+			if(rules.isFixedOffset()) {
+				period = new Period(Long.MIN_VALUE, Long.MAX_VALUE, rules.getOffset(Instant.EPOCH).getTotalSeconds());
+			} else {
+				period = new Period(0, 0, 0);
+			}
+		}
+		
+		int getOffsetSeconds(long time) {
+			
+			Period current = period;
+			
+			if(time >= current.start && time < current.end) {
+				return current.offsetSeconds;
+			}
+			
+			// find the period between the transitions either side of the time
+			Instant instant = Instant.ofEpochMilli(time);
+			int offsetSeconds = rules.getOffset(instant).getTotalSeconds();
+			
+			long start = time;
+			long end = time + 1;
+			
+			ZoneOffsetTransition previous = rules.previousTransition(instant);
+			
+			if(previous == null) {
+				start = Long.MIN_VALUE;
+			} else if(previous.getOffsetAfter().getTotalSeconds() == offsetSeconds) {
+				start = previous.getInstant().toEpochMilli();
+			}
+			
+			ZoneOffsetTransition next = rules.nextTransition(instant);
+			
+			if(next == null) {
+				end = Long.MAX_VALUE;
+			} else {
+				end = next.getInstant().toEpochMilli();
+			}
+			
+			period = new Period(start, end, offsetSeconds);
+			
+			return offsetSeconds;
+		}
+	}
+	
+	/*
+	 * an immutable period of time with a constant offset
+	 */
+	private static class Period {
+		
+		final long start;
+		final long end;
+		final int  offsetSeconds;
+		
+		Period(long start, long end, int offsetSeconds) {
+			this.start = start;
+			this.end = end;
+			this.offsetSeconds = offsetSeconds;
+		}
+	}
+}
@@ -20,9 +20,20 @@
 package org.servalproject.maps.dataman;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.TimeZone;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 
 /**
  * a collection of utility methods
@@ -69,30 +80,115 @@ public class Utils {
 	}
 	
 	/**
-	 * build a string representing a time according to the KML specification
+	 * find the files matching a path which may be a single file, a directory
+	 * or a glob pattern such as logs/*.smapl
 	 * 
-	 * @param timestamp the time int UTC
-	 * @param timezone the local timezone of the time
-	 * @return a string representing the time according to the KML specification
+	 * @param path the path to a file, the path to a directory or a glob pattern
+	 * @param extension the extension of the files to find in a directory
+	 * @return a list of readable files sorted by path, which may be empty
+	 * @throws IOException if a directory cannot be read
 	 */
-	public static String buildTime(long time, String timeZone) {
+	public static List<File> findFiles(String path, final String extension) throws IOException {
 		
-		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(timeZone));
-		calendar.setTimeInMillis(time);
+		final List<File> files = new ArrayList<File>();
 		
-		SimpleDateFormat formatDate = new SimpleDateFormat("yyyy-MM-dd");
-		SimpleDateFormat formatTime = new SimpleDateFormat("HH:mm:ssZZ");
+		if(isEmpty(path) == true) {
+			return files;
+		}
 		
-		String timeAsString = formatDate.format(calendar.getTime()) + "T" + formatTime.format(calendar.getTime());
+		File file = new File(path);
 		
-		String token = timeAsString.substring(timeAsString.length() -2, timeAsString.length());
+		if(file.isDirectory() == true) {
+			
+			File[] children = file.listFiles();
+			
+			if(children == null) {
+				throw new IOException("unable to list the files in '" + path + "'");
+			}
+			
+			for(File child : children) {
+				if(child.getName().endsWith(extension) && isFileAccessible(child.getPath())) {
+					files.add(child);
+				}
+			}
+		} else if(isGlob(path) == true) {
+			
+			// walk the files below the directories that precede the pattern
+			String[] segments = path.split("/", -1);
+			StringBuilder base = new StringBuilder();
+			int index = 0;
+			
+			while(index < segments.length - 1 && isGlob(segments[index]) == false) {
+				base.append(segments[index]).append('/');
+				index++;
+			}
+			
+			Path start = base.length() == 0 ? Paths.get(".") : Paths.get(base.toString());
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+			
+			// a pattern without ** only matches to a fixed depth
+			int depth = path.contains("**") ? Integer.MAX_VALUE : segments.length - index;
+			
+			if(Files.isDirectory(start) == false) {
+				return files;
+			}
+			
+			final boolean isRelative = base.length() == 0;
+			
+			Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+				
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					
+					// match against the path as it was written
+					Path candidate = isRelative ? file.getFileSystem().getPath(".").relativize(file) : file;
+					
+					if(attributes.isRegularFile() && matcher.matches(candidate) && Files.isReadable(file)) {
+						files.add(file.toFile());
+					}
+					
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} else if(isFileAccessible(path) == true) {
+			files.add(file);
+		}
 		
-		timeAsString = timeAsString.substring(0, timeAsString.length() -2);
+		Collections.sort(files);
 		
-		return timeAsString + ":" + token;
+		return files;
+	}
+	
+	// check if a path contains any glob pattern characters
+	private static boolean isGlob(String path) {
 		
-		//return formatDate.format(calendar.getTime()) + "T" + formatTime.format(calendar.getTime());
+		for(int i = 0; i < path.length(); i++) {
+			switch(path.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return true;
+			}
+		}
 		
+		return false;
+	}
+	
+	/**
+	 * build a string representing a time according to the KML specification
+	 * 
+	 * @param timestamp the time int UTC
+	 * @param timezone the local timezone of the time
+	 * @return a string representing the time according to the KML specification
+	 */
+	public static String buildTime(long time, String timeZone) {
+		return TimeFormatter.format(time, timeZone);
 	}
 
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * writes GPS trace elements to a location archive, a compact format for 
+ * storing location history that is much smaller than a binary location file
+ * 
+ * an archive starts with the MAGIC and VERSION numbers, followed by the blocks
+ * of locations, the block index and a trailer
+ * 
+ * each block holds up to BLOCK_SIZE locations stored as columns, and starts
+ * with its length, the rest of the block is made up of:
+ *  - the number of locations
+ *  - the number of devices, followed by the phone number and subscriber id of each device
+ *  - the number of time zones, followed by each time zone
+ *  - the column of device numbers and the column of time zone numbers, each starting 
+ *    with its encoding, either PLAIN_COLUMN or RUN_COLUMN
+ *  - the columns of times, latitudes and longitudes, each value stored as the zigzag
+ *    encoded difference from the previous value of the same device in the block
+ * 
+ * coordinates are stored as fixed point numbers of 1 / COORDINATE_SCALE degrees, so
+ * they are rounded to about a centimetre, all numbers in a block are varints and each
+ * string is stored as its length followed by its UTF-8 bytes
+ * 
+ * the block index has an entry for each block with its offset, number of locations, 
+ * earliest and latest time, and range of latitude and longitude as fixed point numbers,
+ * the trailer is the offset of the block index, the number of blocks and the MAGIC number,
+ * the numbers outside of the blocks are big endian longs and ints
+ */
+public class ArchiveWriter {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the number at the start and end of an archive
+	 */
+	public static final int MAGIC = 0x534D4141;
+	
+	/**
+	 * the version of the archive format
+	 */
+	public static final int VERSION = 1;
+	
+	/**
+	 * the maximum number of locations in a block
+	 */
+	public static final int BLOCK_SIZE = 4096;
+	
+	/**
+	 * the number of fixed point units in a degree
+	 */
+	public static final double COORDINATE_SCALE = 1e7;
+	
+	/**
+	 * a column that stores the value of each location
+	 */
+	public static final int PLAIN_COLUMN = 0;
+	
+	/**
+	 * a column that stores runs of the same value as the value followed by the length of the run
+	 */
+	public static final int RUN_COLUMN = 1;
+	
+	/**
+	 * the number of bytes in the trailer
+	 */
+	public static final int TRAILER_SIZE = 16;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int BUFFER_SIZE = 65536;
+	private static final int INDEX_FIELDS = 8;
+	private static final int MAX_VARINT_SIZE = 10;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/*
+	 * private class level variables
+	 */
+	private DataOutputStream output;
+	private long   position = 0;
+	
+	// the columns of the current block
+	private int    count = 0;
+	private int[]  devices = new int[BLOCK_SIZE];
+	private int[]  timezones = new int[BLOCK_SIZE];
+	private long[] times = new long[BLOCK_SIZE];
+	private long[] latitudes = new long[BLOCK_SIZE];
+	private long[] longitudes = new long[BLOCK_SIZE];
+	
+	// the dictionaries of the current block
+	private HashMap<String, Integer> deviceNumbers = new HashMap<String, Integer>();
+	private ArrayList<String> phoneNumbers = new ArrayList<String>();
+	private ArrayList<String> subscriberIds = new ArrayList<String>();
+	private HashMap<String, Integer> timezoneNumbers = new HashMap<String, Integer>();
+	private ArrayList<String> timezoneNames = new ArrayList<String>();
+	
+	// the encoded block
+	private byte[] block = new byte[BUFFER_SIZE];
+	private int    blockSize = 0;
+	
+	// the entries of the block index
+	private long[] index = new long[INDEX_FIELDS * 64];
+	private int    blockCount = 0;
+	private long   locationCount = 0;
+	private long   skippedCount = 0;
+	
+	/**
+	 * create a new location archive
+	 * 
+	 * @param outputFile the file to write to
+	 * @throws BuildException if the file cannot be opened
+	 */
+	public ArchiveWriter(File outputFile) throws BuildException {
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("the outputFile parameter is required");
+		}
+		
+		try {
+			init(new FileOutputStream(outputFile));
+		} catch (FileNotFoundException e) {
+			throw new BuildException("unable to open the output file", e);
+		}
+	}
+	
+	/**
+	 * write a location archive to a stream
+	 * 
+	 * @param outputStream the stream to write the archive to
+	 * @throws BuildException if the archive cannot be started
+	 */
+	public ArchiveWriter(OutputStream outputStream) throws BuildException {
+		
+		if(outputStream == null) {
+			throw new IllegalArgumentException("the outputStream parameter is required");
+		}
+		
+		init(outputStream);
+	}
+	
+	// write the start of the archive
+	private void init(OutputStream outputStream) throws BuildException {
+		
+		output = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+		
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			position = 8;
+		} catch (IOException e) {
+			throw new BuildException("unable to write the archive header", e);
+		}
+	}
+	
+	/**
+	 * add an element to the archive, an element without a valid latitude and
+	 * longitude cannot be stored as a fixed point number and is skipped
+	 * 
+	 * @param element the element to add
+	 * @throws BuildException if the element cannot be added
+	 */
+	public void write(GpsTraceElement element) throws BuildException {
+		
+		double latitude = element.getLatitude();
+		double longitude = element.getLongitude();
+		
+		if(Double.isNaN(latitude) || Double.isInfinite(latitude) || Double.isNaN(longitude) || Double.isInfinite(longitude)) {
+			skippedCount++;
+			return;
+		}
+		
+		devices[count] = getDeviceNumber(element.getPhoneNumber(), element.getSubscriberId());
+		timezones[count] = getTimezoneNumber(element.getTimezone());
+		times[count] = element.getTimestamp();
+		latitudes[count] = Math.round(latitude * COORDINATE_SCALE);
+		longitudes[count] = Math.round(longitude * COORDINATE_SCALE);
+		
+		count++;
+		locationCount++;
+		
+		if(count == BLOCK_SIZE) {
+			writeBlock();
+		}
+	}
+	
+	/**
+	 * get the number of locations added to the archive
+	 * 
+	 * @return the number of locations
+	 */
+	public long getLocationCount() {
+		return locationCount;
+	}
+	
+	/**
+	 * get the number of locations skipped because they don't have a valid latitude and longitude
+	 * 
+	 * @return the number of skipped locations
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+	
+	/**
+	 * get the number of blocks written to the archive
+	 * 
+	 * @return the number of blocks
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+	
+	/**
+	 * write the last block, the block index and the trailer, and close the underlying stream
+	 * 
+	 * @throws BuildException if the archive cannot be written
+	 */
+	public void close() throws BuildException {
+		
+		try {
+			writeBlock();
+			
+			long indexOffset = position;
+			
+			for(int i = 0; i < blockCount * INDEX_FIELDS; i++) {
+				
+				// the number of locations is the only field stored as an int
+				if(i % INDEX_FIELDS == 1) {
+					output.writeInt((int) index[i]);
+				} else {
+					output.writeLong(index[i]);
+				}
+			}
+			
+			output.writeLong(indexOffset);
+			output.writeInt(blockCount);
+			output.writeInt(MAGIC);
+			output.close();
+			
+		} catch (IOException e) {
+			throw new BuildException("unable to close the output file", e);
+		}
+	}
+	
+	// get the number of a device in the dictionary of the current block
+	private int getDeviceNumber(String phoneNumber, String subscriberId) {
+		
+		if(phoneNumber == null) {
+			phoneNumber = "";
+		}
+		
+		if(subscriberId == null) {
+			subscriberId = "";
+		}
+		
+		// the length of the phone number keeps the key unique
+		String key = phoneNumber.length() + ":" + phoneNumber + subscriberId;
+		Integer number = deviceNumbers.get(key);
+		
+		if(number == null) {
+			number = phoneNumbers.size();
+			deviceNumbers.put(key, number);
+			phoneNumbers.add(phoneNumber);
+			subscriberIds.add(subscriberId);
+		}
+		
+		return number;
+	}
+	
+	// get the number of a time zone in the dictionary of the current block
+	private int getTimezoneNumber(String timezone) {
+		
+		if(timezone == null) {
+			timezone = "";
+		}
+		
+		Integer number = timezoneNumbers.get(timezone);
+		
+		if(number == null) {
+			number = timezoneNames.size();
+			timezoneNumbers.put(timezone, number);
+			timezoneNames.add(timezone);
+		}
+		
+		return number;
+	}
+	
+	// encode the current block and write it to the archive
+	private void writeBlock() throws BuildException {
+		
+		if(count == 0) {
+			return;
+		}
+		
+		blockSize = 0;
+		
+		writeVarint(count);
+		
+		// the dictionaries
+		writeVarint(phoneNumbers.size());
+		
+		for(int i = 0; i < phoneNumbers.size(); i++) {
+			writeString(phoneNumbers.get(i));
+			writeString(subscriberIds.get(i));
+		}
+		
+		writeVarint(timezoneNames.size());
+		
+		for(String timezone : timezoneNames) {
+			writeString(timezone);
+		}
+		
+		// the columns
+		writeNumberColumn(devices);
+		writeNumberColumn(timezones);
+		writeDeltaColumn(times);
+		writeDeltaColumn(latitudes);
+		writeDeltaColumn(longitudes);
+		
+		// add the entry for the block to the index
+		if(blockCount * INDEX_FIELDS == index.length) {
+			index = Arrays.copyOf(index, index.length * 2);
+		}
+		
+		int entry = blockCount * INDEX_FIELDS;
+		
+		index[entry] = position;
+		index[entry + 1] = count;
+		index[entry + 2] = minimum(times);
+		index[entry + 3] = maximum(times);
+		index[entry + 4] = minimum(latitudes);
+		index[entry + 5] = maximum(latitudes);
+		index[entry + 6] = minimum(longitudes);
+		index[entry + 7] = maximum(longitudes);
+		
+		blockCount++;
+		
+		// write the length of the block followed by the block
+		try {
+			int length = blockSize;
+			int prefixSize = 0;
+			
+			do {
+				int b = length & 0x7F;
+				length >>>= 7;
+				output.write(length == 0 ? b : b | 0x80);
+				prefixSize++;
+			} while(length != 0);
+			
+			output.write(block, 0, blockSize);
+			position += prefixSize + blockSize;
+			
+		} catch (IOException e) {
+			throw new BuildException("unable to write a block of the archive", e);
+		}
+		
+		// start a new block
+		count = 0;
+		deviceNumbers.clear();
+		phoneNumbers.clear();
+		subscriberIds.clear();
+		timezoneNumbers.clear();
+		timezoneNames.clear();
+	}
+	
+	// write a column of dictionary numbers, using runs if they are smaller
+	private void writeNumberColumn(int[] numbers) {
+		
+		int plainSize = 0;
+		int runSize = 0;
+		
+		for(int i = 0; i < count; i++) {
+			
+			plainSize += getVarintSize(numbers[i]);
+			
+			// the length of a run in a block takes at most two bytes
+			if(i == 0 || numbers[i] != numbers[i - 1]) {
+				runSize += getVarintSize(numbers[i]) + 2;
+			}
+		}
+		
+		if(plainSize <= runSize) {
+			
+			writeVarint(PLAIN_COLUMN);
+			
+			for(int i = 0; i < count; i++) {
+				writeVarint(numbers[i]);
+			}
+			
+		} else {
+			
+			writeVarint(RUN_COLUMN);
+			
+			int start = 0;
+			
+			for(int i = 1; i <= count; i++) {
+				if(i == count || numbers[i] != numbers[start]) {
+					writeVarint(numbers[start]);
+					writeVarint(i - start);
+					start = i;
+				}
+			}
+		}
+	}
+	
+	// write a column of numbers as the difference from the previous number of the same device
+	private void writeDeltaColumn(long[] values) {
+		
+		long[] previous = new long[phoneNumbers.size()];
+		
+		for(int i = 0; i < count; i++) {
+			
+			long delta = values[i] - previous[devices[i]];
+			previous[devices[i]] = values[i];
+			
+			// zigzag encoding keeps small negative differences small
+			writeVarint((delta << 1) ^ (delta >> 63));
+		}
+	}
+	
+	// write a string as its length and its UTF-8 bytes
+	private void writeString(String value) {
+		
+		byte[] bytes = value.getBytes(UTF_8);
+		
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, block, blockSize, bytes.length);
+		blockSize += bytes.length;
+	}
+	
+	// write a varint to the current block
+	private void writeVarint(long value) {
+		
+		ensureCapacity(MAX_VARINT_SIZE);
+		
+		while((value & ~0x7FL) != 0) {
+			block[blockSize++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		block[blockSize++] = (byte) value;
+	}
+	
+	// make sure there is room in the current block for a number of bytes
+	private void ensureCapacity(int length) {
+		
+		if(blockSize + length > block.length) {
+			block = Arrays.copyOf(block, Math.max(block.length * 2, blockSize + length));
+		}
+	}
+	
+	// get the number of bytes used by a small varint
+	private static int getVarintSize(int value) {
+		
+		int size = 1;
+		
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		
+		return size;
+	}
+	
+	// get the smallest value in a column of the current block
+	private long minimum(long[] values) {
+		
+		long minimum = values[0];
+		
+		for(int i = 1; i < count; i++) {
+			minimum = Math.min(minimum, values[i]);
+		}
+		
+		return minimum;
+	}
+	
+	// get the largest value in a column of the current block
+	private long maximum(long[] values) {
+		
+		long maximum = values[0];
+		
+		for(int i = 1; i < count; i++) {
+			maximum = Math.max(maximum, values[i]);
+		}
+		
+		return maximum;
+	}
+}
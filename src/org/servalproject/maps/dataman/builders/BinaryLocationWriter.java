@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.protobuf.LocationMessage;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * writes GPS trace elements as length-delimited location messages, 
+ * the same format as the binary location files
+ * 
+ * the fields are encoded directly from the element rather than 
+ * building a new message object for every location
+ */
+public class BinaryLocationWriter {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int BUFFER_SIZE = 65536;
+	
+	/*
+	 * private class level variables
+	 */
+	private OutputStream      outputStream;
+	private CodedOutputStream codedOutput;
+	
+	/**
+	 * create a new binary location file
+	 * 
+	 * @param outputFile the file to write to
+	 * @param append if true the messages are added to the end of an existing file
+	 * @throws BuildException if the file cannot be opened
+	 */
+	public BinaryLocationWriter(File outputFile, boolean append) throws BuildException {
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("the outputFile parameter is required");
+		}
+		
+		try {
+			outputStream = new FileOutputStream(outputFile, append);
+		} catch (FileNotFoundException e) {
+			throw new BuildException("unable to open the output file", e);
+		}
+		
+		codedOutput = CodedOutputStream.newInstance(outputStream, BUFFER_SIZE);
+	}
+	
+	/**
+	 * write binary location messages to a stream
+	 * 
+	 * @param outputStream the stream to write the messages to
+	 */
+	public BinaryLocationWriter(OutputStream outputStream) {
+		
+		if(outputStream == null) {
+			throw new IllegalArgumentException("the outputStream parameter is required");
+		}
+		
+		this.outputStream = outputStream;
+		codedOutput = CodedOutputStream.newInstance(outputStream, BUFFER_SIZE);
+	}
+	
+	/**
+	 * write an element as a location message
+	 * 
+	 * @param element the element to write
+	 * @throws BuildException if the message cannot be written
+	 */
+	public void write(GpsTraceElement element) throws BuildException {
+		
+		String phoneNumber = element.getPhoneNumber();
+		String subscriberId = element.getSubscriberId();
+		String timezone = element.getTimezone();
+		
+		// compute the size of the message for the length prefix
+		int size = CodedOutputStream.computeDoubleSize(LocationMessage.Message.LATITUDE_FIELD_NUMBER, element.getLatitude())
+				+ CodedOutputStream.computeDoubleSize(LocationMessage.Message.LONGITUDE_FIELD_NUMBER, element.getLongitude())
+				+ CodedOutputStream.computeInt64Size(LocationMessage.Message.TIMESTAMP_FIELD_NUMBER, element.getTimestamp());
+		
+		if(phoneNumber != null) {
+			size += CodedOutputStream.computeStringSize(LocationMessage.Message.PHONENUMBER_FIELD_NUMBER, phoneNumber);
+		}
+		
+		if(subscriberId != null) {
+			size += CodedOutputStream.computeStringSize(LocationMessage.Message.SUBSCIBERID_FIELD_NUMBER, subscriberId);
+		}
+		
+		if(timezone != null) {
+			size += CodedOutputStream.computeStringSize(LocationMessage.Message.TIMEZONE_FIELD_NUMBER, timezone);
+		}
+		
+		try {
+			codedOutput.writeRawVarint32(size);
+			
+			// write the fields in field number order
+			if(phoneNumber != null) {
+				codedOutput.writeString(LocationMessage.Message.PHONENUMBER_FIELD_NUMBER, phoneNumber);
+			}
+			
+			if(subscriberId != null) {
+				codedOutput.writeString(LocationMessage.Message.SUBSCIBERID_FIELD_NUMBER, subscriberId);
+			}
+			
+			codedOutput.writeDouble(LocationMessage.Message.LATITUDE_FIELD_NUMBER, element.getLatitude());
+			codedOutput.writeDouble(LocationMessage.Message.LONGITUDE_FIELD_NUMBER, element.getLongitude());
+			codedOutput.writeInt64(LocationMessage.Message.TIMESTAMP_FIELD_NUMBER, element.getTimestamp());
+			
+			if(timezone != null) {
+				codedOutput.writeString(LocationMessage.Message.TIMEZONE_FIELD_NUMBER, timezone);
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the location message", e);
+		}
+	}
+	
+	/**
+	 * write any buffered messages to the underlying stream
+	 * 
+	 * @throws BuildException if the messages cannot be written
+	 */
+	public void flush() throws BuildException {
+		
+		try {
+			codedOutput.flush();
+			outputStream.flush();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the location messages", e);
+		}
+	}
+	
+	/**
+	 * write any buffered messages and close the underlying stream
+	 * 
+	 * @throws BuildException if the messages cannot be written
+	 */
+	public void close() throws BuildException {
+		
+		try {
+			codedOutput.flush();
+			outputStream.close();
+		} catch (IOException e) {
+			throw new BuildException("unable to close the output file", e);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.servalproject.maps.dataman.CoordinateFormatter;
+import org.servalproject.maps.dataman.TimeFormatter;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.PoiElement;
+
+/**
+ * utility class to construct JSON documents from GPS traces as they are read
+ * 
+ * the location output contains an object for each location with all of the
+ * fields of the binary location message, grouped into traces
+ * 
+ * the GeoJSON output is a FeatureCollection with a LineString Feature for 
+ * each trace, or a Point Feature if the trace only has one location
+ * 
+ * the point of interest output contains an object for each point of interest
+ * with all of the fields of the binary POI message
+ */
+public class JsonBuilder {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * write every location with all of its fields
+	 */
+	public static final int LOCATION_OUTPUT = 1;
+	
+	/**
+	 * write each trace as a GeoJSON Feature
+	 */
+	public static final int GEOJSON_OUTPUT = 2;
+	
+	/**
+	 * write every point of interest with all of its fields
+	 */
+	public static final int POI_OUTPUT = 3;
+	
+	/*
+	 * private class level variables
+	 */
+	private JsonWriter jsonWriter;
+	private int        outputType;
+	
+	private boolean inTrace = false;
+	private boolean isQuantised = false;
+	private String  traceName;
+	private int     traceElements;
+	
+	// the first location of a GeoJSON trace is kept until its geometry type is known
+	private double firstLatitude;
+	private double firstLongitude;
+	private long   firstTimestamp;
+	private String firstTimezone;
+	
+	private double previousLatitude;
+	private double previousLongitude;
+	private long   previousTimestamp;
+	private String previousTimezone;
+	
+	private char[] timeBuffer = new char[TimeFormatter.MAX_LENGTH + 2];
+	
+	private CoordinateFormatter coordinateFormatter = new CoordinateFormatter();
+	private char[]              coordinateBuffer = new char[CoordinateFormatter.MAX_LENGTH];
+	
+	/**
+	 * instantiates a new JSON builder
+	 * 
+	 * @param writer the writer used to output the JSON
+	 * @param outputType the type of JSON document to build
+	 * @throws BuildException if the start of the JSON cannot be written
+	 */
+	public JsonBuilder(Writer writer, int outputType) throws BuildException {
+		
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+		
+		jsonWriter = new JsonWriter(writer);
+		
+		try {
+			jsonWriter.beginObject();
+			
+			switch(outputType) {
+			case LOCATION_OUTPUT:
+				jsonWriter.name("traces");
+				break;
+			case GEOJSON_OUTPUT:
+				jsonWriter.name("type");
+				jsonWriter.value("FeatureCollection");
+				jsonWriter.name("features");
+				break;
+			case POI_OUTPUT:
+				jsonWriter.name("pointsOfInterest");
+				break;
+			default:
+				throw new IllegalArgumentException("the provided output type is invalid");
+			}
+			
+			jsonWriter.beginArray();
+			
+		} catch (IOException e) {
+			throw new BuildException("unable to write the start of the JSON", e);
+		}
+		
+		this.outputType = outputType;
+	}
+	
+	/**
+	 * set the number of decimal places used when writing coordinates
+	 * 
+	 * in the GeoJSON output consecutive elements that round to the same 
+	 * position are not written
+	 * 
+	 * @param precision the number of decimal places, or CoordinateFormatter.FULL_PRECISION
+	 */
+	public void setPrecision(int precision) {
+		coordinateFormatter = new CoordinateFormatter(precision);
+		isQuantised = precision != CoordinateFormatter.FULL_PRECISION;
+	}
+	
+	/**
+	 * start a new trace, elements are added to the trace with the addTraceElement method
+	 * 
+	 * @param name the name of the trace, may be null
+	 */
+	public void startTrace(String name) {
+		
+		if(outputType == POI_OUTPUT) {
+			throw new IllegalStateException("traces cannot be added to point of interest output");
+		}
+		
+		if(inTrace) {
+			throw new IllegalStateException("the previous trace has not been ended");
+		}
+		
+		inTrace = true;
+		traceName = name;
+		traceElements = 0;
+	}
+	
+	/**
+	 * add an element to the current trace
+	 * 
+	 * @param element the element to add to the trace
+	 * @throws BuildException if the element cannot be written
+	 */
+	public void addTraceElement(GpsTraceElement element) throws BuildException {
+		
+		if(inTrace == false) {
+			throw new IllegalStateException("a trace must be started before elements are added");
+		}
+		
+		try {
+			if(outputType == LOCATION_OUTPUT) {
+				addLocation(element);
+			} else {
+				addFeatureElement(element);
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the trace element", e);
+		}
+	}
+	
+	/**
+	 * end the current trace
+	 * 
+	 * @throws BuildException if the end of the trace cannot be written
+	 */
+	public void endTrace() throws BuildException {
+		
+		if(inTrace == false) {
+			throw new IllegalStateException("there is no trace to end");
+		}
+		
+		try {
+			if(outputType == LOCATION_OUTPUT) {
+				
+				if(traceElements > 0) {
+					// end the locations array and the trace object
+					jsonWriter.endArray();
+					jsonWriter.endObject();
+				}
+				
+			} else if(traceElements == 1) {
+				
+				// a single location is a point rather than a line
+				startFeature("Point");
+				writePosition(firstLongitude, firstLatitude);
+				endFeature();
+				
+			} else if(traceElements > 1) {
+				
+				// end the coordinates array
+				jsonWriter.endArray();
+				endFeature();
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the end of the trace", e);
+		}
+		
+		inTrace = false;
+	}
+	
+	/**
+	 * add a point of interest as an object with all of its fields
+	 * 
+	 * @param poi the point of interest to add
+	 * @throws BuildException if the point of interest cannot be written
+	 */
+	public void addPointOfInterest(PoiElement poi) throws BuildException {
+		
+		if(outputType != POI_OUTPUT) {
+			throw new IllegalStateException("points of interest can only be added to point of interest output");
+		}
+		
+		try {
+			jsonWriter.beginObject();
+			jsonWriter.name("phoneNumber");
+			jsonWriter.value(poi.getPhoneNumber());
+			jsonWriter.name("subscriberId");
+			jsonWriter.value(poi.getSubscriberId());
+			jsonWriter.name("latitude");
+			writeCoordinate(poi.getLatitude());
+			jsonWriter.name("longitude");
+			writeCoordinate(poi.getLongitude());
+			jsonWriter.name("timestamp");
+			jsonWriter.value(poi.getTimestamp());
+			jsonWriter.name("timeZone");
+			jsonWriter.value(poi.getTimezone());
+			jsonWriter.name("time");
+			writeTime(poi.getTimestamp(), poi.getTimezone());
+			jsonWriter.name("title");
+			jsonWriter.value(poi.getTitle());
+			jsonWriter.name("description");
+			jsonWriter.value(poi.getDescription());
+			jsonWriter.name("category");
+			jsonWriter.value(poi.getCategory());
+			jsonWriter.endObject();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the point of interest", e);
+		}
+	}
+	
+	/**
+	 * finish the JSON and close the underlying writer
+	 * 
+	 * @throws BuildException if an error occurs while writing the end of the JSON
+	 */
+	public void close() throws BuildException {
+		
+		if(inTrace) {
+			endTrace();
+		}
+		
+		try {
+			jsonWriter.close();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the end of the JSON", e);
+		}
+	}
+	
+	/**
+	 * close the underlying writer without finishing the JSON, used when 
+	 * the output cannot be completed
+	 * 
+	 * @throws BuildException if the underlying writer cannot be closed
+	 */
+	public void abort() throws BuildException {
+		
+		inTrace = false;
+		
+		try {
+			jsonWriter.abort();
+		} catch (IOException e) {
+			throw new BuildException("unable to close the JSON", e);
+		}
+	}
+	
+	// write a location as an object with all of its fields
+	private void addLocation(GpsTraceElement element) throws IOException {
+		
+		// the start of the trace is written with the first element so that
+		// an empty trace doesn't leave an empty object behind
+		if(traceElements == 0) {
+			jsonWriter.beginObject();
+			
+			if(traceName != null) {
+				jsonWriter.name("name");
+				jsonWriter.value(traceName);
+			}
+			
+			jsonWriter.name("locations");
+			jsonWriter.beginArray();
+		}
+		
+		jsonWriter.beginObject();
+		jsonWriter.name("phoneNumber");
+		jsonWriter.value(element.getPhoneNumber());
+		jsonWriter.name("subscriberId");
+		jsonWriter.value(element.getSubscriberId());
+		jsonWriter.name("latitude");
+		writeCoordinate(element.getLatitude());
+		jsonWriter.name("longitude");
+		writeCoordinate(element.getLongitude());
+		jsonWriter.name("timestamp");
+		jsonWriter.value(element.getTimestamp());
+		jsonWriter.name("timeZone");
+		jsonWriter.value(element.getTimezone());
+		jsonWriter.name("time");
+		writeTime(element.getTimestamp(), element.getTimezone());
+		jsonWriter.endObject();
+		
+		traceElements++;
+	}
+	
+	// add a position to the geometry of a GeoJSON feature
+	private void addFeatureElement(GpsTraceElement element) throws IOException {
+		
+		double latitude = coordinateFormatter.round(element.getLatitude());
+		double longitude = coordinateFormatter.round(element.getLongitude());
+		
+		// when coordinates are quantised consecutive elements that 
+		// round to the same position add nothing to the line
+		if(traceElements > 0 && isQuantised && latitude == previousLatitude && longitude == previousLongitude) {
+			previousTimestamp = element.getTimestamp();
+			previousTimezone = element.getTimezone();
+			return;
+		}
+		
+		if(traceElements == 0) {
+			
+			// keep the first position until it is known if the trace is a point or a line
+			firstLatitude = element.getLatitude();
+			firstLongitude = element.getLongitude();
+			firstTimestamp = element.getTimestamp();
+			firstTimezone = element.getTimezone();
+			
+		} else {
+			
+			if(traceElements == 1) {
+				startFeature("LineString");
+				jsonWriter.beginArray();
+				writePosition(firstLongitude, firstLatitude);
+			}
+			
+			writePosition(element.getLongitude(), element.getLatitude());
+		}
+		
+		previousLatitude = latitude;
+		previousLongitude = longitude;
+		previousTimestamp = element.getTimestamp();
+		previousTimezone = element.getTimezone();
+		
+		traceElements++;
+	}
+	
+	// write the start of a feature up to the coordinates of its geometry
+	private void startFeature(String geometryType) throws IOException {
+		
+		jsonWriter.beginObject();
+		jsonWriter.name("type");
+		jsonWriter.value("Feature");
+		jsonWriter.name("geometry");
+		jsonWriter.beginObject();
+		jsonWriter.name("type");
+		jsonWriter.value(geometryType);
+		jsonWriter.name("coordinates");
+	}
+	
+	// write the end of a feature including its properties, which are only known once the trace has ended
+	private void endFeature() throws IOException {
+		
+		// end the geometry
+		jsonWriter.endObject();
+		
+		jsonWriter.name("properties");
+		jsonWriter.beginObject();
+		
+		if(traceName != null) {
+			jsonWriter.name("name");
+			jsonWriter.value(traceName);
+		}
+		
+		jsonWriter.name("begin");
+		writeTime(firstTimestamp, firstTimezone);
+		jsonWriter.name("end");
+		writeTime(previousTimestamp, previousTimezone);
+		
+		jsonWriter.endObject();
+		jsonWriter.endObject();
+	}
+	
+	// write a longitude and latitude pair as a GeoJSON position
+	private void writePosition(double longitude, double latitude) throws IOException {
+		jsonWriter.beginArray();
+		writeCoordinate(longitude);
+		writeCoordinate(latitude);
+		jsonWriter.endArray();
+	}
+	
+	// write a coordinate as a number without creating an intermediate string
+	private void writeCoordinate(double value) throws IOException {
+		
+		// JSON has no representation of these values
+		if(Double.isNaN(value) || Double.isInfinite(value)) {
+			jsonWriter.nullValue();
+			return;
+		}
+		
+		jsonWriter.rawValue(coordinateBuffer, 0, coordinateFormatter.format(value, coordinateBuffer, 0));
+	}
+	
+	// write a time as a string without creating an intermediate string
+	private void writeTime(long time, String timeZone) throws IOException {
+		
+		int length = TimeFormatter.format(time, timeZone, timeBuffer, 1);
+		
+		timeBuffer[0] = '"';
+		timeBuffer[length + 1] = '"';
+		
+		jsonWriter.rawValue(timeBuffer, 0, length + 2);
+	}
+}
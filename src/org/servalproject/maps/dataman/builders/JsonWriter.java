@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * a minimal streaming JSON writer that escapes strings and adds the separators
+ * between values as they are written, without building a document tree
+ * 
+ * the output is compact, except that each object in an array starts on a new
+ * line so that large documents can still be read and processed line by line
+ */
+public class JsonWriter {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int    BUFFER_SIZE = 65536;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	/*
+	 * private class level variables
+	 */
+	private Writer    writer;
+	private char[]    buffer;
+	private int       position = 0;
+	
+	// the type of each open object or array and whether it has a value yet
+	private boolean[] isArray = new boolean[16];
+	private boolean[] hasValue = new boolean[16];
+	private int       depth = 0;
+	private boolean   hasName = false;
+	
+	/**
+	 * create a new JsonWriter that outputs to the supplied writer
+	 * 
+	 * @param writer the writer to send the JSON to
+	 */
+	public JsonWriter(Writer writer) {
+		
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+		
+		this.writer = writer;
+		buffer = new char[BUFFER_SIZE];
+	}
+	
+	/**
+	 * start a new object
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void beginObject() throws IOException {
+		
+		boolean inArray = depth > 0 && isArray[depth - 1];
+		
+		beforeValue();
+		
+		if(inArray) {
+			write('\n');
+		}
+		
+		write('{');
+		push(false);
+	}
+	
+	/**
+	 * end the most recently started object
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void endObject() throws IOException {
+		pop(false);
+		write('}');
+	}
+	
+	/**
+	 * start a new array
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void beginArray() throws IOException {
+		beforeValue();
+		write('[');
+		push(true);
+	}
+	
+	/**
+	 * end the most recently started array
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void endArray() throws IOException {
+		pop(true);
+		write(']');
+	}
+	
+	/**
+	 * write the name of the next member of the current object
+	 * 
+	 * @param name the name of the member
+	 * @throws IOException if the output cannot be written
+	 */
+	public void name(String name) throws IOException {
+		
+		if(depth == 0 || isArray[depth - 1] || hasName) {
+			throw new IllegalStateException("a name can only be written inside an object before a value");
+		}
+		
+		if(hasValue[depth - 1]) {
+			write(',');
+		}
+		
+		writeString(name);
+		write(':');
+		
+		hasName = true;
+	}
+	
+	/**
+	 * write a string value, escaping it as required
+	 * 
+	 * @param value the value to write, or null
+	 * @throws IOException if the output cannot be written
+	 */
+	public void value(String value) throws IOException {
+		
+		if(value == null) {
+			nullValue();
+			return;
+		}
+		
+		beforeValue();
+		writeString(value);
+	}
+	
+	/**
+	 * write a number value
+	 * 
+	 * @param value the value to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void value(long value) throws IOException {
+		beforeValue();
+		write(Long.toString(value));
+	}
+	
+	/**
+	 * write a null value
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void nullValue() throws IOException {
+		beforeValue();
+		write("null");
+	}
+	
+	/**
+	 * write characters as a value without escaping them, the characters 
+	 * must be a complete JSON value such as a number
+	 * 
+	 * @param chars the array of characters
+	 * @param offset the offset of the first character to write
+	 * @param length the number of characters to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void rawValue(char[] chars, int offset, int length) throws IOException {
+		
+		beforeValue();
+		
+		if(length > buffer.length - position) {
+			flushBuffer();
+			
+			if(length > buffer.length) {
+				writer.write(chars, offset, length);
+				return;
+			}
+		}
+		
+		System.arraycopy(chars, offset, buffer, position, length);
+		position += length;
+	}
+	
+	/**
+	 * flush any buffered output to the underlying writer
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		writer.flush();
+	}
+	
+	/**
+	 * end any open objects and arrays and close the underlying writer
+	 * 
+	 * @throws IOException if the output cannot be written
+	 */
+	public void close() throws IOException {
+		
+		// a name without a value can't be left behind
+		if(hasName) {
+			nullValue();
+		}
+		
+		while(depth > 0) {
+			if(isArray[depth - 1]) {
+				endArray();
+			} else {
+				endObject();
+			}
+		}
+		
+		write('\n');
+		flushBuffer();
+		writer.close();
+	}
+	
+	/**
+	 * close the underlying writer without ending the open objects and arrays, so that
+	 * output which failed part way through isn't mistaken for a whole document
+	 * 
+	 * @throws IOException if the writer cannot be closed
+	 */
+	public void abort() throws IOException {
+		
+		position = 0;
+		depth = 0;
+		hasName = false;
+		writer.close();
+	}
+	
+	// write the separator required before a value and check that a value is allowed
+	private void beforeValue() throws IOException {
+		
+		if(depth > 0) {
+			
+			if(isArray[depth - 1]) {
+				if(hasValue[depth - 1]) {
+					write(',');
+				}
+			} else if(hasName == false) {
+				throw new IllegalStateException("a value in an object must follow a name");
+			}
+			
+			hasValue[depth - 1] = true;
+		}
+		
+		hasName = false;
+	}
+	
+	// keep track of a new object or array
+	private void push(boolean array) {
+		
+		if(depth == isArray.length) {
+			boolean[] grown = new boolean[isArray.length * 2];
+			System.arraycopy(isArray, 0, grown, 0, isArray.length);
+			isArray = grown;
+			
+			grown = new boolean[hasValue.length * 2];
+			System.arraycopy(hasValue, 0, grown, 0, hasValue.length);
+			hasValue = grown;
+		}
+		
+		isArray[depth] = array;
+		hasValue[depth] = false;
+		depth++;
+	}
+	
+	// check that the most recent object or array is of the expected type and forget it
+	private void pop(boolean array) {
+		
+		if(depth == 0 || isArray[depth - 1] != array) {
+			throw new IllegalStateException("there is no " + (array ? "array" : "object") + " to end");
+		}
+		
+		if(hasName) {
+			throw new IllegalStateException("a name must be followed by a value");
+		}
+		
+		depth--;
+	}
+	
+	// write a string in quotes escaping the JSON special characters
+	private void writeString(String text) throws IOException {
+		
+		write('"');
+		
+		int length = text.length();
+		char c;
+		
+		for(int i = 0; i < length; i++) {
+			c = text.charAt(i);
+			
+			switch(c) {
+			case '"':
+				write("\\\"");
+				break;
+			case '\\':
+				write("\\\\");
+				break;
+			case '\n':
+				write("\\n");
+				break;
+			case '\r':
+				write("\\r");
+				break;
+			case '\t':
+				write("\\t");
+				break;
+			default:
+				// other control characters must be written as unicode escapes
+				if(c < 0x20) {
+					write("\\u00");
+					write(HEX_DIGITS[c >> 4]);
+					write(HEX_DIGITS[c & 0xF]);
+				} else {
+					write(c);
+				}
+			}
+		}
+		
+		write('"');
+	}
+	
+	private void write(String text) throws IOException {
+		
+		int length = text.length();
+		
+		if(length > buffer.length - position) {
+			flushBuffer();
+			
+			if(length > buffer.length) {
+				writer.write(text);
+				return;
+			}
+		}
+		
+		text.getChars(0, length, buffer, position);
+		position += length;
+	}
+	
+	private void write(char c) throws IOException {
+		
+		if(position == buffer.length) {
+			flushBuffer();
+		}
+		
+		buffer[position++] = c;
+	}
+	
+	private void flushBuffer() throws IOException {
+		
+		if(position > 0) {
+			writer.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -19,129 +19,173 @@
  */
 package org.servalproject.maps.dataman.builders;
 
-import java.io.PrintWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.servalproject.maps.dataman.Utils;
+import org.servalproject.maps.dataman.CoordinateFormatter;
+import org.servalproject.maps.dataman.TimeFormatter;
 import org.servalproject.maps.dataman.types.GpsTraceElement;
 import org.servalproject.maps.dataman.types.KmlStyle;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.servalproject.maps.dataman.types.PoiElement;
 
 /**
  * utility class to construct KML
+ * 
+ * the KML is streamed to the output as elements are added so that
+ * the memory required does not depend on the length of a trace
  */
 public class KmlBuilder {
 
 	/* 
 	 * private class level variables
 	 */
-	private DocumentBuilderFactory factory;
-	private DocumentBuilder        builder;
-	private DOMImplementation      domImpl;
-	private Document               xmlDoc;
-	private Element                rootElement;
-	private Element                rootDocument;
+	private XmlWriter xmlWriter;
 	
 	private boolean hasStyle = false;
+	private boolean hasTraceElement = false;
+	private boolean inTrace = false;
+	private boolean inTimedTrace = false;
+	private boolean inTrack = false;
+	private boolean isQuantised = false;
+	private boolean inFolder = false;
+	private String  traceName;
+	
+	// details of the previous element in a trace
+	private double previousLatitude;
+	private double previousLongitude;
+	private long   previousTimestamp;
+	private String previousTimezone;
+	
+	private char[] timeBuffer = new char[TimeFormatter.MAX_LENGTH];
+	
+	private CoordinateFormatter coordinateFormatter = new CoordinateFormatter();
+	private char[]              coordinateBuffer = new char[CoordinateFormatter.MAX_LENGTH * 2 + 2];
+	
+	// the coordinates of a track are written after all of its times
+	// so they are kept in a temporary file until the track is ended
+	private File             trackCoordinatesFile;
+	private DataOutputStream trackCoordinates;
+	private long             trackCount = 0;
 	
 	/*
 	 * private class level constants
 	 */
 	private final String STYLE_URL = "gpsTraceStyle";
+	
+	// the depth of the elements in the Document element
+	private static final int DOCUMENT_DEPTH = 2;
 
 	/**
 	 * instantiates a new KML builder
-	 * @throws BuildException if the underlying XML infrastructure cannot be used
+	 * 
+	 * @param writer the writer used to output the KML
+	 * @throws BuildException if the start of the KML cannot be written
 	 */
-	public KmlBuilder() throws BuildException {
-
-		// create the xml document builder factory object
-		factory = DocumentBuilderFactory.newInstance();
-
-		// set the factory to be namespace aware
-		factory.setNamespaceAware(true);
+	public KmlBuilder(Writer writer) throws BuildException {
+		
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+		
+		xmlWriter = new XmlWriter(writer);
 
-		// create the xml document builder object and get the DOMImplementation object
 		try {
-			builder = factory.newDocumentBuilder();
-		} catch (javax.xml.parsers.ParserConfigurationException e) {
-			throw new BuildException("unable to instantiate class", e);
+			xmlWriter.writeDeclaration();
+			
+			// add the root element with the kml, atom, google earth extension and schema namespaces
+			xmlWriter.startElement("kml",
+					"xmlns", "http://www.opengis.net/kml/2.2",
+					"xmlns:atom", "http://www.w3.org/2005/Atom",
+					"xmlns:gx", "http://www.google.com/kml/ext/2.2",
+					"xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance",
+					"xsi:schemaLocation", "http://www.opengis.net/kml/2.2 http://schemas.opengis.net/kml/2.2.0/ogckml22.xsd");
+			
+			// add the root document
+			xmlWriter.startElement("Document");
+			
+			// add author information
+			xmlWriter.startElement("atom:author");
+			xmlWriter.textElement("atom:name", "Serval Maps Data Manipulator");
+			xmlWriter.endElement();
+			
+			// add link information
+			xmlWriter.emptyElement("atom:link", "href", "http://servalproject.org");
+			
+		} catch (IOException e) {
+			throw new BuildException("unable to write the start of the KML", e);
 		}
-
-		domImpl = builder.getDOMImplementation();
-
-		// create a document with the appropriate default namespace
-		xmlDoc = domImpl.createDocument("http://www.opengis.net/kml/2.2", "kml", null);
-
-		// get the root element
-		rootElement = this.xmlDoc.getDocumentElement();
-
-		// add atom namespace to the root element
-		rootElement.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:atom", "http://www.w3.org/2005/Atom");
-
-		// add google earth extension namespace to the root element
-		rootElement.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:gx", "http://www.google.com/kml/ext/2.2");
-
-		// add schema namespace to the root element
-		rootElement.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-
-		// add reference to the kml schema
-		rootElement.setAttribute("xsi:schemaLocation", "http://www.opengis.net/kml/2.2 http://schemas.opengis.net/kml/2.2.0/ogckml22.xsd");
-
-		// add the root document
-		rootDocument = xmlDoc.createElement("Document");
-		rootElement.appendChild(rootDocument);
-
-		// add author information
-		Element author = xmlDoc.createElement("atom:author");
-
-		Element authorName = xmlDoc.createElement("atom:name");
-		authorName.setTextContent("Serval Maps Data Manipulator");
-		author.appendChild(authorName);
-
-		// add link information
-		Element link = xmlDoc.createElement("atom:link");
-		link.setAttribute("href", "http://servalproject.org");
-
-		// add info to node tree
-		rootDocument.appendChild(author);
-		rootDocument.appendChild(link);
+	}
+	
+	/**
+	 * instantiates a KML builder that writes a Folder rather than a whole document,
+	 * so that Folders can be built in parallel and then added to a document in turn
+	 * 
+	 * @param writer the writer used to output the Folder
+	 * @param name the name of the Folder
+	 * @return the new KML builder, the Folder is ended when the builder is closed
+	 * @throws BuildException if the start of the Folder cannot be written
+	 */
+	public static KmlBuilder createFolder(Writer writer, String name) throws BuildException {
+		
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+		
+		KmlBuilder builder = new KmlBuilder(new XmlWriter(writer, DOCUMENT_DEPTH));
+		
+		try {
+			builder.xmlWriter.startElement("Folder");
+			
+			if(name != null) {
+				builder.xmlWriter.textElement("name", name);
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the start of the Folder", e);
+		}
+		
+		return builder;
+	}
+	
+	// instantiate a builder that writes with an existing XML writer
+	private KmlBuilder(XmlWriter xmlWriter) {
+		this.xmlWriter = xmlWriter;
 	}
 	
 	/**
 	 * set the KML style for the line that represents the GPS trace
 	 * 
+	 * the style must be set before any traces are added
+	 * 
 	 * @param style an object representing the style parameters
+	 * @throws BuildException if the style cannot be written
 	 */
-	public boolean setStyle(KmlStyle style) {
+	public boolean setStyle(KmlStyle style) throws BuildException {
 		
 		if(style != null && hasStyle == false) {
-			// add the style information
-			Element styleElem = xmlDoc.createElement("Style");
-			styleElem.setAttribute("id", STYLE_URL);
-			
-			Element lineStyle = xmlDoc.createElement("LineStyle");
-			styleElem.appendChild(lineStyle);
 			
-			Element elem = xmlDoc.createElement("color");
-			elem.setTextContent(style.getColour());
-			lineStyle.appendChild(elem);
-			
-			elem = xmlDoc.createElement("width");
-			elem.setTextContent(Integer.toString(style.getWidth()));
-			lineStyle.appendChild(elem);
+			if(isInTrace()) {
+				throw new IllegalStateException("the style must be set before any traces are added");
+			}
 			
-			rootDocument.appendChild(styleElem);
+			// add the style information
+			try {
+				xmlWriter.startElement("Style", "id", STYLE_URL);
+				xmlWriter.startElement("LineStyle");
+				xmlWriter.textElement("color", style.getColour());
+				xmlWriter.textElement("width", Integer.toString(style.getWidth()));
+				xmlWriter.endElement();
+				xmlWriter.endElement();
+			} catch (IOException e) {
+				throw new BuildException("unable to write the style information", e);
+			}
 			
 			hasStyle = true;
 		} 
@@ -149,6 +193,19 @@ public class KmlBuilder {
 		return false;
 	}
 	
+	/**
+	 * set the number of decimal places used when writing coordinates
+	 * 
+	 * coordinates are rounded to the precision and consecutive elements 
+	 * that round to the same position are not written
+	 * 
+	 * @param precision the number of decimal places, or CoordinateFormatter.FULL_PRECISION
+	 */
+	public void setPrecision(int precision) {
+		coordinateFormatter = new CoordinateFormatter(precision);
+		isQuantised = precision != CoordinateFormatter.FULL_PRECISION;
+	}
+	
 	/**
 	 * add a basic GPS trace
 	 * 
@@ -166,48 +223,107 @@ public class KmlBuilder {
 			throw new IllegalArgumentException("the trace must contain at least one element");
 		}
 		
-		// add the start of the PlaceMark element
-		Element elem = xmlDoc.createElement("Placemark");
-		rootDocument.appendChild(elem);
+		startTrace();
 		
-		if(hasStyle == true) {
-			Element styleUrl = xmlDoc.createElement("styleUrl");
-			styleUrl.setTextContent(STYLE_URL);
-			elem.appendChild(styleUrl);
+		for(GpsTraceElement element : trace) {
+			addTraceElement(element);
 		}
 		
-		// add the LineString element
-		Element lineString = xmlDoc.createElement("LineString");
-		elem.appendChild(lineString);
+		endTrace();
+	}
+	
+	/**
+	 * start a basic GPS trace, elements are added to the trace 
+	 * with the addTraceElement method
+	 */
+	public void startTrace() {
+		startTrace(null);
+	}
+	
+	/**
+	 * start a basic GPS trace, elements are added to the trace 
+	 * with the addTraceElement method
+	 * 
+	 * @param name the name of the Placemark containing the trace, may be null
+	 */
+	public void startTrace(String name) {
 		
-		// add the tessellate element
-		elem = xmlDoc.createElement("tessellate");
-		elem.setTextContent("1");
-		lineString.appendChild(elem);
+		if(isInTrace()) {
+			throw new IllegalStateException("the previous trace has not been ended");
+		}
 		
-		// create the altitude mode
-		// used in conjunction with the tessellate element above to ensure the 
-		// line string is stuck to the ground
-		elem = xmlDoc.createElement("altitudeMode");
-		elem.setTextContent("clampToGround");
-		lineString.appendChild(elem);
+		inTrace = true;
+		hasTraceElement = false;
+		traceName = name;
+	}
+	
+	/**
+	 * add an element to the current basic GPS trace
+	 * 
+	 * @param element the element to add to the trace
+	 * @throws BuildException if the element cannot be written
+	 */
+	public void addTraceElement(GpsTraceElement element) throws BuildException {
 		
-		// create the coordinates element
-		elem = xmlDoc.createElement("coordinates");
+		if(inTrace == false) {
+			throw new IllegalStateException("a trace must be started before elements are added");
+		}
 		
-		StringBuilder coordinates = new StringBuilder();
+		double latitude = coordinateFormatter.round(element.getLatitude());
+		double longitude = coordinateFormatter.round(element.getLongitude());
 		
-		// process the list of elements
-		for(GpsTraceElement element : trace) {
-			coordinates.append(Double.toString(element.getLongitude()) + "," + Double.toString(element.getLatitude()) + " ");
+		// when coordinates are quantised consecutive elements that 
+		// round to the same position add nothing to the trace
+		if(hasTraceElement && isQuantised && latitude == previousLatitude && longitude == previousLongitude) {
+			return;
+		}
+		
+		try {
+			// the start of the trace is written with the first element so that 
+			// an empty trace doesn't leave an empty Placemark behind
+			if(hasTraceElement == false) {
+				startPlacemark(traceName);
+				xmlWriter.startElement("coordinates");
+				hasTraceElement = true;
+			}
+			
+			writeCoordinates(element.getLongitude(), element.getLatitude());
+			
+		} catch (IOException e) {
+			throw new BuildException("unable to write the trace element", e);
 		}
 		
-		elem.setTextContent(coordinates.toString());
-		lineString.appendChild(elem);
+		previousLatitude  = latitude;
+		previousLongitude = longitude;
 	}
 	
 	/**
-	 * add a basic GPS trace
+	 * end the current basic GPS trace
+	 * 
+	 * @throws BuildException if the end of the trace cannot be written
+	 */
+	public void endTrace() throws BuildException {
+		
+		if(inTrace == false) {
+			throw new IllegalStateException("there is no trace to end");
+		}
+		
+		try {
+			if(hasTraceElement) {
+				// end the coordinates, LineString and Placemark elements
+				xmlWriter.endElement();
+				xmlWriter.endElement();
+				xmlWriter.endElement();
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the end of the trace", e);
+		}
+		
+		inTrace = false;
+	}
+	
+	/**
+	 * add a GPS trace with time span elements
 	 * 
 	 * @param trace a list of GpsTraceElements
 	 * @throws BuildException if a error occurs while processing the list of traces
@@ -223,101 +339,457 @@ public class KmlBuilder {
 			throw new IllegalArgumentException("the trace must contain at least one element");
 		}
 		
-		GpsTraceElement previousTraceElement = null;
-		String coordinates;
-		Element elem;
+		startTimedTrace();
 		
-		for(GpsTraceElement currentTraceElement : trace) {
-			if(previousTraceElement == null) {
-				previousTraceElement = currentTraceElement;
-				continue;
-			}
+		for(GpsTraceElement element : trace) {
+			addTimedTraceElement(element);
+		}
+		
+		endTimedTrace();
+	}
+	
+	/**
+	 * start a GPS trace with time span elements, elements are added
+	 * to the trace with the addTimedTraceElement method
+	 */
+	public void startTimedTrace() {
+		startTimedTrace(null);
+	}
+	
+	/**
+	 * start a GPS trace with time span elements, elements are added
+	 * to the trace with the addTimedTraceElement method
+	 * 
+	 * @param name the name of a Folder containing the Placemarks of the trace, 
+	 * if null the Placemarks are not put in a Folder
+	 */
+	public void startTimedTrace(String name) {
+		
+		if(isInTrace()) {
+			throw new IllegalStateException("the previous trace has not been ended");
+		}
+		
+		inTimedTrace = true;
+		hasTraceElement = false;
+		traceName = name;
+	}
+	
+	/**
+	 * add an element to the current timed GPS trace, a Placemark is 
+	 * written for each pair of consecutive elements
+	 * 
+	 * @param element the element to add to the trace
+	 * @throws BuildException if the element cannot be written
+	 */
+	public void addTimedTraceElement(GpsTraceElement element) throws BuildException {
+		
+		if(inTimedTrace == false) {
+			throw new IllegalStateException("a timed trace must be started before elements are added");
+		}
+		
+		if(hasTraceElement == true) {
 			
-			// add the start of the PlaceMark element
-			Element placemark = xmlDoc.createElement("Placemark");
-			rootDocument.appendChild(placemark);
+			// when coordinates are quantised an element that rounds to the same
+			// position as the previous element is skipped so that the next
+			// segment spans the time spent at that position
+			if(isQuantised
+					&& coordinateFormatter.round(element.getLatitude()) == coordinateFormatter.round(previousLatitude) 
+					&& coordinateFormatter.round(element.getLongitude()) == coordinateFormatter.round(previousLongitude)) {
+				return;
+			}
 			
-			if(hasStyle == true) {
-				Element styleUrl = xmlDoc.createElement("styleUrl");
-				styleUrl.setTextContent(STYLE_URL);
-				placemark.appendChild(styleUrl);
+			try {
+				// the Folder is written with the first Placemark so that 
+				// an empty trace doesn't leave an empty Folder behind
+				if(traceName != null && inFolder == false) {
+					xmlWriter.startElement("Folder");
+					xmlWriter.textElement("name", traceName);
+					inFolder = true;
+				}
+				
+				// add the start of the PlaceMark element
+				startPlacemark(null);
+				
+				// create the coordinates element
+				xmlWriter.startElement("coordinates");
+				writeCoordinates(previousLongitude, previousLatitude);
+				writeCoordinates(element.getLongitude(), element.getLatitude());
+				xmlWriter.endElement();
+				
+				// end the LineString element
+				xmlWriter.endElement();
+				
+				// create the timespan element
+				xmlWriter.startElement("TimeSpan");
+				writeTimeElement("begin", previousTimestamp, previousTimezone);
+				writeTimeElement("end", element.getTimestamp(), element.getTimezone());
+				xmlWriter.endElement();
+				
+				// end the Placemark element
+				xmlWriter.endElement();
+				
+			} catch (IOException e) {
+				throw new BuildException("unable to write the trace element", e);
 			}
+		}
+		
+		// store the details of the current element for later
+		// as the caller is free to reuse the element object
+		previousLatitude  = element.getLatitude();
+		previousLongitude = element.getLongitude();
+		previousTimestamp = element.getTimestamp();
+		previousTimezone  = element.getTimezone();
+		
+		hasTraceElement = true;
+	}
+	
+	/**
+	 * end the current timed GPS trace
+	 * 
+	 * @throws BuildException if the end of the trace cannot be written
+	 */
+	public void endTimedTrace() throws BuildException {
+		
+		if(inTimedTrace == false) {
+			throw new IllegalStateException("there is no timed trace to end");
+		}
+		
+		inTimedTrace = false;
+		previousTimezone = null;
+		
+		if(inFolder) {
+			inFolder = false;
 			
-			// add the LineString element
-			Element lineString = xmlDoc.createElement("LineString");
-			placemark.appendChild(lineString);
+			try {
+				xmlWriter.endElement();
+			} catch (IOException e) {
+				throw new BuildException("unable to write the end of the trace", e);
+			}
+		}
+	}
+	
+	/**
+	 * start a GPS trace that is written as a single gx:Track element, with 
+	 * a time for each coordinate, elements are added to the track with the 
+	 * addTrackElement method
+	 * 
+	 * @throws BuildException if the temporary storage for the track cannot be created
+	 */
+	public void startTrack() throws BuildException {
+		startTrack(null);
+	}
+	
+	/**
+	 * start a GPS trace that is written as a single gx:Track element, with 
+	 * a time for each coordinate, elements are added to the track with the 
+	 * addTrackElement method
+	 * 
+	 * @param name the name of the Placemark containing the track, may be null
+	 * @throws BuildException if the temporary storage for the track cannot be created
+	 */
+	public void startTrack(String name) throws BuildException {
+		
+		if(isInTrace()) {
+			throw new IllegalStateException("the previous trace has not been ended");
+		}
+		
+		// the temporary file is deleted when the track is ended or the KML is aborted
+		try {
+			trackCoordinatesFile = File.createTempFile("track", ".tmp");
+			trackCoordinates = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(trackCoordinatesFile)));
+		} catch (IOException e) {
+			if(trackCoordinatesFile != null) {
+				trackCoordinatesFile.delete();
+				trackCoordinatesFile = null;
+			}
+			throw new BuildException("unable to create temporary storage for the track", e);
+		}
+		
+		inTrack = true;
+		trackCount = 0;
+		traceName = name;
+	}
+	
+	/**
+	 * add an element to the current track
+	 * 
+	 * @param element the element to add to the track
+	 * @throws BuildException if the element cannot be written
+	 */
+	public void addTrackElement(GpsTraceElement element) throws BuildException {
+		
+		if(inTrack == false) {
+			throw new IllegalStateException("a track must be started before elements are added");
+		}
+		
+		try {
+			// the start of the track is written with the first element so that 
+			// an empty track doesn't leave an empty Placemark behind
+			if(trackCount == 0) {
+				xmlWriter.startElement("Placemark");
+				
+				if(traceName != null) {
+					xmlWriter.textElement("name", traceName);
+				}
+				
+				if(hasStyle == true) {
+					xmlWriter.textElement("styleUrl", STYLE_URL);
+				}
+				
+				xmlWriter.startElement("gx:Track");
+				xmlWriter.textElement("altitudeMode", "clampToGround");
+			}
 			
-			// add the tessellate element
-			elem = xmlDoc.createElement("tessellate");
-			elem.setTextContent("1");
-			lineString.appendChild(elem);
+			writeTimeElement("when", element.getTimestamp(), element.getTimezone());
 			
-			// create the altitude mode
-			// used in conjunction with the tessellate element above to ensure the 
-			// line string is stuck to the ground
-			elem = xmlDoc.createElement("altitudeMode");
-			elem.setTextContent("clampToGround");
-			lineString.appendChild(elem);
+			trackCoordinates.writeDouble(element.getLongitude());
+			trackCoordinates.writeDouble(element.getLatitude());
+			trackCount++;
 			
-			// create the coordinates element
-			elem = xmlDoc.createElement("coordinates");
+		} catch (IOException e) {
+			throw new BuildException("unable to write the track element", e);
+		}
+	}
+	
+	/**
+	 * end the current track, writing the coordinates of the track
+	 * 
+	 * @throws BuildException if the coordinates of the track cannot be written
+	 */
+	public void endTrack() throws BuildException {
+		
+		if(inTrack == false) {
+			throw new IllegalStateException("there is no track to end");
+		}
+		
+		inTrack = false;
+		
+		try {
+			trackCoordinates.close();
 			
-			coordinates = new String();
+			if(trackCount > 0) {
+				
+				DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(trackCoordinatesFile)));
+				
+				try {
+					for(long i = 0; i < trackCount; i++) {
+						double longitude = input.readDouble();
+						double latitude = input.readDouble();
+						
+						// gx:coord uses spaces as separators and requires an altitude
+						int length = coordinateFormatter.format(longitude, coordinateBuffer, 0);
+						coordinateBuffer[length++] = ' ';
+						length += coordinateFormatter.format(latitude, coordinateBuffer, length);
+						coordinateBuffer[length++] = ' ';
+						coordinateBuffer[length++] = '0';
+						
+						xmlWriter.startElement("gx:coord");
+						xmlWriter.writeRaw(coordinateBuffer, 0, length);
+						xmlWriter.endElement();
+					}
+				} finally {
+					input.close();
+				}
+				
+				// end the gx:Track and Placemark elements
+				xmlWriter.endElement();
+				xmlWriter.endElement();
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the coordinates of the track", e);
+		} finally {
+			trackCoordinatesFile.delete();
+			trackCoordinatesFile = null;
+			trackCoordinates = null;
+		}
+	}
+	
+	/**
+	 * add a point of interest as a Placemark containing a Point
+	 * 
+	 * the title and description are free text entered on the phone, which
+	 * is escaped as it is written
+	 * 
+	 * @param poi the point of interest to add
+	 * @throws BuildException if the point of interest cannot be written
+	 */
+	public void addPointOfInterest(PoiElement poi) throws BuildException {
+		
+		if(isInTrace()) {
+			throw new IllegalStateException("points of interest cannot be added to a trace");
+		}
+		
+		try {
+			xmlWriter.startElement("Placemark");
+			xmlWriter.textElement("name", poi.getTitle());
 			
-			coordinates = Double.toString(previousTraceElement.getLongitude()) + "," 
-						+ Double.toString(previousTraceElement.getLatitude()) + " "
-						+ Double.toString(currentTraceElement.getLongitude()) + "," 
-						+ Double.toString(currentTraceElement.getLatitude()) + " ";
+			if(poi.getDescription() != null && poi.getDescription().length() > 0) {
+				xmlWriter.textElement("description", poi.getDescription());
+			}
 			
-			elem.setTextContent(coordinates);
-			lineString.appendChild(elem);
+			xmlWriter.startElement("TimeStamp");
+			writeTimeElement("when", poi.getTimestamp(), poi.getTimezone());
+			xmlWriter.endElement();
 			
-			// create the timespan element
-			Element timespan = xmlDoc.createElement("TimeSpan");
+			// keep the fields that KML has no element for
+			xmlWriter.startElement("ExtendedData");
+			writeData("category", Long.toString(poi.getCategory()));
+			writeData("phoneNumber", poi.getPhoneNumber());
+			writeData("subscriberId", poi.getSubscriberId());
+			xmlWriter.endElement();
 			
-			elem = xmlDoc.createElement("begin");
-			elem.setTextContent(Utils.buildTime(previousTraceElement.getTimestamp(), previousTraceElement.getTimezone()));
-			timespan.appendChild(elem);
+			xmlWriter.startElement("Point");
+			xmlWriter.startElement("coordinates");
 			
-			elem = xmlDoc.createElement("end");
-			elem.setTextContent(Utils.buildTime(currentTraceElement.getTimestamp(), currentTraceElement.getTimezone()));
-			timespan.appendChild(elem);
+			int length = coordinateFormatter.format(poi.getLongitude(), coordinateBuffer, 0);
+			coordinateBuffer[length++] = ',';
+			length += coordinateFormatter.format(poi.getLatitude(), coordinateBuffer, length);
+			xmlWriter.writeRaw(coordinateBuffer, 0, length);
 			
-			placemark.appendChild(timespan);
+			// end the coordinates, Point and Placemark elements
+			xmlWriter.endElement();
+			xmlWriter.endElement();
+			xmlWriter.endElement();
 			
-			// store reference to the current place mark for later
-			previousTraceElement = currentTraceElement;
+		} catch (IOException e) {
+			throw new BuildException("unable to write the point of interest", e);
 		}
 	}
 	
 	/**
-	 * output the contents of the KML to a file
+	 * flush all of the KML written so far to the underlying writer, so that
+	 * content such as a Folder from another builder can be added directly 
+	 * to the output that the writer is sending to
 	 * 
-	 * @throws BuildException if an error occurs during xml transformation our file writing
+	 * @throws BuildException if the KML cannot be flushed
 	 */
-	public void outputToFile(PrintWriter printWriter) throws BuildException {
-
+	public void flush() throws BuildException {
+		
+		if(isInTrace()) {
+			throw new IllegalStateException("the KML cannot be flushed part way through a trace");
+		}
+		
 		try {
-            // create a transformer 
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer        transformer  = transFactory.newTransformer();
-            
-            // set some options on the transformer
-            transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            
-            // get a transformer and supporting classes
-            StreamResult result = new StreamResult(printWriter);
-            DOMSource    source = new DOMSource(xmlDoc);
-            
-            // transform the internal objects into XML and print it
-            transformer.transform(source, result);
-	
-	    } catch (javax.xml.transform.TransformerException e) {
-	            throw new BuildException("unable to create the XML and output it to the file", e);
-	    }
+			xmlWriter.flush();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the KML", e);
+		}
 	}
+	
+	/**
+	 * finish the KML and close the underlying writer
+	 * 
+	 * @throws BuildException if an error occurs while writing the end of the KML
+	 */
+	public void close() throws BuildException {
+		
+		if(inTrace) {
+			endTrace();
+		}
+		
+		if(inTimedTrace) {
+			endTimedTrace();
+		}
+		
+		if(inTrack) {
+			endTrack();
+		}
 
+		try {
+			xmlWriter.close();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the end of the KML", e);
+		}
+	}
+	
+	/**
+	 * close the underlying writer without finishing the KML, used when 
+	 * the output cannot be completed
+	 * 
+	 * @throws BuildException if the underlying writer cannot be closed
+	 */
+	public void abort() throws BuildException {
+		
+		inTrace = false;
+		inTimedTrace = false;
+		
+		// the coordinates of an unfinished track are no longer needed
+		if(inTrack) {
+			inTrack = false;
+			
+			try {
+				trackCoordinates.close();
+			} catch (IOException e) {
+				
+			}
+			
+			trackCoordinatesFile.delete();
+			trackCoordinatesFile = null;
+			trackCoordinates = null;
+		}
+		
+		try {
+			xmlWriter.abort();
+		} catch (IOException e) {
+			throw new BuildException("unable to close the KML", e);
+		}
+	}
+	
+	// determine if any type of trace has been started and not yet ended
+	private boolean isInTrace() {
+		return inTrace || inTimedTrace || inTrack;
+	}
+	
+	// write a longitude and latitude pair followed by a space 
+	private void writeCoordinates(double longitude, double latitude) throws IOException {
+		
+		int length = coordinateFormatter.format(longitude, coordinateBuffer, 0);
+		coordinateBuffer[length++] = ',';
+		length += coordinateFormatter.format(latitude, coordinateBuffer, length);
+		coordinateBuffer[length++] = ' ';
+		
+		xmlWriter.writeRaw(coordinateBuffer, 0, length);
+	}
+	
+	// write an element containing a time without creating an intermediate string
+	private void writeTimeElement(String name, long time, String timeZone) throws IOException {
+		
+		xmlWriter.startElement(name);
+		xmlWriter.writeRaw(timeBuffer, 0, TimeFormatter.format(time, timeZone, timeBuffer, 0));
+		xmlWriter.endElement();
+	}
+	
+	// write a named value in the ExtendedData of a Placemark
+	private void writeData(String name, String value) throws IOException {
+		
+		xmlWriter.startElement("Data", "name", name);
+		xmlWriter.textElement("value", value);
+		xmlWriter.endElement();
+	}
+	
+	// write the start of a Placemark containing a LineString 
+	private void startPlacemark(String name) throws IOException {
+		
+		// add the start of the PlaceMark element
+		xmlWriter.startElement("Placemark");
+		
+		if(name != null) {
+			xmlWriter.textElement("name", name);
+		}
+		
+		if(hasStyle == true) {
+			xmlWriter.textElement("styleUrl", STYLE_URL);
+		}
+		
+		// add the LineString element
+		xmlWriter.startElement("LineString");
+		
+		// add the tessellate element
+		xmlWriter.textElement("tessellate", "1");
+		
+		// create the altitude mode
+		// used in conjunction with the tessellate element above to ensure the 
+		// line string is stuck to the ground
+		xmlWriter.textElement("altitudeMode", "clampToGround");
+	}
 }
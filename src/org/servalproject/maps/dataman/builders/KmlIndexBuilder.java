@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * utility class to construct a KML document that links to other KML documents,
+ * such as the parts of a trace that is written incrementally
+ */
+public class KmlIndexBuilder {
+	
+	/* 
+	 * private class level variables
+	 */
+	private XmlWriter xmlWriter;
+	
+	/**
+	 * instantiates a new KML index builder
+	 * 
+	 * @param writer the writer used to output the KML
+	 * @param name the name of the document
+	 * @throws BuildException if the start of the KML cannot be written
+	 */
+	public KmlIndexBuilder(Writer writer, String name) throws BuildException {
+		
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+		
+		xmlWriter = new XmlWriter(writer);
+		
+		try {
+			xmlWriter.writeDeclaration();
+			xmlWriter.startElement("kml", "xmlns", "http://www.opengis.net/kml/2.2");
+			xmlWriter.startElement("Document");
+			
+			if(name != null) {
+				xmlWriter.textElement("name", name);
+			}
+		} catch (IOException e) {
+			throw new BuildException("unable to write the start of the KML", e);
+		}
+	}
+	
+	/**
+	 * add a link to another KML document
+	 * 
+	 * @param name the name of the link
+	 * @param href the location of the linked document, relative to this document
+	 * @throws BuildException if the link cannot be written
+	 */
+	public void addLink(String name, String href) throws BuildException {
+		addLink(name, href, 0);
+	}
+	
+	/**
+	 * add a link to another KML document that is reloaded at regular intervals
+	 * 
+	 * @param name the name of the link
+	 * @param href the location of the linked document, relative to this document
+	 * @param refreshInterval the number of seconds between reloads, or 0 if the document is only loaded once
+	 * @throws BuildException if the link cannot be written
+	 */
+	public void addLink(String name, String href, long refreshInterval) throws BuildException {
+		
+		try {
+			xmlWriter.startElement("NetworkLink");
+			
+			if(name != null) {
+				xmlWriter.textElement("name", name);
+			}
+			
+			xmlWriter.startElement("Link");
+			xmlWriter.textElement("href", href);
+			
+			if(refreshInterval > 0) {
+				xmlWriter.textElement("refreshMode", "onInterval");
+				xmlWriter.textElement("refreshInterval", Long.toString(refreshInterval));
+			}
+			
+			xmlWriter.endElement();
+			
+			xmlWriter.endElement();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the link", e);
+		}
+	}
+	
+	/**
+	 * finish the KML and close the writer
+	 * 
+	 * @throws BuildException if the end of the KML cannot be written
+	 */
+	public void close() throws BuildException {
+		
+		try {
+			xmlWriter.close();
+		} catch (IOException e) {
+			throw new BuildException("unable to write the end of the KML", e);
+		}
+	}
+}
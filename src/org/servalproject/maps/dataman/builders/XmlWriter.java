@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.builders;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * a minimal streaming XML writer that escapes content and indents
+ * elements as they are written, without building a document tree
+ */
+public class XmlWriter {
+
+	/*
+	 * private class level constants
+	 */
+	private static final int    BUFFER_SIZE = 65536;
+	private static final String INDENT      = "  ";
+
+	/*
+	 * private class level variables
+	 */
+	private Writer   writer;
+	private char[]   buffer;
+	private int      position = 0;
+
+	private String[] elements = new String[16];
+	private int      depth = 0;
+	private boolean  hasText = false;
+	private boolean  hasWritten = false;
+
+	private int      baseDepth = 0;
+	private boolean  isFragment = false;
+
+	/**
+	 * create a new XmlWriter that outputs to the supplied writer
+	 *
+	 * @param writer the writer to send the XML to
+	 */
+	public XmlWriter(Writer writer) {
+
+		if(writer == null) {
+			throw new IllegalArgumentException("the writer parameter is required");
+		}
+
+		this.writer = writer;
+		buffer = new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * create a new XmlWriter for a fragment that will be included in another
+	 * document, the fragment starts on a new line and is indented to the depth
+	 * of the element that it is included in
+	 *
+	 * @param writer the writer to send the XML to
+	 * @param baseDepth the depth of the element that the fragment is included in
+	 */
+	public XmlWriter(Writer writer, int baseDepth) {
+
+		this(writer);
+
+		if(baseDepth < 0) {
+			throw new IllegalArgumentException("the baseDepth parameter must be >= 0");
+		}
+
+		this.baseDepth = baseDepth;
+		isFragment = true;
+		hasWritten = true;
+	}
+
+	/**
+	 * write the XML declaration
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeDeclaration() throws IOException {
+		write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>");
+	}
+
+	/**
+	 * start a new element
+	 *
+	 * @param name the name of the element
+	 * @param attributes an optional list of attribute name and value pairs
+	 * @throws IOException if the output cannot be written
+	 */
+	public void startElement(String name, String... attributes) throws IOException {
+
+		writeStartTag(name, attributes);
+		write('>');
+
+		// keep track of the element so it can be closed later
+		if(depth == elements.length) {
+			String[] grown = new String[elements.length * 2];
+			System.arraycopy(elements, 0, grown, 0, elements.length);
+			elements = grown;
+		}
+
+		elements[depth++] = name;
+		hasText = false;
+	}
+
+	/**
+	 * write an element that has no content
+	 *
+	 * @param name the name of the element
+	 * @param attributes an optional list of attribute name and value pairs
+	 * @throws IOException if the output cannot be written
+	 */
+	public void emptyElement(String name, String... attributes) throws IOException {
+
+		writeStartTag(name, attributes);
+		write("/>");
+
+		hasText = false;
+	}
+
+	/**
+	 * end the most recently started element
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	public void endElement() throws IOException {
+
+		if(depth == 0) {
+			throw new IllegalStateException("there is no element to end");
+		}
+
+		String name = elements[--depth];
+		elements[depth] = null;
+
+		// elements with text content are closed on the same line
+		if(hasText == false) {
+			newLine();
+		}
+
+		write("</");
+		write(name);
+		write('>');
+
+		hasText = false;
+	}
+
+	/**
+	 * write an element containing only text content
+	 *
+	 * @param name the name of the element
+	 * @param text the text content of the element
+	 * @throws IOException if the output cannot be written
+	 */
+	public void textElement(String name, String text) throws IOException {
+		startElement(name);
+		writeText(text);
+		endElement();
+	}
+
+	/**
+	 * write text content into the current element, escaping it as required
+	 *
+	 * @param text the text to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeText(String text) throws IOException {
+
+		hasText = true;
+
+		if(text != null) {
+			writeEscaped(text, false);
+		}
+	}
+
+	/**
+	 * write characters into the current element without escaping them,
+	 * the characters must not contain any XML markup
+	 *
+	 * @param chars the array of characters
+	 * @param offset the offset of the first character to write
+	 * @param length the number of characters to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeRaw(char[] chars, int offset, int length) throws IOException {
+
+		hasText = true;
+		hasWritten = true;
+
+		if(length > buffer.length - position) {
+			flushBuffer();
+
+			if(length > buffer.length) {
+				writer.write(chars, offset, length);
+				return;
+			}
+		}
+
+		System.arraycopy(chars, offset, buffer, position, length);
+		position += length;
+	}
+
+	/**
+	 * write a single character into the current element without escaping it
+	 *
+	 * @param c the character to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeRaw(char c) throws IOException {
+		hasText = true;
+		write(c);
+	}
+
+	/**
+	 * flush any buffered output to the underlying writer
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		writer.flush();
+	}
+
+	/**
+	 * end any open elements and close the underlying writer
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	public void close() throws IOException {
+
+		while(depth > 0) {
+			endElement();
+		}
+
+		// the document a fragment is included in continues on the same line
+		if(isFragment == false) {
+			write('\n');
+		}
+
+		flushBuffer();
+		writer.close();
+	}
+
+	/**
+	 * close the underlying writer without ending the open elements, so that
+	 * output which failed part way through isn't mistaken for a whole document
+	 *
+	 * @throws IOException if the writer cannot be closed
+	 */
+	public void abort() throws IOException {
+
+		position = 0;
+		depth = 0;
+		writer.close();
+	}
+
+	// write the start tag of an element without the closing bracket
+	private void writeStartTag(String name, String[] attributes) throws IOException {
+
+		if(attributes.length % 2 != 0) {
+			throw new IllegalArgumentException("attributes must be supplied as name and value pairs");
+		}
+
+		newLine();
+		write('<');
+		write(name);
+
+		for(int i = 0; i < attributes.length; i += 2) {
+			write(' ');
+			write(attributes[i]);
+			write("=\"");
+			writeEscaped(attributes[i + 1], true);
+			write('"');
+		}
+	}
+
+	// start a new line at the current level of indentation
+	private void newLine() throws IOException {
+
+		// nothing precedes the first line of the document
+		if(hasWritten == true) {
+			write('\n');
+		}
+
+		for(int i = 0; i < baseDepth + depth; i++) {
+			write(INDENT);
+		}
+	}
+
+	// write a string escaping the XML special characters
+	private void writeEscaped(String text, boolean isAttribute) throws IOException {
+
+		int length = text.length();
+		char c;
+
+		for(int i = 0; i < length; i++) {
+			c = text.charAt(i);
+
+			switch(c) {
+			case '&':
+				write("&amp;");
+				break;
+			case '<':
+				write("&lt;");
+				break;
+			case '>':
+				write("&gt;");
+				break;
+			case '"':
+				if(isAttribute) {
+					write("&quot;");
+				} else {
+					write(c);
+				}
+				break;
+			case '\t':
+			case '\n':
+			case '\r':
+				write(c);
+				break;
+			default:
+				// control characters are not permitted in XML 1.0
+				if(c >= 0x20 && c != 0xFFFE && c != 0xFFFF) {
+					write(c);
+				}
+			}
+		}
+	}
+
+	private void write(String text) throws IOException {
+
+		int length = text.length();
+
+		if(length > buffer.length - position) {
+			flushBuffer();
+
+			if(length > buffer.length) {
+				writer.write(text);
+				hasWritten = true;
+				return;
+			}
+		}
+
+		text.getChars(0, length, buffer, position);
+		position += length;
+		hasWritten = true;
+	}
+
+	private void write(char c) throws IOException {
+
+		if(position == buffer.length) {
+			flushBuffer();
+		}
+
+		buffer[position++] = c;
+		hasWritten = true;
+	}
+
+	private void flushBuffer() throws IOException {
+
+		if(position > 0) {
+			writer.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
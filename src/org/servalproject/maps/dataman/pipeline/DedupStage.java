@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.LongPairHashSet;
+
+/**
+ * a stage that removes duplicate elements, such as those found when the
+ * files collected from several peers on the mesh are combined
+ * 
+ * elements are duplicates when they have the same device, time, latitude
+ * and longitude, to keep memory use low the elements themselves aren't kept, 
+ * instead two independent 64 bit hashes of these values are kept for each
+ * element, so two different elements are only treated as duplicates if both
+ * of their hashes are the same, which for n elements has a chance of about
+ * n^2 / 2^129
+ */
+public class DedupStage extends TraceStage {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME  = 0x100000001B3L;
+	
+	// a different starting value gives a second hash of the device that is independent of the first
+	private static final long SECOND_OFFSET = 0x84222325CBF29CE4L;
+	
+	/*
+	 * private class level variables
+	 */
+	private LongPairHashSet seen = new LongPairHashSet();
+	private long            duplicates = 0;
+	
+	// the hashes of the device id of the previous element, which is usually the same
+	private String          lastDevice;
+	private long            lastDeviceHash;
+	private long            lastDeviceSecondHash;
+	
+	/**
+	 * create a new stage
+	 * 
+	 * @param source the upstream source of elements
+	 */
+	public DedupStage(TraceSource source) {
+		super(source);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(source.next(element)) {
+			
+			hashDevice(element.getDeviceId());
+			
+			try {
+				if(seen.add(hash(element), secondHash(element))) {
+					return true;
+				}
+			} catch (IllegalStateException e) {
+				throw new TaskException("too many different locations to remove the duplicates", e);
+			}
+			
+			duplicates++;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * get the number of duplicate elements that have been removed
+	 * 
+	 * @return the number of duplicate elements
+	 */
+	public long getDuplicateCount() {
+		return duplicates;
+	}
+	
+	// hash the device id of an element, unless it is the same as the previous element
+	private void hashDevice(String device) {
+		
+		if(device.equals(lastDevice)) {
+			return;
+		}
+		
+		long hash = FNV_OFFSET;
+		long secondHash = SECOND_OFFSET;
+		
+		for(int i = 0; i < device.length(); i++) {
+			hash ^= device.charAt(i);
+			hash *= FNV_PRIME;
+			secondHash ^= device.charAt(i);
+			secondHash *= FNV_PRIME;
+		}
+		
+		lastDevice = device;
+		lastDeviceHash = hash;
+		lastDeviceSecondHash = secondHash;
+	}
+	
+	// hash the values that identify an element
+	private long hash(GpsTraceElement element) {
+		
+		long hash = lastDeviceHash;
+		hash = mix(hash ^ element.getTimestamp());
+		hash = mix(hash ^ Double.doubleToLongBits(element.getLatitude()));
+		hash = mix(hash ^ Double.doubleToLongBits(element.getLongitude()));
+		
+		return hash;
+	}
+	
+	// hash the values that identify an element in a different order with a different mixing function
+	private long secondHash(GpsTraceElement element) {
+		
+		long hash = lastDeviceSecondHash;
+		hash = mixSecond(hash + Double.doubleToLongBits(element.getLongitude()));
+		hash = mixSecond(hash + Double.doubleToLongBits(element.getLatitude()));
+		hash = mixSecond(hash + element.getTimestamp());
+		
+		return hash;
+	}
+	
+	// the finalisation step of MurmurHash3, which spreads every input bit over the whole value
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB9FE1A85EC53L;
+		value ^= value >>> 33;
+		return value;
+	}
+	
+	// the finalisation step of SplitMix64, which uses different shifts and multipliers to mix
+	private static long mixSecond(long value) {
+		value ^= value >>> 30;
+		value *= 0xBF58476D1CE4E5B9L;
+		value ^= value >>> 27;
+		value *= 0x94D049BB133111EBL;
+		value ^= value >>> 31;
+		return value;
+	}
+}
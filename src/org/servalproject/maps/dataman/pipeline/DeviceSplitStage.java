@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.servalproject.maps.dataman.builders.BinaryLocationWriter;
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.readers.BinaryLocationReader;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.TraceBuffer;
+
+/**
+ * a stage that groups the elements recorded by each device together so 
+ * that interleaved traces from many devices can be written separately
+ * 
+ * elements are assigned to a partition by a hash of the device id, when
+ * more elements are held in memory than the memory limit allows the 
+ * largest partition is spilled to a temporary file, the partitions are
+ * then read back one at a time with the elements of each device returned
+ * together in the order they were read from the source
+ * 
+ * partitions held in memory are grouped in memory, spilled partitions are 
+ * streamed back through a sort by device so that a device with more elements
+ * than the memory limit is never held in memory as a whole
+ */
+public class DeviceSplitStage extends TraceStage {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the default number of partitions
+	 */
+	public static final int DEFAULT_PARTITIONS = 64;
+	
+	/**
+	 * the default number of elements held in memory before partitions are spilled to disk
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 1000000;
+	
+	/*
+	 * private class level variables
+	 */
+	private int                    memoryLimit;
+	private int                    bufferedCount = 0;
+	
+	private TraceBuffer[]          partitions;
+	private File[]                 spillFiles;
+	private BinaryLocationWriter[] spillWriters;
+	
+	private boolean                isPartitioned = false;
+	private int                    currentPartition = -1;
+	private ArrayList<TraceBuffer> devices;
+	private int                    deviceIndex = 0;
+	private int                    elementIndex = 0;
+	private SortStage              spilled;
+	
+	/**
+	 * create a new stage using the default number of partitions and memory limit
+	 * 
+	 * @param source the upstream source of elements
+	 */
+	public DeviceSplitStage(TraceSource source) {
+		this(source, DEFAULT_PARTITIONS, DEFAULT_MEMORY_LIMIT);
+	}
+	
+	/**
+	 * create a new stage
+	 * 
+	 * @param source the upstream source of elements
+	 * @param partitionCount the number of partitions the devices are hashed into
+	 * @param memoryLimit the number of elements held in memory before partitions are spilled to disk
+	 */
+	public DeviceSplitStage(TraceSource source, int partitionCount, int memoryLimit) {
+		super(source);
+		
+		if(partitionCount < 1) {
+			throw new IllegalArgumentException("the partitionCount parameter must be > 0");
+		}
+		
+		if(memoryLimit < 1) {
+			throw new IllegalArgumentException("the memoryLimit parameter must be > 0");
+		}
+		
+		this.memoryLimit = memoryLimit;
+		
+		partitions = new TraceBuffer[partitionCount];
+		spillFiles = new File[partitionCount];
+		spillWriters = new BinaryLocationWriter[partitionCount];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		if(isPartitioned == false) {
+			partition();
+			isPartitioned = true;
+		}
+		
+		while(true) {
+			
+			if(spilled != null) {
+				
+				if(spilled.next(element)) {
+					return true;
+				}
+				
+				closeSpilled();
+				continue;
+			}
+			
+			if(devices != null && deviceIndex < devices.size()) {
+				
+				TraceBuffer device = devices.get(deviceIndex);
+				
+				if(elementIndex < device.size()) {
+					device.get(elementIndex++, element);
+					return true;
+				}
+				
+				// move on to the next device
+				devices.set(deviceIndex, null);
+				deviceIndex++;
+				elementIndex = 0;
+				continue;
+			}
+			
+			if(currentPartition + 1 >= partitions.length) {
+				devices = null;
+				return false;
+			}
+			
+			loadPartition(++currentPartition);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceStage#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		try {
+			if(spilled != null) {
+				closeSpilled();
+			}
+		} finally {
+			// tidy up any temporary files that haven't been read
+			for(int i = 0; i < spillFiles.length; i++) {
+				
+				if(spillWriters[i] != null) {
+					try {
+						spillWriters[i].close();
+					} catch (BuildException e) {
+						
+					}
+					spillWriters[i] = null;
+				}
+				
+				if(spillFiles[i] != null) {
+					spillFiles[i].delete();
+					spillFiles[i] = null;
+				}
+			}
+		}
+		
+		super.close();
+	}
+	
+	// read all of the elements from the source into the partitions
+	private void partition() throws TaskException {
+		
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		try {
+			while(source.next(element)) {
+				
+				int partition = (element.getDeviceId().hashCode() & 0x7FFFFFFF) % partitions.length;
+				
+				if(partitions[partition] == null) {
+					partitions[partition] = new TraceBuffer();
+				}
+				
+				partitions[partition].add(element);
+				bufferedCount++;
+				
+				if(bufferedCount > memoryLimit) {
+					spillLargestPartition();
+				}
+			}
+			
+			// a partition that has been spilled is read back from its file
+			// so the rest of its elements are added to the file as well
+			for(int i = 0; i < spillWriters.length; i++) {
+				if(spillWriters[i] != null) {
+					spillPartition(i);
+					spillWriters[i].close();
+					spillWriters[i] = null;
+				}
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to write a temporary partition file", e);
+		}
+	}
+	
+	// write the partition with the most elements to its temporary file
+	private void spillLargestPartition() throws TaskException, BuildException {
+		
+		int largest = 0;
+		
+		for(int i = 1; i < partitions.length; i++) {
+			if(partitions[i] != null && (partitions[largest] == null || partitions[i].size() > partitions[largest].size())) {
+				largest = i;
+			}
+		}
+		
+		spillPartition(largest);
+	}
+	
+	// write the elements of a partition held in memory to its temporary file
+	private void spillPartition(int index) throws TaskException, BuildException {
+		
+		if(partitions[index] == null) {
+			return;
+		}
+		
+		if(spillWriters[index] == null) {
+			try {
+				spillFiles[index] = File.createTempFile("partition", ".smapl");
+			} catch (IOException e) {
+				throw new TaskException("unable to create a temporary partition file", e);
+			}
+			
+			spillWriters[index] = new BinaryLocationWriter(spillFiles[index], false);
+		}
+		
+		TraceBuffer partition = partitions[index];
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		for(int i = 0; i < partition.size(); i++) {
+			partition.get(i, element);
+			spillWriters[index].write(element);
+		}
+		
+		bufferedCount -= partition.size();
+		
+		// clearing the buffer would keep its arrays at their largest size, so a 
+		// new buffer is started when more elements arrive for the partition
+		partitions[index] = null;
+	}
+	
+	// group the elements of a partition by device
+	private void loadPartition(int partition) throws TaskException {
+		
+		devices = null;
+		
+		// all of the elements of a spilled partition are in its file, a stable
+		// sort by device keeps the elements of each device in the order they were read
+		if(spillFiles[partition] != null) {
+			partitions[partition] = null;
+			spilled = new SortStage(new BinaryLocationReader(spillFiles[partition]), memoryLimit);
+			spilled.setSortByTime(false);
+			return;
+		}
+		
+		LinkedHashMap<String, TraceBuffer> groups = new LinkedHashMap<String, TraceBuffer>();
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		if(partitions[partition] != null) {
+			
+			TraceBuffer buffer = partitions[partition];
+			partitions[partition] = null;
+			
+			for(int i = 0; i < buffer.size(); i++) {
+				buffer.get(i, element);
+				addToGroup(groups, element);
+			}
+			
+			bufferedCount -= buffer.size();
+		}
+		
+		devices = new ArrayList<TraceBuffer>(groups.values());
+		deviceIndex = 0;
+		elementIndex = 0;
+	}
+	
+	// close the sort of the spilled partition that has been read and delete its file
+	private void closeSpilled() throws TaskException {
+		
+		try {
+			spilled.close();
+		} finally {
+			spilled = null;
+			spillFiles[currentPartition].delete();
+			spillFiles[currentPartition] = null;
+		}
+	}
+	
+	private void addToGroup(LinkedHashMap<String, TraceBuffer> groups, GpsTraceElement element) {
+		
+		TraceBuffer group = groups.get(element.getDeviceId());
+		
+		if(group == null) {
+			group = new TraceBuffer();
+			groups.put(element.getDeviceId(), group);
+		}
+		
+		group.add(element);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.builders.JsonBuilder;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * a sink that writes GPS trace elements to a JSON builder
+ */
+public class JsonSink implements TraceSink {
+	
+	/*
+	 * private class level variables
+	 */
+	private JsonBuilder builder;
+	
+	/**
+	 * create a new sink that writes to the supplied JSON builder
+	 * 
+	 * @param builder the builder to write elements to
+	 */
+	public JsonSink(JsonBuilder builder) {
+		
+		if(builder == null) {
+			throw new IllegalArgumentException("the builder parameter is required");
+		}
+		
+		this.builder = builder;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#startTrace(java.lang.String)
+	 */
+	@Override
+	public void startTrace(String name) throws TaskException {
+		builder.startTrace(name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#addElement(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public void addElement(GpsTraceElement element) throws TaskException {
+		
+		try {
+			builder.addTraceElement(element);
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the JSON file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#endTrace()
+	 */
+	@Override
+	public void endTrace() throws TaskException {
+		
+		try {
+			builder.endTrace();
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the JSON file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		try {
+			builder.close();
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the JSON file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#abort()
+	 */
+	@Override
+	public void abort() throws TaskException {
+		
+		try {
+			builder.abort();
+		} catch (BuildException e) {
+			throw new TaskException("unable to close the JSON file", e);
+		}
+	}
+}
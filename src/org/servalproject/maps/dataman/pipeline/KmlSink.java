@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.builders.KmlBuilder;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * a sink that writes GPS trace elements to a KML builder
+ */
+public class KmlSink implements TraceSink {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * write each trace as a single LineString
+	 */
+	public static final int BASIC_OUTPUT = 1;
+	
+	/**
+	 * write each pair of elements as a LineString with a TimeSpan
+	 */
+	public static final int TIME_SPAN_OUTPUT = 2;
+	
+	/**
+	 * write each trace as a single gx:Track with a time for each element
+	 */
+	public static final int TRACK_OUTPUT = 3;
+	
+	/*
+	 * private class level variables
+	 */
+	private KmlBuilder builder;
+	private int        outputType;
+	
+	/**
+	 * create a new sink that writes to the supplied KML builder
+	 * 
+	 * @param builder the builder to write elements to
+	 * @param outputType the way in which traces are written
+	 */
+	public KmlSink(KmlBuilder builder, int outputType) {
+		
+		if(builder == null) {
+			throw new IllegalArgumentException("the builder parameter is required");
+		}
+		
+		switch(outputType) {
+		case BASIC_OUTPUT:
+		case TIME_SPAN_OUTPUT:
+		case TRACK_OUTPUT:
+			break;
+		default:
+			throw new IllegalArgumentException("the provided output type is invalid");
+		}
+		
+		this.builder = builder;
+		this.outputType = outputType;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#startTrace(java.lang.String)
+	 */
+	@Override
+	public void startTrace(String name) throws TaskException {
+		
+		try {
+			switch(outputType) {
+			case TIME_SPAN_OUTPUT:
+				builder.startTimedTrace(name);
+				break;
+			case TRACK_OUTPUT:
+				builder.startTrack(name);
+				break;
+			default:
+				builder.startTrace(name);
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the KML file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#addElement(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public void addElement(GpsTraceElement element) throws TaskException {
+		
+		try {
+			switch(outputType) {
+			case TIME_SPAN_OUTPUT:
+				builder.addTimedTraceElement(element);
+				break;
+			case TRACK_OUTPUT:
+				builder.addTrackElement(element);
+				break;
+			default:
+				builder.addTraceElement(element);
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the KML file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#endTrace()
+	 */
+	@Override
+	public void endTrace() throws TaskException {
+		
+		try {
+			switch(outputType) {
+			case TIME_SPAN_OUTPUT:
+				builder.endTimedTrace();
+				break;
+			case TRACK_OUTPUT:
+				builder.endTrack();
+				break;
+			default:
+				builder.endTrace();
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the KML file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		try {
+			builder.close();
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the KML file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSink#abort()
+	 */
+	@Override
+	public void abort() throws TaskException {
+		
+		try {
+			builder.abort();
+		} catch (BuildException e) {
+			throw new TaskException("unable to close the KML file", e);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * drives GPS trace elements from a source, through any stages, into a sink
+ * 
+ * elements are passed along one at a time so the memory used does not
+ * depend on the number of elements unless a stage needs to buffer them
+ */
+public class Pipeline {
+	
+	/*
+	 * private class level variables
+	 */
+	private TraceSource source;
+	private TraceSink   sink;
+	private boolean     splitByDevice = false;
+	
+	/**
+	 * create a new pipeline 
+	 * 
+	 * @param source the source of elements, including any stages
+	 * @param sink the destination of the elements
+	 */
+	public Pipeline(TraceSource source, TraceSink sink) {
+		
+		if(source == null) {
+			throw new IllegalArgumentException("the source parameter is required");
+		}
+		
+		if(sink == null) {
+			throw new IllegalArgumentException("the sink parameter is required");
+		}
+		
+		this.source = source;
+		this.sink = sink;
+	}
+	
+	/**
+	 * start a new trace in the sink, named after the device, whenever 
+	 * the device that recorded the elements changes
+	 * 
+	 * @param splitByDevice if true elements from different devices are written as separate traces
+	 */
+	public void setSplitByDevice(boolean splitByDevice) {
+		this.splitByDevice = splitByDevice;
+	}
+	
+	/**
+	 * read all of the elements from the source and write them to the sink
+	 * as a single trace, or a trace per device, closing both the source and the sink
+	 * 
+	 * if an error occurs the sink is aborted rather than closed so that
+	 * the output isn't finished
+	 * 
+	 * @return the number of elements written to the sink
+	 * @throws TaskException if an error occurs in the source, a stage or the sink
+	 */
+	public long run() throws TaskException {
+		
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		long count = 0;
+		boolean completed = false;
+		
+		String device = null;
+		
+		try {
+			if(splitByDevice == false) {
+				sink.startTrace(null);
+			}
+			
+			while(source.next(element) == true) {
+				
+				if(splitByDevice && (device == null || device.equals(element.getDeviceId()) == false)) {
+					
+					if(device != null) {
+						sink.endTrace();
+					}
+					
+					device = element.getDeviceId();
+					sink.startTrace(device);
+				}
+				
+				sink.addElement(element);
+				count++;
+			}
+			
+			if(splitByDevice == false || device != null) {
+				sink.endTrace();
+			}
+			
+			completed = true;
+			
+		} finally {
+			
+			// make sure resources are released if something went wrong
+			// without hiding the original exception
+			if(completed == false) {
+				try {
+					source.close();
+				} catch (TaskException e) {
+					
+				}
+				
+				try {
+					sink.abort();
+				} catch (TaskException e) {
+					
+				}
+			}
+		}
+		
+		// a source that fails as it is closed may not have returned all of its 
+		// elements, so the sink is aborted rather than left open
+		try {
+			source.close();
+		} catch (TaskException e) {
+			try {
+				sink.abort();
+			} catch (TaskException ignored) {
+				
+			}
+			
+			throw e;
+		}
+		
+		sink.close();
+		
+		return count;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.PoiElement;
+
+/**
+ * a source of points of interest that are read one at a time
+ */
+public interface PoiSource {
+	
+	/**
+	 * read the next point of interest from the source
+	 * 
+	 * the values of the next point of interest are copied into the supplied 
+	 * element so that a single element object can be reused
+	 * 
+	 * @param element the element to populate with the values of the next point of interest
+	 * @return true if a point of interest was read, false if there are no more
+	 * @throws TaskException if the next point of interest cannot be read
+	 */
+	public boolean next(PoiElement element) throws TaskException;
+	
+	/**
+	 * close the source and release any resources that it uses
+	 * 
+	 * @throws TaskException if the source cannot be closed
+	 */
+	public void close() throws TaskException;
+
+}
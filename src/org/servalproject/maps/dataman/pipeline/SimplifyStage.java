@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.TraceBuffer;
+
+/**
+ * a stage that simplifies a trace using the Douglas-Peucker algorithm, 
+ * removing elements that are within a tolerance of the line between
+ * the elements that are kept
+ * 
+ * the trace is simplified in windows of a fixed number of elements so the
+ * whole trace is never held in memory, the last element of each window is
+ * always kept and becomes the first element of the next window, large 
+ * windows are simplified in parallel
+ * 
+ * a window also ends whenever the device that recorded the elements changes
+ * so that the traces of different devices are simplified separately, the
+ * elements of each device need to be grouped together, for example by a
+ * sort or device split stage, for anything to be simplified
+ */
+public class SimplifyStage extends TraceStage {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the default number of elements in a window
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 100000;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final double EARTH_RADIUS = 6371008.8;
+	
+	// sections of a window smaller than this are simplified sequentially
+	private static final int PARALLEL_THRESHOLD = 8192;
+	
+	/*
+	 * private class level variables
+	 */
+	private double       tolerance;
+	private int          windowSize;
+	private ForkJoinPool pool;
+	
+	private TraceBuffer  window;
+	private boolean[]    keep;
+	private int          emitIndex = 0;
+	private int          emitEnd = 0;
+	private boolean      sourceDone = false;
+	private boolean      carryLast = false;
+	
+	// the first element of the next device's trace
+	private GpsTraceElement pending = new GpsTraceElement(0, 0, 0);
+	private boolean         hasPending = false;
+	
+	private GpsTraceElement scratch = new GpsTraceElement(0, 0, 0);
+	
+	/**
+	 * create a new stage that simplifies the trace read from the source
+	 * 
+	 * @param source the upstream source of elements
+	 * @param tolerance the maximum distance in metres of a removed element from the simplified trace
+	 */
+	public SimplifyStage(TraceSource source, double tolerance) {
+		this(source, tolerance, DEFAULT_WINDOW_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * create a new stage that simplifies the trace read from the source
+	 * 
+	 * @param source the upstream source of elements
+	 * @param tolerance the maximum distance in metres of a removed element from the simplified trace
+	 * @param windowSize the number of elements simplified at a time
+	 * @param parallelism the number of threads used to simplify a window, 1 to simplify sequentially
+	 */
+	public SimplifyStage(TraceSource source, double tolerance, int windowSize, int parallelism) {
+		super(source);
+		
+		if(tolerance < 0 || Double.isNaN(tolerance)) {
+			throw new IllegalArgumentException("the tolerance parameter must be >= 0");
+		}
+		
+		if(windowSize < 2) {
+			throw new IllegalArgumentException("the windowSize parameter must be > 1");
+		}
+		
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("the parallelism parameter must be > 0");
+		}
+		
+		this.tolerance = tolerance;
+		this.windowSize = windowSize;
+		
+		if(parallelism > 1 && windowSize > PARALLEL_THRESHOLD) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		
+		window = new TraceBuffer(windowSize);
+		keep = new boolean[windowSize];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(true) {
+			
+			while(emitIndex < emitEnd) {
+				int index = emitIndex++;
+				
+				if(keep[index]) {
+					window.get(index, element);
+					return true;
+				}
+			}
+			
+			if(sourceDone) {
+				return false;
+			}
+			
+			fillWindow();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceStage#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		if(pool != null) {
+			pool.shutdown();
+		}
+		
+		super.close();
+	}
+	
+	// read the next window of elements and simplify it
+	private void fillWindow() throws TaskException {
+		
+		// the last element of the previous window starts the next window
+		// unless the previous window ended the trace of a device
+		if(carryLast) {
+			window.get(window.size() - 1, scratch);
+			window.clear();
+			window.add(scratch);
+		} else {
+			window.clear();
+		}
+		
+		if(hasPending) {
+			window.add(pending);
+			hasPending = false;
+		}
+		
+		boolean endsTrace = false;
+		
+		while(window.size() < windowSize && source.next(scratch)) {
+			
+			if(window.size() > 0 && window.getDeviceId(0).equals(scratch.getDeviceId()) == false) {
+				pending.copyFrom(scratch);
+				hasPending = true;
+				endsTrace = true;
+				break;
+			}
+			
+			window.add(scratch);
+		}
+		
+		if(endsTrace == false && window.size() < windowSize) {
+			sourceDone = true;
+		}
+		
+		int size = window.size();
+		
+		Arrays.fill(keep, 0, size, false);
+		
+		if(size > 0) {
+			keep[0] = true;
+			keep[size - 1] = true;
+		}
+		
+		if(size > 2) {
+			if(pool != null && size > PARALLEL_THRESHOLD) {
+				pool.invoke(new SimplifySection(0, size - 1));
+			} else {
+				simplify(0, size - 1);
+			}
+		}
+		
+		// the last element is emitted as the start of the next window
+		carryLast = (sourceDone == false && endsTrace == false);
+		emitIndex = 0;
+		emitEnd = carryLast ? size - 1 : size;
+	}
+	
+	// simplify the section of the window between two elements that are kept
+	private void simplify(int first, int last) {
+		
+		// use an explicit stack to avoid deep recursion on long sections
+		int[] stack = new int[64];
+		int top = 0;
+		
+		stack[top++] = first;
+		stack[top++] = last;
+		
+		while(top > 0) {
+			
+			int end = stack[--top];
+			int start = stack[--top];
+			
+			int farthest = findFarthest(start, end);
+			
+			if(farthest < 0) {
+				continue;
+			}
+			
+			keep[farthest] = true;
+			
+			if(top + 4 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			
+			stack[top++] = start;
+			stack[top++] = farthest;
+			stack[top++] = farthest;
+			stack[top++] = end;
+		}
+	}
+	
+	// find the element farthest from the line between two elements, 
+	// returning -1 if no element is further away than the tolerance 
+	private int findFarthest(int start, int end) {
+		
+		if(end - start < 2) {
+			return -1;
+		}
+		
+		// project the coordinates onto a plane in metres centred on the start
+		double startLatitude = window.getLatitude(start);
+		double startLongitude = window.getLongitude(start);
+		double scaleX = Math.toRadians(1) * EARTH_RADIUS * Math.cos(Math.toRadians(startLatitude));
+		double scaleY = Math.toRadians(1) * EARTH_RADIUS;
+		
+		double endX = longitudeDifference(window.getLongitude(end), startLongitude) * scaleX;
+		double endY = (window.getLatitude(end) - startLatitude) * scaleY;
+		double lengthSquared = endX * endX + endY * endY;
+		
+		double maxDistanceSquared = tolerance * tolerance;
+		int farthest = -1;
+		
+		for(int i = start + 1; i < end; i++) {
+			
+			double x = longitudeDifference(window.getLongitude(i), startLongitude) * scaleX;
+			double y = (window.getLatitude(i) - startLatitude) * scaleY;
+			
+			// distance to the closest point on the segment
+			double t = lengthSquared == 0 ? 0 : (x * endX + y * endY) / lengthSquared;
+			
+			if(t < 0) {
+				t = 0;
+			} else if(t > 1) {
+				t = 1;
+			}
+			
+			double dx = x - t * endX;
+			double dy = y - t * endY;
+			double distanceSquared = dx * dx + dy * dy;
+			
+			if(distanceSquared > maxDistanceSquared) {
+				maxDistanceSquared = distanceSquared;
+				farthest = i;
+			}
+		}
+		
+		return farthest;
+	}
+	
+	// difference between two longitudes taking the antimeridian into account
+	private static double longitudeDifference(double longitude, double origin) {
+		
+		double difference = longitude - origin;
+		
+		if(difference > 180) {
+			difference -= 360;
+		} else if(difference < -180) {
+			difference += 360;
+		}
+		
+		return difference;
+	}
+	
+	/*
+	 * simplify a section of the window, splitting large sections 
+	 * into two sections that are simplified in parallel
+	 */
+	private class SimplifySection extends RecursiveAction {
+		
+		private static final long serialVersionUID = -3630920373186232826L;
+		
+		private int first;
+		private int last;
+		
+		SimplifySection(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			
+			if(last - first <= PARALLEL_THRESHOLD) {
+				simplify(first, last);
+				return;
+			}
+			
+			int farthest = findFarthest(first, last);
+			
+			if(farthest < 0) {
+				return;
+			}
+			
+			// each section only marks elements between its own end points
+			keep[farthest] = true;
+			
+			invokeAll(new SimplifySection(first, farthest), new SimplifySection(farthest, last));
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.servalproject.maps.dataman.builders.BinaryLocationWriter;
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.readers.BinaryLocationReader;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.TraceBuffer;
+
+/**
+ * a stage that sorts elements by device and then by time, so that 
+ * locations that arrived out of order are written in the order they were recorded
+ * 
+ * when the source fits within the memory limit the elements are sorted in memory,
+ * otherwise sorted runs of elements are written to temporary files and merged, 
+ * when there are more runs than can be opened at once groups of runs are 
+ * first merged into longer runs
+ * 
+ * the sort is stable, elements with the same device and time are returned in the
+ * order they were read from the source, so sorting by device alone groups the 
+ * elements of each device together without reordering them
+ */
+public class SortStage extends TraceStage {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the default number of elements held in memory before a sorted run is written to disk
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 1000000;
+	
+	/**
+	 * the approximate number of bytes of memory used by each element held in memory
+	 */
+	public static final int BYTES_PER_ELEMENT = 48;
+	
+	/**
+	 * the maximum number of run files that are open at the same time while merging
+	 */
+	public static final int MAX_MERGE_WIDTH = 64;
+	
+	/*
+	 * private class level variables
+	 */
+	private int             memoryLimit;
+	
+	private TraceBuffer     buffer = new TraceBuffer();
+	private int[]           order;
+	private int             emitIndex = 0;
+	
+	private ArrayList<File> runFiles = new ArrayList<File>();
+	private PriorityQueue<Run> runs;
+	
+	private boolean         isSorted = false;
+	private boolean         sortByTime = true;
+	
+	/**
+	 * create a new stage using the default memory limit
+	 * 
+	 * @param source the upstream source of elements
+	 */
+	public SortStage(TraceSource source) {
+		this(source, DEFAULT_MEMORY_LIMIT);
+	}
+	
+	/**
+	 * create a new stage
+	 * 
+	 * @param source the upstream source of elements
+	 * @param memoryLimit the number of elements held in memory before a sorted run is written to disk
+	 */
+	public SortStage(TraceSource source, int memoryLimit) {
+		super(source);
+		
+		if(memoryLimit < 1) {
+			throw new IllegalArgumentException("the memoryLimit parameter must be > 0");
+		}
+		
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * set if the elements of each device are sorted by time, this must be set
+	 * before the first element is read
+	 * 
+	 * @param sortByTime if false the elements are only sorted by device
+	 */
+	public void setSortByTime(boolean sortByTime) {
+		this.sortByTime = sortByTime;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		if(isSorted == false) {
+			sort();
+			isSorted = true;
+		}
+		
+		// return the elements sorted in memory
+		if(runs == null) {
+			
+			if(emitIndex < order.length) {
+				buffer.get(order[emitIndex++], element);
+				return true;
+			}
+			
+			return false;
+		}
+		
+		// return the next element of the run with the earliest element
+		Run run = runs.poll();
+		
+		if(run == null) {
+			return false;
+		}
+		
+		element.copyFrom(run.element);
+		
+		if(run.advance()) {
+			runs.add(run);
+		} else {
+			run.close();
+		}
+		
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceStage#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		try {
+			if(runs != null) {
+				while(runs.isEmpty() == false) {
+					runs.poll().close();
+				}
+			}
+		} finally {
+			// the temporary files are deleted even if a run cannot be closed
+			for(File runFile : runFiles) {
+				runFile.delete();
+			}
+			
+			runFiles.clear();
+		}
+		
+		super.close();
+	}
+	
+	// read all of the elements from the source, writing sorted runs if required
+	private void sort() throws TaskException {
+		
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		while(source.next(element)) {
+			
+			buffer.add(element);
+			
+			if(buffer.size() >= memoryLimit) {
+				writeRun();
+			}
+		}
+		
+		if(runFiles.isEmpty()) {
+			order = sortBuffer(buffer, sortByTime);
+			return;
+		}
+		
+		if(buffer.size() > 0) {
+			writeRun();
+		}
+		
+		buffer = null;
+		
+		// merge groups of runs until few enough remain to be merged directly, 
+		// neighbouring runs are merged so that the sort stays stable
+		List<File> level = new ArrayList<File>(runFiles);
+		
+		while(level.size() > MAX_MERGE_WIDTH) {
+			
+			List<File> merged = new ArrayList<File>();
+			
+			for(int i = 0; i < level.size(); i += MAX_MERGE_WIDTH) {
+				
+				List<File> group = level.subList(i, Math.min(i + MAX_MERGE_WIDTH, level.size()));
+				File mergedFile = createRunFile();
+				
+				merged.add(mergedFile);
+				mergeRuns(group, mergedFile);
+				
+				// the runs that have been merged are no longer needed
+				for(File runFile : group) {
+					runFile.delete();
+					runFiles.remove(runFile);
+				}
+			}
+			
+			level = merged;
+		}
+		
+		runs = openRuns(level);
+	}
+	
+	// open the runs in a list of files ready to be merged
+	private PriorityQueue<Run> openRuns(List<File> files) throws TaskException {
+		
+		PriorityQueue<Run> opened = new PriorityQueue<Run>(Math.max(1, files.size()));
+		
+		try {
+			for(int i = 0; i < files.size(); i++) {
+				
+				Run run = new Run(files.get(i), i, sortByTime);
+				
+				if(run.advance()) {
+					opened.add(run);
+				} else {
+					run.close();
+				}
+			}
+		} catch (TaskException e) {
+			closeRuns(opened);
+			throw e;
+		}
+		
+		return opened;
+	}
+	
+	// merge a group of runs into a single longer run
+	private void mergeRuns(List<File> group, File output) throws TaskException {
+		
+		PriorityQueue<Run> merging = openRuns(group);
+		
+		try {
+			BinaryLocationWriter writer = new BinaryLocationWriter(output, false);
+			
+			try {
+				Run run;
+				
+				while((run = merging.poll()) != null) {
+					
+					writer.write(run.element);
+					
+					if(run.advance()) {
+						merging.add(run);
+					} else {
+						run.close();
+					}
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to write a temporary sort file", e);
+		} finally {
+			closeRuns(merging);
+		}
+	}
+	
+	// close any runs that are still open without hiding the original exception
+	private static void closeRuns(PriorityQueue<Run> open) {
+		
+		while(open.isEmpty() == false) {
+			try {
+				open.poll().close();
+			} catch (TaskException e) {
+				
+			}
+		}
+	}
+	
+	// create a temporary file for a run, which is deleted when the stage is closed
+	private File createRunFile() throws TaskException {
+		
+		File runFile;
+		
+		try {
+			runFile = File.createTempFile("sortrun", ".smapl");
+		} catch (IOException e) {
+			throw new TaskException("unable to create a temporary sort file", e);
+		}
+		
+		runFiles.add(runFile);
+		
+		return runFile;
+	}
+	
+	// sort the elements held in memory and write them to a temporary file
+	private void writeRun() throws TaskException {
+		
+		int[] runOrder = sortBuffer(buffer, sortByTime);
+		File runFile = createRunFile();
+		
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		try {
+			BinaryLocationWriter writer = new BinaryLocationWriter(runFile, false);
+			
+			try {
+				for(int i = 0; i < runOrder.length; i++) {
+					buffer.get(runOrder[i], element);
+					writer.write(element);
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to write a temporary sort file", e);
+		}
+		
+		buffer.clear();
+	}
+	
+	/*
+	 * sort the indexes of the elements in a buffer using a merge sort,
+	 * which is stable and doesn't need the indexes to be boxed
+	 */
+	private static int[] sortBuffer(TraceBuffer buffer, boolean sortByTime) {
+		
+		int size = buffer.size();
+		
+		int[] order = new int[size];
+		int[] scratch = new int[size];
+		
+		for(int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		
+		// merge ever larger sorted sections until the whole array is sorted
+		for(int width = 1; width < size; width *= 2) {
+			
+			for(int low = 0; low < size; low += width * 2) {
+				
+				int middle = Math.min(low + width, size);
+				int high = Math.min(low + width * 2, size);
+				
+				int left = low;
+				int right = middle;
+				
+				for(int i = low; i < high; i++) {
+					if(left < middle && (right >= high || compare(buffer, order[left], order[right], sortByTime) <= 0)) {
+						scratch[i] = order[left++];
+					} else {
+						scratch[i] = order[right++];
+					}
+				}
+			}
+			
+			int[] swap = order;
+			order = scratch;
+			scratch = swap;
+		}
+		
+		return order;
+	}
+	
+	// compare two elements in a buffer by device and then by time if required
+	private static int compare(TraceBuffer buffer, int first, int second, boolean sortByTime) {
+		
+		String firstDevice = buffer.getDeviceId(first);
+		String secondDevice = buffer.getDeviceId(second);
+		
+		// device ids are shared by the buffer so most comparisons are of the same string
+		if(firstDevice != secondDevice) {
+			int result = firstDevice.compareTo(secondDevice);
+			
+			if(result != 0) {
+				return result;
+			}
+		}
+		
+		return sortByTime ? compare(buffer.getTimestamp(first), buffer.getTimestamp(second)) : 0;
+	}
+	
+	private static int compare(long first, long second) {
+		return first < second ? -1 : (first == second ? 0 : 1);
+	}
+	
+	/*
+	 * a sorted run of elements being read back from a temporary file
+	 */
+	private static class Run implements Comparable<Run> {
+		
+		private BinaryLocationReader reader;
+		private int                  index;
+		private boolean              sortByTime;
+		private GpsTraceElement      element = new GpsTraceElement(0, 0, 0);
+		
+		public Run(File runFile, int index, boolean sortByTime) throws TaskException {
+			this.reader = new BinaryLocationReader(runFile);
+			this.index = index;
+			this.sortByTime = sortByTime;
+		}
+		
+		// read the next element in the run
+		public boolean advance() throws TaskException {
+			return reader.next(element);
+		}
+		
+		public void close() throws TaskException {
+			reader.close();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Run other) {
+			
+			int result = element.getDeviceId().compareTo(other.element.getDeviceId());
+			
+			if(result == 0 && sortByTime) {
+				result = SortStage.compare(element.getTimestamp(), other.element.getTimestamp());
+			}
+			
+			// earlier runs hold earlier elements from the source
+			if(result == 0) {
+				result = SortStage.compare(index, other.index);
+			}
+			
+			return result;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * a destination for GPS trace elements that are written one at a time
+ */
+public interface TraceSink {
+	
+	/**
+	 * start a new trace
+	 * 
+	 * @param name the name of the trace, may be null
+	 * @throws TaskException if the trace cannot be started
+	 */
+	public void startTrace(String name) throws TaskException;
+	
+	/**
+	 * add an element to the current trace
+	 * 
+	 * the element may be reused by the caller once this method returns
+	 * so any values that are needed later must be copied
+	 * 
+	 * @param element the element to add
+	 * @throws TaskException if the element cannot be added
+	 */
+	public void addElement(GpsTraceElement element) throws TaskException;
+	
+	/**
+	 * end the current trace
+	 * 
+	 * @throws TaskException if the trace cannot be ended
+	 */
+	public void endTrace() throws TaskException;
+	
+	/**
+	 * finish the output and release any resources that the sink uses
+	 * 
+	 * @throws TaskException if the sink cannot be closed
+	 */
+	public void close() throws TaskException;
+	
+	/**
+	 * release any resources that the sink uses without finishing the output,
+	 * so that incomplete output isn't mistaken for complete output
+	 * 
+	 * @throws TaskException if the sink cannot be closed
+	 */
+	public void abort() throws TaskException;
+
+}
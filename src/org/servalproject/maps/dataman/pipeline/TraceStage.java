@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.pipeline;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+
+/**
+ * an optional stage between a source and a sink that manipulates 
+ * the elements that are read from an upstream source
+ */
+public abstract class TraceStage implements TraceSource {
+	
+	/*
+	 * protected class level variables
+	 */
+	protected TraceSource source;
+	
+	/**
+	 * create a new stage that reads elements from the supplied source
+	 * 
+	 * @param source the upstream source of elements
+	 */
+	protected TraceStage(TraceSource source) {
+		
+		if(source == null) {
+			throw new IllegalArgumentException("the source parameter is required");
+		}
+		
+		this.source = source;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		source.close();
+	}
+}
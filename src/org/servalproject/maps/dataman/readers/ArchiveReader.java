@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.servalproject.maps.dataman.builders.ArchiveWriter;
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * reads the locations in location archives, the format of an archive is
+ * described in the ArchiveWriter class
+ * 
+ * a whole block is decoded at once into its columns and the locations are
+ * then returned one at a time, the block index is used to skip the blocks
+ * that are entirely outside of a range of time or a bounding box, the files
+ * in a list are read one after another
+ */
+public class ArchiveReader implements TraceSource {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int INDEX_ENTRY_SIZE = 60;
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File>       inputFiles;
+	private int              nextFile = 0;
+	
+	private long             from = Long.MIN_VALUE;
+	private long             to = Long.MAX_VALUE;
+	private boolean          hasTimeRange = false;
+	private BoundingBox      box;
+	
+	private RandomAccessFile file;
+	private long[]           blockOffsets = new long[0];
+	private long             indexOffset = 0;
+	private int              nextBlock = 0;
+	private byte[]           buffer = new byte[0];
+	
+	// the current block
+	private int              count = 0;
+	private int              next = 0;
+	private String[]         phoneNumbers;
+	private String[]         subscriberIds;
+	private String[]         timezoneNames;
+	private int[]            devices = new int[ArchiveWriter.BLOCK_SIZE];
+	private int[]            timezones = new int[ArchiveWriter.BLOCK_SIZE];
+	private long[]           times = new long[ArchiveWriter.BLOCK_SIZE];
+	private long[]           latitudes = new long[ArchiveWriter.BLOCK_SIZE];
+	private long[]           longitudes = new long[ArchiveWriter.BLOCK_SIZE];
+	
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a location archive for reading
+	 * 
+	 * @param inputFile the location archive
+	 */
+	public ArchiveReader(File inputFile) {
+		this(inputFile == null ? null : Collections.singletonList(inputFile));
+	}
+	
+	/**
+	 * open a list of location archives, which are read one after another
+	 * 
+	 * @param inputFiles the list of location archives
+	 */
+	public ArchiveReader(List<File> inputFiles) {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the inputFiles parameter is required");
+		}
+		
+		this.inputFiles = inputFiles;
+	}
+	
+	/**
+	 * only read the locations in a range of time
+	 * 
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 */
+	public void setTimeRange(long from, long to) {
+		
+		if(from > to) {
+			throw new IllegalArgumentException("the start of the range must not be after the end");
+		}
+		
+		this.from = from;
+		this.to = to;
+		hasTimeRange = true;
+	}
+	
+	/**
+	 * only read the locations inside a bounding box
+	 * 
+	 * @param box the bounding box, or null to read the locations anywhere
+	 */
+	public void setBoundingBox(BoundingBox box) {
+		this.box = box;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(true) {
+			
+			// move on to the next block at the end of each block
+			while(next == count) {
+				
+				if(nextBlock == blockOffsets.length) {
+					
+					if(nextFile == inputFiles.size()) {
+						return false;
+					}
+					
+					close();
+					openNextFile();
+					continue;
+				}
+				
+				readBlock(nextBlock++);
+			}
+			
+			int i = next++;
+			
+			// the blocks that are read may contain locations outside of the range and the box
+			if(hasTimeRange && (times[i] < from || times[i] >= to)) {
+				continue;
+			}
+			
+			double latitude = latitudes[i] / ArchiveWriter.COORDINATE_SCALE;
+			double longitude = longitudes[i] / ArchiveWriter.COORDINATE_SCALE;
+			
+			if(box != null && box.contains(latitude, longitude) == false) {
+				continue;
+			}
+			
+			element.setPhoneNumber(phoneNumbers[devices[i]]);
+			element.setSubscriberId(subscriberIds[devices[i]]);
+			element.setTimezone(timezoneNames[timezones[i]]);
+			element.setLatitude(latitude);
+			element.setLongitude(longitude);
+			element.setTimestamp(times[i]);
+			
+			return true;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		if(file == null) {
+			return;
+		}
+		
+		// play nice and tidy up
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the archive", e);
+		} finally {
+			file = null;
+		}
+	}
+	
+	// open the next file in the list and find the blocks that need to be read
+	private void openNextFile() throws TaskException {
+		
+		File inputFile = inputFiles.get(nextFile++);
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + inputFile.getPath() + "'", e);
+		}
+		
+		try {
+			long length = file.length();
+			
+			if(length < 8 + ArchiveWriter.TRAILER_SIZE || file.readInt() != ArchiveWriter.MAGIC) {
+				throw new TaskException("the input file '" + inputFile.getPath() + "' is not a location archive");
+			}
+			
+			if(file.readInt() != ArchiveWriter.VERSION) {
+				throw new TaskException("the input file '" + inputFile.getPath() + "' is a version of location archive that is not supported");
+			}
+			
+			// an archive that wasn't closed doesn't have a trailer
+			file.seek(length - ArchiveWriter.TRAILER_SIZE);
+			
+			indexOffset = file.readLong();
+			int blockCount = file.readInt();
+			
+			if(file.readInt() != ArchiveWriter.MAGIC || blockCount < 0 || indexOffset < 8 || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE != length - ArchiveWriter.TRAILER_SIZE) {
+				throw new TaskException("the input file '" + inputFile.getPath() + "' is an incomplete location archive");
+			}
+			
+			// read the whole index at once
+			byte[] entries = new byte[blockCount * INDEX_ENTRY_SIZE];
+			file.seek(indexOffset);
+			file.readFully(entries);
+			
+			ByteBuffer index = ByteBuffer.wrap(entries);
+			
+			blockOffsets = new long[blockCount];
+			int selected = 0;
+			
+			for(int i = 0; i < blockCount; i++) {
+				
+				long offset = index.getLong();
+				index.getInt();
+				long earliest = index.getLong();
+				long latest = index.getLong();
+				long south = index.getLong();
+				long north = index.getLong();
+				long west = index.getLong();
+				long east = index.getLong();
+				
+				// every block is between the header and the block index
+				if(offset < 8 || offset >= indexOffset) {
+					throw new TaskException("the input file '" + inputFile.getPath() + "' has an index entry outside of the blocks");
+				}
+				
+				if(hasTimeRange && (latest < from || earliest >= to)) {
+					continue;
+				}
+				
+				if(box != null && overlaps(south, north, west, east) == false) {
+					continue;
+				}
+				
+				blockOffsets[selected++] = offset;
+			}
+			
+			blockOffsets = Arrays.copyOf(blockOffsets, selected);
+			nextBlock = 0;
+			
+		} catch (IOException e) {
+			close();
+			throw new TaskException("unable to read the index of the input file '" + inputFile.getPath() + "'", e);
+		} catch (TaskException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	// check if the range of coordinates of a block overlaps the bounding box
+	private boolean overlaps(long south, long north, long west, long east) {
+		
+		double scale = ArchiveWriter.COORDINATE_SCALE;
+		
+		if(north / scale < box.getSouth() || south / scale > box.getNorth()) {
+			return false;
+		}
+		
+		if(box.crossesMeridian()) {
+			return east / scale >= box.getWest() || west / scale <= box.getEast();
+		} else {
+			return east / scale >= box.getWest() && west / scale <= box.getEast();
+		}
+	}
+	
+	// read and decode a block into the columns
+	private void readBlock(int block) throws TaskException {
+		
+		try {
+			file.seek(blockOffsets[block]);
+			
+			// the length of the block is a varint
+			int length = 0;
+			int b;
+			
+			for(int shift = 0; ; shift += 7) {
+				
+				b = file.read();
+				
+				if(b < 0 || shift > 28) {
+					throw new InvalidProtocolBufferException("the archive contains a malformed block length");
+				}
+				
+				length |= (b & 0x7F) << shift;
+				
+				if((b & 0x80) == 0) {
+					break;
+				}
+			}
+			
+			// don't trust a length that goes past the blocks
+			if(length < 0 || length > indexOffset - file.getFilePointer()) {
+				throw new TaskException("the archive contains a block that is longer than the file");
+			}
+			
+			if(length > buffer.length) {
+				buffer = new byte[length];
+			}
+			
+			file.readFully(buffer, 0, length);
+			
+			decodeBlock(ByteBuffer.wrap(buffer, 0, length));
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read a block of the archive", e);
+		}
+	}
+	
+	// decode the dictionaries and columns of a block
+	private void decodeBlock(ByteBuffer block) throws IOException {
+		
+		count = MessageDecoder.readVarint32(block);
+		next = 0;
+		
+		if(count < 0 || count > ArchiveWriter.BLOCK_SIZE) {
+			throw new InvalidProtocolBufferException("the archive contains a block with too many locations");
+		}
+		
+		// the dictionaries
+		int deviceCount = MessageDecoder.readVarint32(block);
+		
+		// each device has at least the lengths of its two strings
+		if(deviceCount < 0 || deviceCount > block.remaining() / 2) {
+			throw new InvalidProtocolBufferException("the archive contains a block with too many devices");
+		}
+		
+		phoneNumbers = new String[deviceCount];
+		subscriberIds = new String[deviceCount];
+		
+		for(int i = 0; i < deviceCount; i++) {
+			phoneNumbers[i] = MessageDecoder.readString(block, strings);
+			subscriberIds[i] = MessageDecoder.readString(block, strings);
+		}
+		
+		int timezoneCount = MessageDecoder.readVarint32(block);
+		
+		// each time zone has at least the length of its string
+		if(timezoneCount < 0 || timezoneCount > block.remaining()) {
+			throw new InvalidProtocolBufferException("the archive contains a block with too many time zones");
+		}
+		
+		timezoneNames = new String[timezoneCount];
+		
+		for(int i = 0; i < timezoneCount; i++) {
+			timezoneNames[i] = MessageDecoder.readString(block, strings);
+		}
+		
+		// the columns
+		readNumberColumn(block, devices, deviceCount);
+		readNumberColumn(block, timezones, timezoneCount);
+		readDeltaColumn(block, times);
+		readDeltaColumn(block, latitudes);
+		readDeltaColumn(block, longitudes);
+	}
+	
+	// read a column of dictionary numbers
+	private void readNumberColumn(ByteBuffer block, int[] numbers, int dictionarySize) throws IOException {
+		
+		int encoding = MessageDecoder.readVarint32(block);
+		
+		if(encoding == ArchiveWriter.PLAIN_COLUMN) {
+			
+			for(int i = 0; i < count; i++) {
+				numbers[i] = MessageDecoder.readVarint32(block);
+			}
+			
+		} else if(encoding == ArchiveWriter.RUN_COLUMN) {
+			
+			int i = 0;
+			
+			while(i < count) {
+				
+				int number = MessageDecoder.readVarint32(block);
+				int run = MessageDecoder.readVarint32(block);
+				
+				if(run < 1 || run > count - i) {
+					throw new InvalidProtocolBufferException("the archive contains a malformed column");
+				}
+				
+				Arrays.fill(numbers, i, i + run, number);
+				i += run;
+			}
+			
+		} else {
+			throw new InvalidProtocolBufferException("the archive contains a column with an unknown encoding");
+		}
+		
+		// make sure the numbers can be looked up in the dictionary
+		for(int i = 0; i < count; i++) {
+			if(numbers[i] < 0 || numbers[i] >= dictionarySize) {
+				throw new InvalidProtocolBufferException("the archive contains a number that is not in the dictionary");
+			}
+		}
+	}
+	
+	// read a column of numbers stored as the difference from the previous number of the same device
+	private void readDeltaColumn(ByteBuffer block, long[] values) throws IOException {
+		
+		long[] previous = new long[phoneNumbers.length];
+		
+		for(int i = 0; i < count; i++) {
+			
+			long value = MessageDecoder.readVarint64(block);
+			long delta = (value >>> 1) ^ -(value & 1);
+			
+			values[i] = previous[devices[i]] + delta;
+			previous[devices[i]] = values[i];
+		}
+	}
+}
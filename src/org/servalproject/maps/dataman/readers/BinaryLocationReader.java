@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * reads the location messages in a binary location file one at a time
+ * 
+ * the messages are read from the file into a single large buffer that is 
+ * reused, and the fields of each message are decoded directly into the element 
+ * rather than building a new message object for every location
+ */
+public class BinaryLocationReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the size of the buffer used to read from the underlying stream
+	 */
+	public static final int BUFFER_SIZE = 65536;
+	
+	/*
+	 * private class level variables
+	 */
+	private MessageStream    messages;
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a binary location file for reading
+	 * 
+	 * @param inputFile the binary location file
+	 * @throws TaskException if the file cannot be opened
+	 */
+	public BinaryLocationReader(File inputFile) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		// open the input stream
+		try {
+			messages = new MessageStream(new FileInputStream(inputFile), BUFFER_SIZE);
+		} catch(FileNotFoundException e) {
+			throw new TaskException("unable to open the input file", e);
+		}
+	}
+	
+	/**
+	 * read binary location messages from a stream
+	 * 
+	 * @param inputStream the stream containing the location messages
+	 */
+	public BinaryLocationReader(InputStream inputStream) {
+		
+		if(inputStream == null) {
+			throw new IllegalArgumentException("the inputStream parameter is required");
+		}
+		
+		messages = new MessageStream(inputStream, BUFFER_SIZE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		try {
+			int length = messages.next();
+			
+			if(length < 0) {
+				return false;
+			}
+			
+			MessageDecoder.decodeLocation(messages.getBuffer(), length, element, strings);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		// play nice and tidy up
+		try {
+			messages.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.servalproject.maps.dataman.pipeline.PoiSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.PoiElement;
+
+/**
+ * reads the point of interest messages in binary POI files one at a time
+ * 
+ * as with the BinaryLocationReader the fields of each message are decoded
+ * directly into the element by the MessageDecoder rather than building a new 
+ * message object, the files in a list are read one after another
+ */
+public class BinaryPoiReader implements PoiSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the size of the buffer used to read from the underlying stream
+	 */
+	public static final int BUFFER_SIZE = 65536;
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File>       inputFiles;
+	private int              nextFile = 0;
+	
+	private MessageStream    messages;
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a binary POI file for reading
+	 * 
+	 * @param inputFile the binary POI file
+	 * @throws TaskException if the file cannot be opened
+	 */
+	public BinaryPoiReader(File inputFile) throws TaskException {
+		this(inputFile == null ? null : Collections.singletonList(inputFile));
+	}
+	
+	/**
+	 * open a list of binary POI files, which are read one after another
+	 * 
+	 * @param inputFiles the list of binary POI files
+	 * @throws TaskException if the first file cannot be opened
+	 */
+	public BinaryPoiReader(List<File> inputFiles) throws TaskException {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the inputFiles parameter is required");
+		}
+		
+		this.inputFiles = inputFiles;
+		openNextFile();
+	}
+	
+	/**
+	 * read binary POI messages from a stream
+	 * 
+	 * @param inputStream the stream containing the POI messages
+	 */
+	public BinaryPoiReader(InputStream inputStream) {
+		
+		if(inputStream == null) {
+			throw new IllegalArgumentException("the inputStream parameter is required");
+		}
+		
+		this.inputFiles = Collections.emptyList();
+		messages = new MessageStream(inputStream, BUFFER_SIZE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.PoiSource#next(org.servalproject.maps.dataman.types.PoiElement)
+	 */
+	@Override
+	public boolean next(PoiElement element) throws TaskException {
+		
+		try {
+			int length = messages.next();
+			
+			// move on to the next file at the end of each one
+			while(length < 0) {
+				
+				if(nextFile == inputFiles.size()) {
+					return false;
+				}
+				
+				close();
+				openNextFile();
+				
+				length = messages.next();
+			}
+			
+			MessageDecoder.decodePointOfInterest(messages.getBuffer(), length, element, strings);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.PoiSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		// play nice and tidy up
+		try {
+			messages.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+	
+	// open the next file in the list
+	private void openNextFile() throws TaskException {
+		
+		File inputFile = inputFiles.get(nextFile++);
+		
+		try {
+			messages = new MessageStream(new FileInputStream(inputFile), BUFFER_SIZE);
+		} catch(FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + inputFile.getPath() + "'", e);
+		}
+	}
+}
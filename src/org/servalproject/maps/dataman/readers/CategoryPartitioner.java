@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.protobuf.BinaryFileContract;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * splits binary POI files into a temporary binary POI file for each category
+ * 
+ * the messages are copied without being decoded, only the category field
+ * is read, so that the expensive work of converting the points of interest
+ * can be done for each category in parallel
+ * 
+ * the messages for each category are collected in memory and the largest
+ * collection is appended to its file whenever the memory limit is reached,
+ * so the number of categories doesn't affect the number of open files
+ */
+public class CategoryPartitioner {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the default number of bytes of messages kept in memory before some are written to a file
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int BUFFER_SIZE  = 65536;
+	private static final int INITIAL_PARTITION_SIZE = 4096;
+	private static final int MAX_VARINT32_SIZE = 5;
+	
+	/*
+	 * private class level variables
+	 */
+	private HashMap<Long, Partition> partitions = new HashMap<Long, Partition>();
+	private int  memoryLimit;
+	private long bufferedBytes = 0;
+	private long count = 0;
+	private BoundingBox box = null;
+	
+	/**
+	 * create a new partitioner with the default memory limit
+	 */
+	public CategoryPartitioner() {
+		this(DEFAULT_MEMORY_LIMIT);
+	}
+	
+	/**
+	 * create a new partitioner
+	 * 
+	 * @param memoryLimit the number of bytes of messages kept in memory before some are written to a file
+	 */
+	public CategoryPartitioner(int memoryLimit) {
+		
+		if(memoryLimit < 1) {
+			throw new IllegalArgumentException("the memoryLimit parameter must be > 0");
+		}
+		
+		this.memoryLimit = memoryLimit;
+	}
+	
+	/**
+	 * only split the points of interest inside a bounding box, the others are skipped, 
+	 * the points of interest are found using the spatial index of each input file
+	 * 
+	 * @param box the bounding box, or null to split all of the points of interest
+	 */
+	public void setBoundingBox(BoundingBox box) {
+		this.box = box;
+	}
+	
+	/**
+	 * split the points of interest in a list of files by category, the order 
+	 * of the points of interest in each category is kept
+	 * 
+	 * @param inputFiles the list of binary POI files
+	 * @return a map of each category to the temporary file containing its points of interest, ordered by category
+	 * @throws TaskException if the files cannot be read or the temporary files written
+	 */
+	public TreeMap<Long, File> partition(List<File> inputFiles) throws TaskException {
+		
+		if(inputFiles == null) {
+			throw new IllegalArgumentException("the inputFiles parameter is required");
+		}
+		
+		boolean completed = false;
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		
+		try {
+			for(File inputFile : inputFiles) {
+				if(box == null) {
+					partition(inputFile);
+				} else {
+					partitionInside(inputFile);
+				}
+			}
+			
+			// write what is left in memory so every category has a file
+			for(Map.Entry<Long, Partition> entry : partitions.entrySet()) {
+				entry.getValue().spill();
+				files.put(entry.getKey(), entry.getValue().file);
+			}
+			
+			completed = true;
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to split the points of interest by category", e);
+		} finally {
+			// don't leave temporary files behind if something went wrong
+			if(completed == false) {
+				delete();
+			}
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * get the number of points of interest that were split
+	 * 
+	 * @return the number of points of interest
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * delete all of the temporary files
+	 */
+	public void delete() {
+		
+		for(Partition partition : partitions.values()) {
+			if(partition.file != null) {
+				partition.file.delete();
+			}
+		}
+		
+		partitions.clear();
+		bufferedBytes = 0;
+	}
+	
+	// copy each message in a file into the partition for its category
+	private void partition(File inputFile) throws IOException, TaskException {
+		
+		InputStream input;
+		
+		try {
+			input = new FileInputStream(inputFile);
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + inputFile.getPath() + "'", e);
+		}
+		
+		try {
+			CodedInputStream codedInput = CodedInputStream.newInstance(new BufferedInputStream(input, BUFFER_SIZE));
+			
+			while(codedInput.isAtEnd() == false) {
+				
+				codedInput.resetSizeCounter();
+				
+				int length = codedInput.readRawVarint32();
+				add(codedInput.readRawBytes(length), length);
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	// copy each message in a file that is inside the bounding box into the partition for its category
+	private void partitionInside(File inputFile) throws IOException, TaskException {
+		
+		SpatialReader reader = new SpatialReader(inputFile, box);
+		
+		try {
+			int length;
+			
+			while((length = reader.nextMessage()) >= 0) {
+				
+				byte[] message = new byte[length];
+				reader.getRegion().get(message);
+				
+				// the cells on the edges of the box are partly outside of it
+				if(isInside(message)) {
+					add(message, length);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	// add a message to the partition for its category
+	private void add(byte[] message, int length) throws IOException {
+		
+		long category = readCategory(message);
+		Partition partition = partitions.get(category);
+		
+		if(partition == null) {
+			partition = new Partition();
+			partitions.put(category, partition);
+		}
+		
+		bufferedBytes += partition.add(message, length);
+		count++;
+		
+		if(bufferedBytes > memoryLimit) {
+			spillLargestPartition();
+		}
+	}
+	
+	// find the category field of a message, without decoding the other fields
+	private static long readCategory(byte[] message) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		while(buffer.hasRemaining()) {
+			
+			int tag = MessageDecoder.readVarint32(buffer);
+			
+			if(tag == MessageDecoder.CATEGORY_TAG) {
+				return MessageDecoder.readVarint64(buffer);
+			}
+			
+			MessageDecoder.skipField(buffer, tag);
+		}
+		
+		// a missing category takes the default value
+		return 0;
+	}
+	
+	// check if the location of a message is inside the bounding box
+	private boolean isInside(byte[] message) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		// fields missing from a message take their default values
+		double latitude = 0;
+		double longitude = 0;
+		
+		while(buffer.hasRemaining()) {
+			
+			int tag = MessageDecoder.readVarint32(buffer);
+			
+			switch(tag) {
+			case MessageDecoder.LATITUDE_TAG:
+				latitude = buffer.getDouble();
+				break;
+			case MessageDecoder.LONGITUDE_TAG:
+				longitude = buffer.getDouble();
+				break;
+			default:
+				MessageDecoder.skipField(buffer, tag);
+			}
+		}
+		
+		return box.contains(latitude, longitude);
+	}
+	
+	// write the partition using the most memory to its temporary file
+	private void spillLargestPartition() throws IOException {
+		
+		Partition largest = null;
+		
+		for(Partition partition : partitions.values()) {
+			if(largest == null || partition.size > largest.size) {
+				largest = partition;
+			}
+		}
+		
+		bufferedBytes -= largest.size;
+		largest.spill();
+	}
+	
+	/*
+	 * the length prefixed messages of a category that haven't been written to its file yet
+	 */
+	private static class Partition {
+		
+		File   file;
+		byte[] buffer = new byte[INITIAL_PARTITION_SIZE];
+		int    size = 0;
+		
+		// add a message with its length prefix, returning the number of bytes added
+		int add(byte[] message, int length) {
+			
+			int required = size + MAX_VARINT32_SIZE + length;
+			
+			if(required > buffer.length) {
+				byte[] grown = new byte[Math.max(required, buffer.length * 2)];
+				System.arraycopy(buffer, 0, grown, 0, size);
+				buffer = grown;
+			}
+			
+			int start = size;
+			int value = length;
+			
+			while((value & ~0x7F) != 0) {
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			
+			buffer[size++] = (byte) value;
+			
+			System.arraycopy(message, 0, buffer, size, length);
+			size += length;
+			
+			return size - start;
+		}
+		
+		// append the messages to the file, creating it if required
+		void spill() throws IOException {
+			
+			OutputStream output;
+			
+			if(file == null) {
+				file = File.createTempFile("category", BinaryFileContract.POI_EXT);
+				output = new FileOutputStream(file);
+			} else {
+				output = new FileOutputStream(file, true);
+			}
+			
+			try {
+				output.write(buffer, 0, size);
+			} finally {
+				output.close();
+			}
+			
+			// release the memory so that it only counts towards the limit once
+			buffer = new byte[INITIAL_PARTITION_SIZE];
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.TraceBuffer;
+
+/**
+ * read the elements from a list of binary location files, one file after
+ * another, while the files that follow are read ahead on a pool of threads
+ * 
+ * each file is read into a small queue of batches so the number of elements
+ * held in memory is limited no matter how many files there are
+ */
+public class ConcurrentFileReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the number of elements in each batch read ahead from a file
+	 */
+	public static final int BATCH_SIZE = 8192;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int QUEUE_SIZE = 4;
+	
+	// marks the end of the batches read from a file
+	private static final TraceBuffer END_OF_FILE = new TraceBuffer(1);
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File>          files;
+	private String              readerType;
+	private int                 readAhead;
+	private ExecutorService     executor;
+	
+	private ArrayDeque<FileTask> tasks = new ArrayDeque<FileTask>();
+	private int                 nextFile = 0;
+	
+	private FileTask            current;
+	private TraceBuffer         batch;
+	private int                 batchIndex = 0;
+	
+	/**
+	 * create a new reader using one thread for each available processor
+	 * 
+	 * @param files the list of binary location files
+	 * @param readerType the type of reader used for each file as defined in ReaderTypes
+	 */
+	public ConcurrentFileReader(List<File> files, String readerType) {
+		this(files, readerType, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * create a new reader
+	 * 
+	 * @param files the list of binary location files
+	 * @param readerType the type of reader used for each file as defined in ReaderTypes
+	 * @param parallelism the number of files read at the same time
+	 */
+	public ConcurrentFileReader(List<File> files, String readerType, int parallelism) {
+		
+		if(files == null) {
+			throw new IllegalArgumentException("the files parameter is required");
+		}
+		
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("the parallelism parameter must be > 0");
+		}
+		
+		this.files = files;
+		this.readerType = readerType;
+		this.readAhead = parallelism * 2;
+		
+		executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "file-reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(true) {
+			
+			if(batch != null && batchIndex < batch.size()) {
+				batch.get(batchIndex++, element);
+				return true;
+			}
+			
+			batch = null;
+			
+			if(current == null) {
+				
+				// keep the pool busy reading the files that follow
+				while(tasks.size() < readAhead && nextFile < files.size()) {
+					FileTask task = new FileTask(files.get(nextFile++));
+					tasks.add(task);
+					executor.execute(task);
+				}
+				
+				current = tasks.poll();
+				
+				if(current == null) {
+					return false;
+				}
+			}
+			
+			batch = current.take();
+			batchIndex = 0;
+			
+			if(batch == null) {
+				current = null;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		// stop any files that are still being read
+		executor.shutdownNow();
+		tasks.clear();
+		current = null;
+		batch = null;
+	}
+	
+	/*
+	 * read a file into a queue of batches
+	 */
+	private class FileTask implements Runnable {
+		
+		private File                             file;
+		private ArrayBlockingQueue<TraceBuffer>  queue = new ArrayBlockingQueue<TraceBuffer>(QUEUE_SIZE);
+		private volatile TaskException           error;
+		
+		public FileTask(File file) {
+			this.file = file;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			
+			TraceSource reader = null;
+			boolean isInterrupted = false;
+			
+			try {
+				reader = LocationReaders.open(file, readerType);
+				
+				GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+				TraceBuffer buffer = new TraceBuffer(BATCH_SIZE);
+				
+				while(reader.next(element)) {
+					
+					buffer.add(element);
+					
+					if(buffer.size() == BATCH_SIZE) {
+						queue.put(buffer);
+						buffer = new TraceBuffer(BATCH_SIZE);
+					}
+				}
+				
+				if(buffer.size() > 0) {
+					queue.put(buffer);
+				}
+			} catch (InterruptedException e) {
+				// the reader has been closed
+				isInterrupted = true;
+			} catch (TaskException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new TaskException("unable to read '" + file.getPath() + "'", e);
+			} catch (Error e) {
+				error = new TaskException("unable to read '" + file.getPath() + "'", e);
+				throw e;
+			} finally {
+				if(reader != null) {
+					try {
+						reader.close();
+					} catch (TaskException e) {
+						
+					}
+				}
+				
+				// the end of the file is always queued, even after an Error, 
+				// so that the pipeline doesn't wait for it forever
+				if(isInterrupted == false) {
+					try {
+						queue.put(END_OF_FILE);
+					} catch (InterruptedException e) {
+						
+					}
+				}
+			}
+		}
+		
+		// get the next batch read from the file, or null at the end of the file
+		public TraceBuffer take() throws TaskException {
+			
+			TraceBuffer next;
+			
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				throw new TaskException("interrupted while reading '" + file.getPath() + "'", e);
+			}
+			
+			if(next == END_OF_FILE) {
+				
+				if(error != null) {
+					throw error;
+				}
+				
+				return null;
+			}
+			
+			return next;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * reads the location messages that have been added to a binary location
+ * file since an earlier read, starting at the offset where that read finished
+ * 
+ * the file may still be being written so a message that is only partly 
+ * written at the end of the file is not read, the offset returned by
+ * getOffset() is always the end of the last complete message that was read
+ * so that the next read can start there
+ */
+public class IncrementalLocationReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the size of the buffer used to read the file
+	 */
+	public static final int BUFFER_SIZE = 1024 * 1024;
+	
+	/*
+	 * private class level variables
+	 */
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	private long             fileSize;
+	
+	private ByteBuffer       buffer;
+	private long             bufferStart;
+	private long             offset;
+	private boolean          isTruncated = false;
+	
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a binary location file to read the messages after an offset
+	 * 
+	 * @param inputFile the binary location file
+	 * @param startOffset the offset of the first message to read
+	 * @throws TaskException if the file cannot be opened or is shorter than the offset
+	 */
+	public IncrementalLocationReader(File inputFile, long startOffset) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		if(startOffset < 0) {
+			throw new IllegalArgumentException("the startOffset parameter must be >= 0");
+		}
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file", e);
+		}
+		
+		channel = file.getChannel();
+		
+		// only read what has been written so far
+		try {
+			fileSize = channel.size();
+		} catch (IOException e) {
+			close();
+			throw new TaskException("unable to determine the size of the input file", e);
+		}
+		
+		if(startOffset > fileSize) {
+			close();
+			throw new TaskException("the input file is shorter than the offset " + startOffset);
+		}
+		
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.limit(0);
+		
+		bufferStart = startOffset;
+		offset = startOffset;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		try {
+			while(true) {
+				
+				int start = buffer.position();
+				int length = readLength();
+				
+				if(length >= 0 && length <= buffer.remaining()) {
+					MessageDecoder.decodeLocation(buffer, length, element, strings);
+					offset = bufferStart + buffer.position();
+					return true;
+				}
+				
+				// read more of the file and try again
+				buffer.position(start);
+				
+				if(fill() == false) {
+					isTruncated = buffer.hasRemaining();
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file at offset " + offset, e);
+		}
+	}
+	
+	/**
+	 * get the offset immediately after the last complete message that was read
+	 * 
+	 * @return the offset to start the next read from
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * check if the file ended part way through a message, which can be read
+	 * once the rest of it has been written
+	 * 
+	 * @return true if the last message in the file is incomplete
+	 */
+	public boolean isTruncated() {
+		return isTruncated;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		// play nice and tidy up
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+	
+	/*
+	 * read the length prefix of the next message, returning -1 
+	 * if the whole of the prefix isn't in the buffer
+	 */
+	private int readLength() throws IOException {
+		
+		int available = Math.min(buffer.remaining(), MessageDecoder.MAX_VARINT_SIZE);
+		
+		for(int i = 0; i < available; i++) {
+			
+			if((buffer.get(buffer.position() + i) & 0x80) == 0) {
+				
+				int length = MessageDecoder.readVarint32(buffer);
+				
+				if(length < 0) {
+					throw new IOException("the message has a negative length");
+				}
+				
+				return length;
+			}
+		}
+		
+		if(available == MessageDecoder.MAX_VARINT_SIZE) {
+			throw new IOException("the message has a malformed length");
+		}
+		
+		return -1;
+	}
+	
+	/*
+	 * move the unread bytes to the start of the buffer and read more of the file
+	 * after them, returning false if there is no more of the file to read
+	 */
+	private boolean fill() throws IOException {
+		
+		long readFrom = bufferStart + buffer.limit();
+		
+		if(readFrom >= fileSize) {
+			return false;
+		}
+		
+		bufferStart += buffer.position();
+		buffer.compact();
+		
+		// a message larger than the buffer needs a larger buffer
+		if(buffer.hasRemaining() == false) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			larger.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		
+		int first = buffer.position();
+		buffer.limit(first + (int) Math.min(buffer.remaining(), fileSize - readFrom));
+		
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, readFrom + buffer.position() - first) < 0) {
+				break;
+			}
+		}
+		
+		buffer.flip();
+		
+		return true;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.util.List;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.ReaderTypes;
+import org.servalproject.maps.protobuf.BinaryFileContract;
+
+/**
+ * a utility class to open binary location files with the required type of reader,
+ * location archives are always opened with the archive reader
+ */
+public class LocationReaders {
+	
+	/**
+	 * open a binary location file
+	 * 
+	 * @param inputFile the binary location file
+	 * @param readerType the type of reader as defined in ReaderTypes
+	 * @return a source of the elements in the file
+	 * @throws TaskException if the file cannot be opened
+	 */
+	public static TraceSource open(File inputFile, String readerType) throws TaskException {
+		
+		if(isArchive(inputFile)) {
+			return new ArchiveReader(inputFile);
+		} else if(readerType == null || readerType.equals(ReaderTypes.STREAM)) {
+			return new BinaryLocationReader(inputFile);
+		} else if(readerType.equals(ReaderTypes.MAPPED)) {
+			return new MappedLocationReader(inputFile);
+		} else if(readerType.equals(ReaderTypes.PARALLEL)) {
+			return new ParallelLocationReader(inputFile);
+		} else {
+			throw new IllegalArgumentException("unrecognised reader type '" + readerType + "'");
+		}
+	}
+	
+	/**
+	 * open a list of binary location files as a single source, a single file is read
+	 * directly, otherwise the files are read concurrently
+	 * 
+	 * @param inputFiles the list of binary location files
+	 * @param readerType the type of reader used for each file as defined in ReaderTypes
+	 * @param mergeByTime if true the elements of the files are merged by time, otherwise the files are read one after another
+	 * @return a source of the elements in the files
+	 * @throws TaskException if the files cannot be opened
+	 */
+	public static TraceSource open(List<File> inputFiles, String readerType, boolean mergeByTime) throws TaskException {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("at least one input file is required");
+		}
+		
+		if(inputFiles.size() == 1) {
+			return open(inputFiles.get(0), readerType);
+		}
+		
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		
+		if(mergeByTime) {
+			return MergingReader.open(inputFiles, readerType, parallelism);
+		} else {
+			return new ConcurrentFileReader(inputFiles, readerType, parallelism);
+		}
+	}
+	
+	/**
+	 * open a list of binary location files as a single source of the locations inside a bounding 
+	 * box and a range of time, the spatial and time indexes of each file are used so that only
+	 * those locations are decoded
+	 * 
+	 * @param inputFiles the list of binary location files
+	 * @param box the bounding box, or null if the locations aren't limited to a box
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 * @param mergeByTime if true the elements of the files are merged by time, otherwise the files are read one after another
+	 * @return a source of the elements inside the box and the range
+	 * @throws TaskException if the files cannot be merged
+	 */
+	public static TraceSource open(List<File> inputFiles, BoundingBox box, long from, long to, boolean mergeByTime) throws TaskException {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("at least one input file is required");
+		}
+		
+		if(mergeByTime == false || inputFiles.size() == 1) {
+			return open(inputFiles, box, from, to);
+		}
+		
+		return MergingReader.open(inputFiles, box, from, to, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * check if a file is a location archive rather than a binary location file
+	 * 
+	 * @param inputFile the file to check
+	 * @return true if the file has the extension of a location archive
+	 */
+	public static boolean isArchive(File inputFile) {
+		return inputFile.getName().endsWith(BinaryFileContract.ARCHIVE_EXT);
+	}
+	
+	// open a reader that uses the indexes required by the bounding box and range of time
+	private static TraceSource open(List<File> inputFiles, BoundingBox box, long from, long to) {
+		
+		// archives have their own block index
+		if(isArchive(inputFiles.get(0))) {
+			
+			ArchiveReader reader = new ArchiveReader(inputFiles);
+			reader.setBoundingBox(box);
+			
+			if(from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+				reader.setTimeRange(from, to);
+			}
+			
+			return reader;
+		}
+		
+		if(box == null) {
+			return new TimeRangeReader(inputFiles, from, to);
+		}
+		
+		SpatialReader reader = new SpatialReader(inputFiles, box);
+		
+		if(from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+			reader.setTimeRange(from, to);
+		}
+		
+		return reader;
+	}
+}
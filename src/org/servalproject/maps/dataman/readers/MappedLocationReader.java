@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * reads the location messages in a binary location file by mapping the
+ * file into memory and decoding the messages directly from the mapped bytes
+ * 
+ * files are mapped in regions so files larger than 2 GB can be read, a 
+ * region is remapped whenever the next message crosses the end of the region
+ */
+public class MappedLocationReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the default size of the region of the file that is mapped at once
+	 */
+	public static final int DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+	
+	/*
+	 * private class level variables
+	 */
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	private long             fileSize;
+	private int              regionSize;
+	
+	private MappedByteBuffer region;
+	private long             regionStart = 0;
+	
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a binary location file for reading using the default region size
+	 * 
+	 * @param inputFile the binary location file
+	 * @throws TaskException if the file cannot be opened or mapped
+	 */
+	public MappedLocationReader(File inputFile) throws TaskException {
+		this(inputFile, DEFAULT_REGION_SIZE);
+	}
+	
+	/**
+	 * open a binary location file for reading
+	 * 
+	 * @param inputFile the binary location file
+	 * @param regionSize the maximum number of bytes to map at once
+	 * @throws TaskException if the file cannot be opened or mapped
+	 */
+	public MappedLocationReader(File inputFile, int regionSize) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		if(regionSize < MessageDecoder.MAX_VARINT_SIZE) {
+			throw new IllegalArgumentException("the regionSize parameter is too small");
+		}
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file", e);
+		}
+		
+		channel = file.getChannel();
+		this.regionSize = regionSize;
+		
+		try {
+			fileSize = channel.size();
+			map(0);
+		} catch (IOException e) {
+			close();
+			throw new TaskException("unable to map the input file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		try {
+			long messageStart = regionStart + region.position();
+			
+			if(messageStart >= fileSize) {
+				return false;
+			}
+			
+			// make sure the length prefix is inside the mapped region
+			if(region.remaining() < MessageDecoder.MAX_VARINT_SIZE && regionStart + region.limit() < fileSize) {
+				map(messageStart);
+			}
+			
+			int length = MessageDecoder.readVarint32(region);
+			
+			// make sure the entire message is inside the mapped region
+			if(length > region.remaining() && regionStart + region.limit() < fileSize) {
+				
+				int prefixSize = (int) (regionStart + region.position() - messageStart);
+				
+				if(prefixSize + length > regionSize) {
+					throw new TaskException("a message is larger than the mapped region size");
+				}
+				
+				map(messageStart);
+				region.position(prefixSize);
+			}
+			
+			MessageDecoder.decodeLocation(region, length, element, strings);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		return true;
+	}
+
+	/**
+	 * get the offset in the file of the next message
+	 * 
+	 * @return the offset of the next message
+	 */
+	public long getPosition() {
+		return regionStart + region.position();
+	}
+	
+	/**
+	 * move to the message at an offset in the file, the offset must be the start of a message
+	 * 
+	 * @param offset the offset of the message
+	 * @throws TaskException if the file cannot be mapped
+	 */
+	public void seek(long offset) throws TaskException {
+		
+		if(offset < 0 || offset > fileSize) {
+			throw new IllegalArgumentException("the offset must be between 0 and the size of the file");
+		}
+		
+		// only map a new region if the offset is outside of the current one
+		if(offset >= regionStart && offset <= regionStart + region.limit()) {
+			region.position((int) (offset - regionStart));
+			return;
+		}
+		
+		try {
+			map(offset);
+		} catch (IOException e) {
+			throw new TaskException("unable to map the input file", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		region = null;
+		
+		// play nice and tidy up
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+	
+	// map the region of the file that starts at the supplied offset
+	private void map(long offset) throws IOException {
+		
+		long size = Math.min(regionSize, fileSize - offset);
+		
+		region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		regionStart = offset;
+	}
+}
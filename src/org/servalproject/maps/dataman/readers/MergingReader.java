@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.servalproject.maps.dataman.builders.BinaryLocationWriter;
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.ReaderTypes;
+
+/**
+ * merge the elements from a number of sources into a single source ordered by time
+ * 
+ * each source is expected to already be in time order, such as the file of a 
+ * single device, elements with the same time are returned in the order of the sources
+ */
+public class MergingReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the maximum number of files that are open at the same time while merging
+	 */
+	public static final int MAX_MERGE_WIDTH = 64;
+	
+	/*
+	 * private class level variables
+	 */
+	private PriorityQueue<Cursor> cursors;
+	private List<TraceSource>     sources;
+	private List<File>            tempFiles = new ArrayList<File>();
+	private boolean               isStarted = false;
+	
+	/**
+	 * create a new reader that merges the supplied sources
+	 * 
+	 * @param sources the sources to merge, each in time order
+	 */
+	public MergingReader(List<TraceSource> sources) {
+		
+		if(sources == null) {
+			throw new IllegalArgumentException("the sources parameter is required");
+		}
+		
+		this.sources = sources;
+		cursors = new PriorityQueue<Cursor>(Math.max(1, sources.size()));
+	}
+	
+	/**
+	 * merge a list of binary location files, when there are more files than can be 
+	 * opened at once, groups of files are first merged into temporary files on a pool of threads
+	 * 
+	 * @param files the list of binary location files, each in time order
+	 * @param readerType the type of reader used for each file as defined in ReaderTypes
+	 * @param parallelism the number of groups of files merged at the same time
+	 * @return a source of the merged elements
+	 * @throws TaskException if the files cannot be read or merged
+	 */
+	public static MergingReader open(List<File> files, String readerType, int parallelism) throws TaskException {
+		return open(files, readerType, null, Long.MIN_VALUE, Long.MAX_VALUE, parallelism);
+	}
+	
+	/**
+	 * merge the locations inside a bounding box and a range of time from a list of binary 
+	 * location files, the indexes of each file are used to find the locations, when there are
+	 * more files than can be opened at once, groups of files are first merged into temporary
+	 * files on a pool of threads
+	 * 
+	 * @param files the list of binary location files, each in time order
+	 * @param box the bounding box, or null if the locations aren't limited to a box
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 * @param parallelism the number of groups of files merged at the same time
+	 * @return a source of the merged elements
+	 * @throws TaskException if the files cannot be read or merged
+	 */
+	public static MergingReader open(List<File> files, BoundingBox box, long from, long to, int parallelism) throws TaskException {
+		return open(files, ReaderTypes.STREAM, box, from, to, parallelism);
+	}
+	
+	// merge a list of files, only the files in the list are filtered as the 
+	// temporary files only contain the locations that were included
+	private static MergingReader open(List<File> files, String readerType, BoundingBox box, long from, long to, int parallelism) throws TaskException {
+		
+		if(files == null) {
+			throw new IllegalArgumentException("the files parameter is required");
+		}
+		
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("the parallelism parameter must be > 0");
+		}
+		
+		List<File> tempFiles = new ArrayList<File>();
+		String currentType = readerType;
+		BoundingBox currentBox = box;
+		long currentFrom = from;
+		long currentTo = to;
+		
+		ExecutorService executor = null;
+		
+		try {
+			// merge groups of files until few enough remain to be merged directly
+			while(files.size() > MAX_MERGE_WIDTH) {
+				
+				if(executor == null) {
+					executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "file-merger");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+				
+				List<File> merged = new ArrayList<File>();
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				
+				for(int i = 0; i < files.size(); i += MAX_MERGE_WIDTH) {
+					
+					File mergedFile;
+					
+					try {
+						mergedFile = File.createTempFile("merge", ".smapl");
+					} catch (IOException e) {
+						throw new TaskException("unable to create a temporary merge file", e);
+					}
+					
+					merged.add(mergedFile);
+					tempFiles.add(mergedFile);
+					
+					final List<File> group = files.subList(i, Math.min(i + MAX_MERGE_WIDTH, files.size()));
+					final String groupType = currentType;
+					final BoundingBox groupBox = currentBox;
+					final long groupFrom = currentFrom;
+					final long groupTo = currentTo;
+					final File output = mergedFile;
+					
+					results.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws TaskException {
+							mergeToFile(group, groupType, groupBox, groupFrom, groupTo, output);
+							return null;
+						}
+					}));
+				}
+				
+				for(Future<Void> result : results) {
+					try {
+						result.get();
+					} catch (InterruptedException e) {
+						throw new TaskException("interrupted while merging files", e);
+					} catch (ExecutionException e) {
+						if(e.getCause() instanceof TaskException) {
+							throw (TaskException) e.getCause();
+						}
+						
+						throw new TaskException("unable to merge files", e.getCause());
+					}
+				}
+				
+				// the temporary files merged by the previous pass are no longer needed
+				for(File file : files) {
+					if(tempFiles.remove(file)) {
+						file.delete();
+					}
+				}
+				
+				// the temporary files are always read with the stream reader
+				files = merged;
+				currentType = ReaderTypes.STREAM;
+				currentBox = null;
+				currentFrom = Long.MIN_VALUE;
+				currentTo = Long.MAX_VALUE;
+			}
+			
+			MergingReader reader = new MergingReader(openAll(files, currentType, currentBox, currentFrom, currentTo));
+			reader.tempFiles = tempFiles;
+			tempFiles = null;
+			
+			return reader;
+			
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			
+			// tidy up if the merge failed
+			if(tempFiles != null) {
+				for(File tempFile : tempFiles) {
+					tempFile.delete();
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		if(isStarted == false) {
+			
+			for(int i = 0; i < sources.size(); i++) {
+				Cursor cursor = new Cursor(sources.get(i), i);
+				
+				if(cursor.advance()) {
+					cursors.add(cursor);
+				}
+			}
+			
+			isStarted = true;
+		}
+		
+		Cursor cursor = cursors.poll();
+		
+		if(cursor == null) {
+			return false;
+		}
+		
+		element.copyFrom(cursor.element);
+		
+		if(cursor.advance()) {
+			cursors.add(cursor);
+		}
+		
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		TaskException error = null;
+		
+		for(TraceSource source : sources) {
+			try {
+				source.close();
+			} catch (TaskException e) {
+				error = e;
+			}
+		}
+		
+		cursors.clear();
+		
+		for(File tempFile : tempFiles) {
+			tempFile.delete();
+		}
+		
+		tempFiles.clear();
+		
+		if(error != null) {
+			throw error;
+		}
+	}
+	
+	// open a reader for each of the files, using the indexes of the files if the locations are filtered
+	private static List<TraceSource> openAll(List<File> files, String readerType, BoundingBox box, long from, long to) throws TaskException {
+		
+		List<TraceSource> sources = new ArrayList<TraceSource>(files.size());
+		boolean isFiltered = box != null || from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+		
+		try {
+			for(File file : files) {
+				if(isFiltered) {
+					sources.add(LocationReaders.open(Collections.singletonList(file), box, from, to, false));
+				} else {
+					sources.add(LocationReaders.open(file, readerType));
+				}
+			}
+		} catch (TaskException e) {
+			for(TraceSource source : sources) {
+				try {
+					source.close();
+				} catch (TaskException ignored) {
+					
+				}
+			}
+			
+			throw e;
+		}
+		
+		return sources;
+	}
+	
+	// merge a group of files into a single file
+	private static void mergeToFile(List<File> files, String readerType, BoundingBox box, long from, long to, File output) throws TaskException {
+		
+		MergingReader reader = new MergingReader(openAll(files, readerType, box, from, to));
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		try {
+			BinaryLocationWriter writer = new BinaryLocationWriter(output, false);
+			
+			try {
+				while(reader.next(element)) {
+					writer.write(element);
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (BuildException e) {
+			throw new TaskException("unable to write a temporary merge file", e);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/*
+	 * the current element of one of the merged sources
+	 */
+	private static class Cursor implements Comparable<Cursor> {
+		
+		private TraceSource     source;
+		private int             index;
+		private GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		public Cursor(TraceSource source, int index) {
+			this.source = source;
+			this.index = index;
+		}
+		
+		// read the next element from the source
+		public boolean advance() throws TaskException {
+			return source.next(element);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Cursor other) {
+			
+			if(element.getTimestamp() != other.element.getTimestamp()) {
+				return element.getTimestamp() < other.element.getTimestamp() ? -1 : 1;
+			}
+			
+			return index < other.index ? -1 : (index == other.index ? 0 : 1);
+		}
+	}
+}
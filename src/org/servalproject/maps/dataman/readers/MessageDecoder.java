@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.nio.ByteBuffer;
+
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.PoiElement;
+import org.servalproject.maps.protobuf.LocationMessage;
+import org.servalproject.maps.protobuf.PointOfInterestMessage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+/**
+ * decodes the fields of binary messages directly from a ByteBuffer 
+ * so that mapped files can be read without copying them into a stream
+ * 
+ * the buffer must use little endian byte order
+ */
+class MessageDecoder {
+	
+	/*
+	 * package level constants
+	 */
+	static final int MAX_VARINT_SIZE = 10;
+	
+	static final int PHONE_NUMBER_TAG  = (LocationMessage.Message.PHONENUMBER_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	static final int SUBSCRIBER_ID_TAG = (LocationMessage.Message.SUBSCIBERID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	static final int LATITUDE_TAG  = (LocationMessage.Message.LATITUDE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED64;
+	static final int LONGITUDE_TAG = (LocationMessage.Message.LONGITUDE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED64;
+	static final int TIMESTAMP_TAG = (LocationMessage.Message.TIMESTAMP_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+	static final int TIMEZONE_TAG  = (LocationMessage.Message.TIMEZONE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	
+	// the point of interest messages share the numbers of the location fields
+	static final int TITLE_TAG       = (PointOfInterestMessage.Message.TITLE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	static final int DESCRIPTION_TAG = (PointOfInterestMessage.Message.DESCRIPTION_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	static final int CATEGORY_TAG    = (PointOfInterestMessage.Message.CATEGORY_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String TRUNCATED_MESSAGE = "the input ended unexpectedly in the middle of a message";
+	
+	/**
+	 * decode a location message from the buffer into the element
+	 * 
+	 * @param buffer the buffer positioned at the start of the message fields
+	 * @param length the length of the message
+	 * @param element the element to populate
+	 * @param strings the table used to decode strings
+	 * @throws InvalidProtocolBufferException if the message is malformed
+	 */
+	static void decodeLocation(ByteBuffer buffer, int length, GpsTraceElement element, StringTable strings) throws InvalidProtocolBufferException {
+		
+		int end = buffer.position() + length;
+		
+		if(end > buffer.limit()) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+		
+		// fields missing from a message take their default values
+		element.setLatitude(0);
+		element.setLongitude(0);
+		element.setTimestamp(0);
+		element.setTimezone("");
+		element.setPhoneNumber("");
+		element.setSubscriberId("");
+		
+		int tag;
+		
+		while(buffer.position() < end) {
+			
+			tag = readVarint32(buffer);
+			
+			switch(tag) {
+			case PHONE_NUMBER_TAG:
+				element.setPhoneNumber(readString(buffer, strings));
+				break;
+			case SUBSCRIBER_ID_TAG:
+				element.setSubscriberId(readString(buffer, strings));
+				break;
+			case LATITUDE_TAG:
+				element.setLatitude(buffer.getDouble());
+				break;
+			case LONGITUDE_TAG:
+				element.setLongitude(buffer.getDouble());
+				break;
+			case TIMESTAMP_TAG:
+				element.setTimestamp(readVarint64(buffer));
+				break;
+			case TIMEZONE_TAG:
+				element.setTimezone(readString(buffer, strings));
+				break;
+			default:
+				// skip the fields that aren't used
+				skipField(buffer, tag);
+			}
+		}
+		
+		if(buffer.position() != end) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+	}
+	
+	/**
+	 * decode a point of interest message from the buffer into the element
+	 * 
+	 * @param buffer the buffer positioned at the start of the message fields
+	 * @param length the length of the message
+	 * @param element the element to populate
+	 * @param strings the table used to decode strings
+	 * @throws InvalidProtocolBufferException if the message is malformed
+	 */
+	static void decodePointOfInterest(ByteBuffer buffer, int length, PoiElement element, StringTable strings) throws InvalidProtocolBufferException {
+		
+		int end = buffer.position() + length;
+		
+		if(end > buffer.limit()) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+		
+		// fields missing from a message take their default values
+		element.setLatitude(0);
+		element.setLongitude(0);
+		element.setTimestamp(0);
+		element.setTimezone("");
+		element.setPhoneNumber("");
+		element.setSubscriberId("");
+		element.setTitle("");
+		element.setDescription("");
+		element.setCategory(0);
+		
+		int tag;
+		
+		while(buffer.position() < end) {
+			
+			tag = readVarint32(buffer);
+			
+			switch(tag) {
+			case PHONE_NUMBER_TAG:
+				element.setPhoneNumber(readString(buffer, strings));
+				break;
+			case SUBSCRIBER_ID_TAG:
+				element.setSubscriberId(readString(buffer, strings));
+				break;
+			case LATITUDE_TAG:
+				element.setLatitude(buffer.getDouble());
+				break;
+			case LONGITUDE_TAG:
+				element.setLongitude(buffer.getDouble());
+				break;
+			case TIMESTAMP_TAG:
+				element.setTimestamp(readVarint64(buffer));
+				break;
+			case TIMEZONE_TAG:
+				element.setTimezone(readString(buffer, strings));
+				break;
+			case TITLE_TAG:
+				// titles and descriptions are rarely repeated so aren't kept in the string table
+				element.setTitle(readString(buffer));
+				break;
+			case DESCRIPTION_TAG:
+				element.setDescription(readString(buffer));
+				break;
+			case CATEGORY_TAG:
+				element.setCategory(readVarint64(buffer));
+				break;
+			default:
+				// skip the fields that aren't used
+				skipField(buffer, tag);
+			}
+		}
+		
+		if(buffer.position() != end) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+	}
+	
+	/**
+	 * read a string field value
+	 * 
+	 * @param buffer the buffer positioned at the length of the string
+	 * @param strings the table used to decode strings
+	 * @return the string
+	 * @throws InvalidProtocolBufferException if the field is malformed
+	 */
+	static String readString(ByteBuffer buffer, StringTable strings) throws InvalidProtocolBufferException {
+		
+		int size = readVarint32(buffer);
+		
+		if(size < 0 || size > buffer.remaining()) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+		
+		return strings.get(ByteString.copyFrom(buffer, size));
+	}
+	
+	/**
+	 * read a string field value without using a string table
+	 * 
+	 * @param buffer the buffer positioned at the length of the string
+	 * @return the string
+	 * @throws InvalidProtocolBufferException if the field is malformed
+	 */
+	static String readString(ByteBuffer buffer) throws InvalidProtocolBufferException {
+		
+		int size = readVarint32(buffer);
+		
+		if(size < 0 || size > buffer.remaining()) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+		
+		return ByteString.copyFrom(buffer, size).toStringUtf8();
+	}
+	
+	/**
+	 * skip over a field that isn't used
+	 * 
+	 * @param buffer the buffer positioned after the tag of the field
+	 * @param tag the tag of the field
+	 * @throws InvalidProtocolBufferException if the field is malformed
+	 */
+	static void skipField(ByteBuffer buffer, int tag) throws InvalidProtocolBufferException {
+		
+		int skip;
+		
+		switch(tag & 0x07) {
+		case WireFormat.WIRETYPE_VARINT:
+			readVarint64(buffer);
+			return;
+		case WireFormat.WIRETYPE_FIXED64:
+			skip = 8;
+			break;
+		case WireFormat.WIRETYPE_FIXED32:
+			skip = 4;
+			break;
+		case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+			skip = readVarint32(buffer);
+			break;
+		default:
+			// groups are not used by the messages
+			throw new InvalidProtocolBufferException("the message contains an unsupported wire type");
+		}
+		
+		if(skip < 0 || skip > buffer.remaining()) {
+			throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+		}
+		
+		buffer.position(buffer.position() + skip);
+	}
+	
+	/**
+	 * read a varint that fits into an int
+	 * 
+	 * @param buffer the buffer positioned at the start of the varint
+	 * @return the value of the varint
+	 * @throws InvalidProtocolBufferException if the varint is malformed
+	 */
+	static int readVarint32(ByteBuffer buffer) throws InvalidProtocolBufferException {
+		return (int) readVarint64(buffer);
+	}
+	
+	/**
+	 * read a varint
+	 * 
+	 * @param buffer the buffer positioned at the start of the varint
+	 * @return the value of the varint
+	 * @throws InvalidProtocolBufferException if the varint is malformed
+	 */
+	static long readVarint64(ByteBuffer buffer) throws InvalidProtocolBufferException {
+		
+		long result = 0;
+		byte b;
+		
+		for(int shift = 0; shift < 64; shift += 7) {
+			
+			if(buffer.hasRemaining() == false) {
+				throw new InvalidProtocolBufferException(TRUNCATED_MESSAGE);
+			}
+			
+			b = buffer.get();
+			result |= (long) (b & 0x7F) << shift;
+			
+			if((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		
+		throw new InvalidProtocolBufferException("the message contains a malformed varint");
+	}
+}
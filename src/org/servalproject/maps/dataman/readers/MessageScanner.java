@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+
+/**
+ * scans a file of length-delimited messages to find where each message
+ * starts, reading only the length prefixes and not the messages themselves
+ */
+public class MessageScanner {
+	
+	/*
+	 * private class level variables
+	 */
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	private long             fileSize;
+	private int              regionSize;
+	
+	private MappedByteBuffer region;
+	private long             regionStart = 0;
+	
+	private long             offset = -1;
+	private int              length = 0;
+	private long             nextOffset = 0;
+	
+	/**
+	 * open a file of length-delimited messages for scanning
+	 * 
+	 * @param inputFile the file to scan
+	 * @throws TaskException if the file cannot be opened
+	 */
+	public MessageScanner(File inputFile) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file", e);
+		}
+		
+		channel = file.getChannel();
+		regionSize = MappedLocationReader.DEFAULT_REGION_SIZE;
+		
+		try {
+			fileSize = channel.size();
+		} catch (IOException e) {
+			close();
+			throw new TaskException("unable to determine the size of the input file", e);
+		}
+	}
+	
+	/**
+	 * move to the next message in the file
+	 * 
+	 * @return true if there is another message, false at the end of the file
+	 * @throws TaskException if the file cannot be read or a message is truncated
+	 */
+	public boolean next() throws TaskException {
+		
+		if(nextOffset >= fileSize) {
+			return false;
+		}
+		
+		try {
+			// make sure the length prefix is inside the mapped region
+			if(region == null || nextOffset < regionStart || nextOffset + MessageDecoder.MAX_VARINT_SIZE > regionStart + region.limit()) {
+				map(nextOffset);
+			}
+			
+			region.position((int) (nextOffset - regionStart));
+			length = MessageDecoder.readVarint32(region);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		long end = regionStart + region.position() + length;
+		
+		if(length < 0 || end > fileSize) {
+			throw new TaskException("the message at offset " + nextOffset + " is truncated");
+		}
+		
+		offset = nextOffset;
+		nextOffset = end;
+		
+		return true;
+	}
+	
+	/**
+	 * get the offset of the current message including its length prefix
+	 * 
+	 * @return the offset of the current message
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * get the length of the current message excluding its length prefix
+	 * 
+	 * @return the length of the current message
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * get the offset immediately after the current message
+	 * 
+	 * @return the offset of the end of the current message
+	 */
+	public long getEndOffset() {
+		return nextOffset;
+	}
+	
+	/**
+	 * get the size of the file that is being scanned
+	 * 
+	 * @return the size of the file in bytes
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+	
+	/**
+	 * close the file
+	 * 
+	 * @throws TaskException if the file cannot be closed
+	 */
+	public void close() throws TaskException {
+		
+		region = null;
+		
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+	
+	// map the region of the file that starts at the supplied offset
+	private void map(long start) throws IOException {
+		region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, fileSize - start));
+		regionStart = start;
+	}
+}
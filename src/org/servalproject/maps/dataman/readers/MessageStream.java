@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * reads length-delimited messages from a stream into a large buffer that is reused 
+ * for every message, so that the fields of each message can be decoded from a
+ * ByteBuffer in the same way as the messages in a mapped file
+ * 
+ * the buffer grows if a message is larger than the buffer, up to MAX_MESSAGE_SIZE, 
+ * and shrinks back to its original size once the larger message has been read
+ */
+class MessageStream {
+	
+	/*
+	 * package level constants
+	 */
+	
+	// the same limit as the default size limit of a CodedInputStream
+	static final int MAX_MESSAGE_SIZE = 64 << 20;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int MAX_LENGTH_SIZE = 5;
+	
+	/*
+	 * private class level variables
+	 */
+	private InputStream input;
+	private int         bufferSize;
+	private byte[]      bytes;
+	private ByteBuffer  buffer;
+	
+	// the bytes in the array between start and end haven't been read yet
+	private int         start = 0;
+	private int         end = 0;
+	
+	/**
+	 * create a new stream of messages
+	 * 
+	 * @param input the stream containing the length-delimited messages
+	 * @param bufferSize the size of the buffer used to read from the stream
+	 */
+	MessageStream(InputStream input, int bufferSize) {
+		
+		if(input == null) {
+			throw new IllegalArgumentException("the input parameter is required");
+		}
+		
+		if(bufferSize < MAX_LENGTH_SIZE) {
+			throw new IllegalArgumentException("the bufferSize parameter must be >= " + MAX_LENGTH_SIZE);
+		}
+		
+		this.input = input;
+		this.bufferSize = bufferSize;
+		
+		bytes = new byte[bufferSize];
+		buffer = ByteBuffer.wrap(bytes);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * read the next message, the buffer is left positioned at the start of the 
+	 * fields of the message and is limited to the end of the message
+	 * 
+	 * @return the length of the message, or -1 at the end of the stream
+	 * @throws IOException if the stream cannot be read or ends part way through a message
+	 */
+	int next() throws IOException {
+		
+		int available = fill(MAX_LENGTH_SIZE);
+		
+		if(available == 0) {
+			return -1;
+		}
+		
+		buffer.limit(start + available);
+		buffer.position(start);
+		
+		int length = MessageDecoder.readVarint32(buffer);
+		
+		if(length < 0) {
+			throw new InvalidProtocolBufferException("the message has a negative length");
+		}
+		
+		// a corrupt length would otherwise allocate a buffer of up to 2GB
+		if(length > MAX_MESSAGE_SIZE) {
+			throw new InvalidProtocolBufferException("the message is larger than the maximum size of " + MAX_MESSAGE_SIZE + " bytes");
+		}
+		
+		start = buffer.position();
+		
+		if(fill(length) < length) {
+			throw new InvalidProtocolBufferException("the input ended unexpectedly in the middle of a message");
+		}
+		
+		buffer.limit(start + length);
+		buffer.position(start);
+		start += length;
+		
+		return length;
+	}
+	
+	/**
+	 * get the buffer containing the current message
+	 * 
+	 * @return the buffer, which uses little endian byte order
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * close the underlying stream
+	 * 
+	 * @throws IOException if the stream cannot be closed
+	 */
+	void close() throws IOException {
+		input.close();
+	}
+	
+	// make at least the required number of bytes available after the start, 
+	// unless the stream ends first, returning the number of bytes available
+	private int fill(int required) throws IOException {
+		
+		if(end - start >= required) {
+			return end - start;
+		}
+		
+		// go back to the original size once a larger message has been read
+		if(bytes.length > bufferSize && required <= bufferSize && end - start <= bufferSize) {
+			byte[] shrunk = new byte[bufferSize];
+			System.arraycopy(bytes, start, shrunk, 0, end - start);
+			end -= start;
+			start = 0;
+			
+			bytes = shrunk;
+			buffer = ByteBuffer.wrap(bytes);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		// move the bytes that haven't been read to the start of the array
+		if(start > 0) {
+			System.arraycopy(bytes, start, bytes, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		
+		if(required > bytes.length) {
+			byte[] grown = new byte[(int) Math.min(Math.max(required, bytes.length * 2L), MAX_MESSAGE_SIZE + MAX_LENGTH_SIZE)];
+			System.arraycopy(bytes, 0, grown, 0, end);
+			
+			bytes = grown;
+			buffer = ByteBuffer.wrap(bytes);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		while(end < required) {
+			
+			int count = input.read(bytes, end, bytes.length - end);
+			
+			if(count < 0) {
+				break;
+			}
+			
+			end += count;
+		}
+		
+		return end;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.TraceBuffer;
+
+/**
+ * reads the location messages in a binary location file using all of the
+ * available processors
+ * 
+ * the file is first scanned to find the boundaries of chunks of whole
+ * messages, the chunks are then decoded in parallel by a fork join pool
+ * and the elements returned in the same order as they are in the file
+ */
+public class ParallelLocationReader implements TraceSource {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the approximate number of bytes in each chunk decoded in parallel
+	 */
+	public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	
+	/*
+	 * private class level variables
+	 */
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	
+	private ForkJoinPool     pool;
+	private int              maxPendingChunks;
+	
+	// offsets of the start of each chunk, with the end of the file as the last entry
+	private long[]           boundaries;
+	private int              boundaryCount = 0;
+	private int              nextChunk = 0;
+	
+	private LinkedList<ForkJoinTask<TraceBuffer>> pendingChunks = new LinkedList<ForkJoinTask<TraceBuffer>>();
+	
+	private TraceBuffer      currentChunk;
+	private int              currentIndex = 0;
+	
+	/**
+	 * open a binary location file for reading using all of the available processors
+	 * 
+	 * @param inputFile the binary location file
+	 * @throws TaskException if the file cannot be opened or scanned
+	 */
+	public ParallelLocationReader(File inputFile) throws TaskException {
+		this(inputFile, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * open a binary location file for reading
+	 * 
+	 * @param inputFile the binary location file
+	 * @param parallelism the number of chunks to decode at the same time
+	 * @throws TaskException if the file cannot be opened or scanned
+	 */
+	public ParallelLocationReader(File inputFile, int parallelism) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("the parallelism parameter must be > 0");
+		}
+		
+		// find the chunk boundaries
+		scan(inputFile);
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file", e);
+		}
+		
+		channel = file.getChannel();
+		
+		// limit the number of decoded chunks held in memory 
+		pool = new ForkJoinPool(parallelism);
+		maxPendingChunks = parallelism * 2;
+		
+		while(pendingChunks.size() < maxPendingChunks && submitNextChunk()) {
+			
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(currentChunk == null || currentIndex == currentChunk.size()) {
+			
+			if(pendingChunks.isEmpty()) {
+				return false;
+			}
+			
+			// wait for the next chunk in file order and keep the pool busy
+			try {
+				currentChunk = pendingChunks.removeFirst().join();
+			} catch (RuntimeException e) {
+				throw new TaskException("unable to read messages from the binary file", e);
+			}
+			
+			currentIndex = 0;
+			submitNextChunk();
+		}
+		
+		currentChunk.get(currentIndex++, element);
+		
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		pool.shutdownNow();
+		pendingChunks.clear();
+		currentChunk = null;
+		
+		// play nice and tidy up
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		}
+	}
+	
+	// find the offsets of chunks of whole messages
+	private void scan(File inputFile) throws TaskException {
+		
+		MessageScanner scanner = new MessageScanner(inputFile);
+		
+		boundaries = new long[64];
+		addBoundary(0);
+		
+		long chunkStart = 0;
+		
+		try {
+			while(scanner.next()) {
+				if(scanner.getEndOffset() - chunkStart >= CHUNK_SIZE) {
+					chunkStart = scanner.getEndOffset();
+					addBoundary(chunkStart);
+				}
+			}
+			
+			if(chunkStart != scanner.getFileSize()) {
+				addBoundary(scanner.getFileSize());
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+	
+	private void addBoundary(long offset) {
+		
+		if(boundaryCount == boundaries.length) {
+			long[] grown = new long[boundaries.length * 2];
+			System.arraycopy(boundaries, 0, grown, 0, boundaries.length);
+			boundaries = grown;
+		}
+		
+		boundaries[boundaryCount++] = offset;
+	}
+	
+	// submit the next chunk to the pool to be decoded
+	private boolean submitNextChunk() {
+		
+		if(nextChunk + 1 >= boundaryCount) {
+			return false;
+		}
+		
+		pendingChunks.addLast(pool.submit(new DecodeChunk(boundaries[nextChunk], boundaries[nextChunk + 1])));
+		nextChunk++;
+		
+		return true;
+	}
+	
+	/*
+	 * decode all of the messages in a chunk of the file
+	 */
+	private class DecodeChunk extends RecursiveTask<TraceBuffer> {
+		
+		private static final long serialVersionUID = 6196207414447812361L;
+		
+		private long start;
+		private long end;
+		
+		DecodeChunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected TraceBuffer compute() {
+			
+			TraceBuffer elements = new TraceBuffer();
+			StringTable strings = new StringTable();
+			GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+			
+			try {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				
+				while(buffer.hasRemaining()) {
+					MessageDecoder.decodeLocation(buffer, MessageDecoder.readVarint32(buffer), element, strings);
+					elements.add(element);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("unable to decode the chunk at offset " + start, e);
+			}
+			
+			return elements;
+		}
+	}
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * a grid index of the locations of the messages in a binary location or POI file
+ * 
+ * the world is divided into cells of a fixed size and the index lists the offset 
+ * in the file of each message that falls into each cell, so the messages inside
+ * a bounding box can be read without decoding the rest of the file
+ * 
+ * the index is stored next to the file it indexes, with the INDEX_EXT extension 
+ * added to the name of the file, and is rebuilt whenever the file has changed
+ * 
+ * the offsets in each cell are in ascending order and are stored as the 
+ * difference from the previous offset, encoded as a varint
+ */
+public class SpatialIndex {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the extension added to the name of a file to get the name of its index
+	 */
+	public static final String INDEX_EXT = ".sidx";
+	
+	/**
+	 * the number of cells along each degree of latitude and longitude
+	 */
+	public static final int CELLS_PER_DEGREE = 100;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int MAGIC   = 0x534D5349;
+	private static final int VERSION = 1;
+	
+	private static final int BUFFER_SIZE = 65536;
+	private static final int INITIAL_CELL_SIZE = 16;
+	private static final int MAX_VARINT64_SIZE = 10;
+	
+	private static final int ROWS    = 180 * CELLS_PER_DEGREE;
+	private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+	
+	/*
+	 * private class level variables
+	 */
+	private long[] keys;
+	private int[]  counts;
+	private int[]  starts;
+	private byte[] offsets;
+	private long   recordCount;
+	private long   indexedLength;
+	
+	// create an index from its parts
+	private SpatialIndex(long[] keys, int[] counts, int[] starts, byte[] offsets, long recordCount, long indexedLength) {
+		this.keys = keys;
+		this.counts = counts;
+		this.starts = starts;
+		this.offsets = offsets;
+		this.recordCount = recordCount;
+		this.indexedLength = indexedLength;
+	}
+	
+	/**
+	 * open the index of a binary location or POI file, building it if 
+	 * it doesn't exist or the file has changed since it was built
+	 * 
+	 * @param dataFile the binary location or POI file
+	 * @return the index of the file
+	 * @throws TaskException if the file cannot be read
+	 */
+	public static SpatialIndex open(File dataFile) throws TaskException {
+		
+		if(dataFile == null) {
+			throw new IllegalArgumentException("the dataFile parameter is required");
+		}
+		
+		File indexFile = getIndexFile(dataFile);
+		
+		SpatialIndex index = null;
+		
+		if(indexFile.isFile()) {
+			index = read(indexFile, dataFile);
+		}
+		
+		if(index == null) {
+			index = build(dataFile);
+			index.write(indexFile, dataFile);
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * build the index of a binary location or POI file without storing it
+	 * 
+	 * @param dataFile the binary location or POI file
+	 * @return the index of the file
+	 * @throws TaskException if the file cannot be read
+	 */
+	public static SpatialIndex build(File dataFile) throws TaskException {
+		
+		if(dataFile == null) {
+			throw new IllegalArgumentException("the dataFile parameter is required");
+		}
+		
+		InputStream input;
+		
+		try {
+			input = new FileInputStream(dataFile);
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + dataFile.getPath() + "'", e);
+		}
+		
+		HashMap<Long, Cell> cells = new HashMap<Long, Cell>();
+		long recordCount = 0;
+		long offset = 0;
+		
+		try {
+			CodedInputStream codedInput = CodedInputStream.newInstance(new BufferedInputStream(input, BUFFER_SIZE));
+			
+			while(codedInput.isAtEnd() == false) {
+				
+				codedInput.resetSizeCounter();
+				
+				int length = codedInput.readRawVarint32();
+				byte[] message = codedInput.readRawBytes(length);
+				
+				long key = readCellKey(message);
+				
+				// messages without a valid location can't be inside a bounding box
+				if(key >= 0) {
+					
+					Cell cell = cells.get(key);
+					
+					if(cell == null) {
+						cell = new Cell();
+						cells.put(key, cell);
+					}
+					
+					cell.add(offset);
+					recordCount++;
+				}
+				
+				offset += CodedOutputStream.computeRawVarint32Size(length) + length;
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to index the input file '" + dataFile.getPath() + "'", e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException ignored) {
+				
+			}
+		}
+		
+		// store the cells in the order of their keys so they can be searched
+		long[] keys = new long[cells.size()];
+		int i = 0;
+		long size = 0;
+		
+		for(Map.Entry<Long, Cell> entry : cells.entrySet()) {
+			keys[i++] = entry.getKey();
+			size += entry.getValue().size;
+		}
+		
+		if(size > Integer.MAX_VALUE) {
+			throw new TaskException("the input file '" + dataFile.getPath() + "' is too large to index");
+		}
+		
+		Arrays.sort(keys);
+		
+		int[] counts = new int[keys.length];
+		int[] starts = new int[keys.length];
+		byte[] offsets = new byte[(int) size];
+		int position = 0;
+		
+		for(i = 0; i < keys.length; i++) {
+			
+			Cell cell = cells.remove(keys[i]);
+			
+			counts[i] = cell.count;
+			starts[i] = position;
+			System.arraycopy(cell.offsets, 0, offsets, position, cell.size);
+			position += cell.size;
+		}
+		
+		return new SpatialIndex(keys, counts, starts, offsets, recordCount, offset);
+	}
+	
+	/**
+	 * get the file used to store the index of a binary location or POI file
+	 * 
+	 * @param dataFile the binary location or POI file
+	 * @return the index file
+	 */
+	public static File getIndexFile(File dataFile) {
+		return new File(dataFile.getPath() + INDEX_EXT);
+	}
+	
+	/**
+	 * find the messages that may be inside a bounding box, the messages 
+	 * in the cells on the edges of the box may be outside of it
+	 * 
+	 * the offsets are decoded from the cells as they are read, so the memory
+	 * used depends on the number of cells inside the box and not the number of messages
+	 * 
+	 * @param box the bounding box
+	 * @return the offsets of the messages in the file in ascending order
+	 */
+	public Matches query(BoundingBox box) {
+		
+		if(box == null) {
+			throw new IllegalArgumentException("the box parameter is required");
+		}
+		
+		int minRow = getRow(box.getSouth());
+		int maxRow = getRow(box.getNorth());
+		int minColumn = getColumn(box.getWest());
+		int maxColumn = getColumn(box.getEast());
+		boolean wrapped = box.crossesMeridian();
+		
+		// the cells are ordered by row so only the rows of the box are searched
+		int first = Arrays.binarySearch(keys, (long) minRow * COLUMNS);
+		
+		if(first < 0) {
+			first = -first - 1;
+		}
+		
+		long lastKey = (long) maxRow * COLUMNS + COLUMNS - 1;
+		
+		Matches matches = new Matches();
+		
+		for(int i = first; i < keys.length && keys[i] <= lastKey; i++) {
+			
+			int column = (int) (keys[i] % COLUMNS);
+			
+			boolean inside;
+			
+			if(wrapped) {
+				inside = column >= minColumn || column <= maxColumn;
+			} else {
+				inside = column >= minColumn && column <= maxColumn;
+			}
+			
+			if(inside) {
+				matches.add(i);
+			}
+		}
+		
+		return matches;
+	}
+	
+	/**
+	 * get the number of messages in the index
+	 * 
+	 * @return the number of messages with a valid location
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * get the length of the file when it was indexed
+	 * 
+	 * @return the number of bytes of the file that are indexed
+	 */
+	public long getIndexedLength() {
+		return indexedLength;
+	}
+	
+	/**
+	 * get the number of cells that contain at least one message
+	 * 
+	 * @return the number of cells
+	 */
+	public int getCellCount() {
+		return keys.length;
+	}
+	
+	// get the key of the cell containing the location in a message, or -1 if it doesn't have a valid location
+	private static long readCellKey(byte[] message) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		// fields missing from a message take their default values
+		double latitude = 0;
+		double longitude = 0;
+		
+		// the location and point of interest messages use the same field numbers
+		while(buffer.hasRemaining()) {
+			
+			int tag = MessageDecoder.readVarint32(buffer);
+			
+			switch(tag) {
+			case MessageDecoder.LATITUDE_TAG:
+				latitude = buffer.getDouble();
+				break;
+			case MessageDecoder.LONGITUDE_TAG:
+				longitude = buffer.getDouble();
+				break;
+			default:
+				MessageDecoder.skipField(buffer, tag);
+			}
+		}
+		
+		if((latitude >= -90 && latitude <= 90) == false || (longitude >= -180 && longitude <= 180) == false) {
+			return -1;
+		}
+		
+		return (long) getRow(latitude) * COLUMNS + getColumn(longitude);
+	}
+	
+	// get the row of the cells containing a latitude
+	private static int getRow(double latitude) {
+		return Math.min(ROWS - 1, (int) Math.floor((latitude + 90) * CELLS_PER_DEGREE));
+	}
+	
+	// get the column of the cells containing a longitude
+	private static int getColumn(double longitude) {
+		return Math.min(COLUMNS - 1, (int) Math.floor((longitude + 180) * CELLS_PER_DEGREE));
+	}
+	
+	// read a stored index, returning null if it doesn't match the file or can't be read
+	private static SpatialIndex read(File indexFile, File dataFile) {
+		
+		DataInputStream input = null;
+		
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE));
+			
+			if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			
+			// an index of an older version of the file is rebuilt
+			long indexedLength = input.readLong();
+			
+			if(indexedLength != dataFile.length() || input.readLong() != dataFile.lastModified()) {
+				return null;
+			}
+			
+			if(input.readInt() != CELLS_PER_DEGREE) {
+				return null;
+			}
+			
+			long recordCount = input.readLong();
+			int cellCount = input.readInt();
+			int size = input.readInt();
+			
+			if(cellCount < 0 || size < 0) {
+				return null;
+			}
+			
+			long[] keys = new long[cellCount];
+			int[] counts = new int[cellCount];
+			int[] starts = new int[cellCount];
+			
+			for(int i = 0; i < cellCount; i++) {
+				keys[i] = input.readLong();
+				counts[i] = input.readInt();
+				starts[i] = input.readInt();
+				
+				if(counts[i] < 0 || starts[i] < 0 || starts[i] > size) {
+					return null;
+				}
+			}
+			
+			byte[] offsets = new byte[size];
+			input.readFully(offsets);
+			
+			return new SpatialIndex(keys, counts, starts, offsets, recordCount, indexedLength);
+			
+		} catch (IOException e) {
+			// a truncated or unreadable index is rebuilt
+			return null;
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch (IOException ignored) {
+					
+				}
+			}
+		}
+	}
+	
+	// store the index, an index that can't be stored is still used for this conversion
+	private void write(File indexFile, File dataFile) {
+		
+		File tempFile = null;
+		DataOutputStream output = null;
+		
+		try {
+			// write to a temporary file first so a partial index is never read
+			tempFile = File.createTempFile(dataFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+			
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(indexedLength);
+			output.writeLong(dataFile.lastModified());
+			output.writeInt(CELLS_PER_DEGREE);
+			output.writeLong(recordCount);
+			output.writeInt(keys.length);
+			output.writeInt(offsets.length);
+			
+			for(int i = 0; i < keys.length; i++) {
+				output.writeLong(keys[i]);
+				output.writeInt(counts[i]);
+				output.writeInt(starts[i]);
+			}
+			
+			output.write(offsets);
+			output.close();
+			output = null;
+			
+			// replace any older index
+			indexFile.delete();
+			
+			if(tempFile.renameTo(indexFile)) {
+				tempFile = null;
+			}
+			
+		} catch (IOException e) {
+			// the index is rebuilt the next time it is needed
+		} finally {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException ignored) {
+					
+				}
+			}
+			
+			if(tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+	
+	/**
+	 * the offsets of the messages found by a query, the offsets of each cell are
+	 * in order but the cells are interleaved in the file, so the cells are merged
+	 */
+	public class Matches {
+		
+		private PriorityQueue<CellCursor> cursors = new PriorityQueue<CellCursor>();
+		private long count = 0;
+		
+		// only queries create matches
+		private Matches() {
+			
+		}
+		
+		// add the cell at an index in the keys
+		private void add(int cell) {
+			
+			CellCursor cursor = new CellCursor(cell);
+			
+			if(cursor.advance()) {
+				cursors.add(cursor);
+			}
+			
+			count += counts[cell];
+		}
+		
+		/**
+		 * get the offset of the next message
+		 * 
+		 * @return the offset of the next message in the file, or -1 if there are no more messages
+		 */
+		public long next() {
+			
+			CellCursor cursor = cursors.poll();
+			
+			if(cursor == null) {
+				return -1;
+			}
+			
+			long offset = cursor.offset;
+			
+			if(cursor.advance()) {
+				cursors.add(cursor);
+			}
+			
+			return offset;
+		}
+		
+		/**
+		 * get the number of messages found by the query
+		 * 
+		 * @return the number of messages
+		 */
+		public long getCount() {
+			return count;
+		}
+	}
+	
+	/*
+	 * the current offset while the offsets of a cell are decoded
+	 */
+	private class CellCursor implements Comparable<CellCursor> {
+		
+		private int  index;
+		private int  remaining;
+		private long offset = 0;
+		
+		CellCursor(int cell) {
+			index = starts[cell];
+			remaining = counts[cell];
+		}
+		
+		// decode the next offset of the cell
+		boolean advance() {
+			
+			if(remaining == 0) {
+				return false;
+			}
+			
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			
+			do {
+				b = offsets[index++];
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			
+			offset += delta;
+			remaining--;
+			
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(CellCursor other) {
+			return offset < other.offset ? -1 : (offset == other.offset ? 0 : 1);
+		}
+	}
+	
+	/*
+	 * the offsets of the messages in a cell while the index is built
+	 */
+	private static class Cell {
+		
+		byte[] offsets = new byte[INITIAL_CELL_SIZE];
+		int    size = 0;
+		int    count = 0;
+		long   last = 0;
+		
+		// add the offset of a message, which is after the offset of the previous message
+		void add(long offset) {
+			
+			if(size + MAX_VARINT64_SIZE > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			
+			long value = offset - last;
+			
+			while((value & ~0x7FL) != 0) {
+				offsets[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			
+			offsets[size++] = (byte) value;
+			
+			last = offset;
+			count++;
+		}
+	}
+}
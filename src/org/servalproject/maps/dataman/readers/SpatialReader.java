@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+
+import org.servalproject.maps.dataman.pipeline.PoiSource;
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.types.PoiElement;
+
+/**
+ * reads the messages inside a bounding box from binary location or POI files
+ * 
+ * the spatial index of each file is used to find the messages that may be 
+ * inside the box, and only those messages are decoded from the mapped file,
+ * the messages are read in the order they are stored and the files in a 
+ * list are read one after another
+ * 
+ * location files are read by calling next with a GpsTraceElement, and 
+ * POI files are read by calling next with a PoiElement
+ * 
+ * the messages can also be limited to a range of time, in which case the
+ * time index of each file is used to skip the messages outside of the range
+ * 
+ * when most of the messages in a file are inside the box the file is read 
+ * from start to end instead, which is quicker than following the index
+ */
+public class SpatialReader implements TraceSource, PoiSource {
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File>       inputFiles;
+	private int              nextFile = 0;
+	private BoundingBox      box;
+	private long             from = Long.MIN_VALUE;
+	private long             to = Long.MAX_VALUE;
+	private boolean          hasTimeRange = false;
+	
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	private long             fileSize;
+	private int              regionSize = MappedLocationReader.DEFAULT_REGION_SIZE;
+	
+	private MappedByteBuffer region;
+	private long             regionStart = 0;
+	
+	private SpatialIndex.Matches matches;
+	private long[]           ranges;
+	private int              range = 0;
+	
+	private boolean          isScanning = false;
+	private long             scanOffset;
+	private long             scanEnd;
+	
+	private StringTable      strings = new StringTable();
+	
+	/**
+	 * open a binary location or POI file for reading the messages inside a bounding box
+	 * 
+	 * @param inputFile the binary location or POI file
+	 * @param box the bounding box
+	 */
+	public SpatialReader(File inputFile, BoundingBox box) {
+		this(inputFile == null ? null : Collections.singletonList(inputFile), box);
+	}
+	
+	/**
+	 * open a list of binary location or POI files for reading the messages inside
+	 * a bounding box, the files are read one after another
+	 * 
+	 * @param inputFiles the list of binary location or POI files
+	 * @param box the bounding box
+	 */
+	public SpatialReader(List<File> inputFiles, BoundingBox box) {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the inputFiles parameter is required");
+		}
+		
+		if(box == null) {
+			throw new IllegalArgumentException("the box parameter is required");
+		}
+		
+		this.inputFiles = inputFiles;
+		this.box = box;
+	}
+	
+	/**
+	 * only read the messages in a range of time as well as inside the bounding box
+	 * 
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 */
+	public void setTimeRange(long from, long to) {
+		
+		if(from > to) {
+			throw new IllegalArgumentException("the start of the range must not be after the end");
+		}
+		
+		this.from = from;
+		this.to = to;
+		hasTimeRange = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		try {
+			while(seekNextMessage()) {
+				
+				MessageDecoder.decodeLocation(region, MessageDecoder.readVarint32(region), element, strings);
+				
+				// the cells on the edges of the box are partly outside of it
+				if(box.contains(element.getLatitude(), element.getLongitude()) && isInRange(element.getTimestamp())) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.PoiSource#next(org.servalproject.maps.dataman.types.PoiElement)
+	 */
+	@Override
+	public boolean next(PoiElement element) throws TaskException {
+		
+		try {
+			while(seekNextMessage()) {
+				
+				MessageDecoder.decodePointOfInterest(region, MessageDecoder.readVarint32(region), element, strings);
+				
+				// the cells on the edges of the box are partly outside of it
+				if(box.contains(element.getLatitude(), element.getLongitude()) && isInRange(element.getTimestamp())) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+		
+		return false;
+	}
+
+	// find the next message that may be inside the box without decoding it, for the
+	// readers that copy messages, returning the length of the message with the 
+	// mapped region positioned at its fields, or -1 if there are no more
+	int nextMessage() throws TaskException {
+		
+		try {
+			if(seekNextMessage() == false) {
+				return -1;
+			}
+			
+			return MessageDecoder.readVarint32(region);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to read messages from the binary file", e);
+		}
+	}
+	
+	// get the mapped region containing the message found by nextMessage
+	ByteBuffer getRegion() {
+		return region;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		region = null;
+		
+		if(file == null) {
+			return;
+		}
+		
+		// play nice and tidy up
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new TaskException("unable to close the binary file", e);
+		} finally {
+			file = null;
+		}
+	}
+	
+	// position the mapped region at the next message that may be inside the box, 
+	// opening the next file as required, returning false if there are no more
+	private boolean seekNextMessage() throws IOException, TaskException {
+		
+		long messageStart = nextMatch();
+		
+		while(messageStart < 0) {
+			
+			if(nextFile == inputFiles.size()) {
+				return false;
+			}
+			
+			close();
+			openNextFile();
+			
+			messageStart = nextMatch();
+		}
+		
+		if(messageStart >= fileSize) {
+			throw new IOException("the spatial index refers to a message past the end of the file");
+		}
+		
+		// make sure the length prefix is inside the mapped region
+		if(region == null || messageStart < regionStart || messageStart + MessageDecoder.MAX_VARINT_SIZE > regionStart + region.limit() && regionStart + region.limit() < fileSize) {
+			map(messageStart);
+		}
+		
+		region.position((int) (messageStart - regionStart));
+		
+		int length = MessageDecoder.readVarint32(region);
+		int prefixSize = (int) (regionStart + region.position() - messageStart);
+		
+		// a scan continues with the message that follows
+		scanOffset = messageStart + prefixSize + length;
+		
+		// make sure the entire message is inside the mapped region
+		if(length > region.remaining() && regionStart + region.limit() < fileSize) {
+			
+			if(prefixSize + length > regionSize) {
+				throw new IOException("a message is larger than the mapped region size");
+			}
+			
+			map(messageStart);
+		}
+		
+		// leave the region positioned at the length of the message
+		region.position((int) (messageStart - regionStart));
+		
+		return true;
+	}
+	
+	// get the offset of the next message that may be inside the box, and inside the parts 
+	// of the file containing the range of time if there is one, or -1 if there are no more
+	private long nextMatch() {
+		
+		if(matches == null) {
+			return -1;
+		}
+		
+		long offset;
+		
+		// both the offsets and the parts are in ascending order
+		while((offset = nextCandidate()) >= 0) {
+			
+			if(ranges == null) {
+				return offset;
+			}
+			
+			while(range < ranges.length && ranges[range + 1] <= offset) {
+				range += 2;
+			}
+			
+			if(range == ranges.length) {
+				break;
+			}
+			
+			if(offset >= ranges[range]) {
+				return offset;
+			}
+			
+			// a scan skips straight to the start of the next part
+			if(isScanning) {
+				scanOffset = ranges[range];
+			}
+		}
+		
+		matches = null;
+		return -1;
+	}
+	
+	// get the offset of the next message in the index or the scan, or -1 if there are no more
+	private long nextCandidate() {
+		
+		if(isScanning) {
+			return scanOffset < scanEnd ? scanOffset : -1;
+		}
+		
+		return matches.next();
+	}
+	
+	// open the next file in the list and find the messages that may be inside the box
+	private void openNextFile() throws TaskException {
+		
+		File inputFile = inputFiles.get(nextFile++);
+		
+		SpatialIndex index = SpatialIndex.open(inputFile);
+		
+		matches = index.query(box);
+		ranges = null;
+		range = 0;
+		
+		// merging the offsets of many cells is slower than reading every message
+		isScanning = matches.getCount() > index.getRecordCount() / 2;
+		scanOffset = 0;
+		scanEnd = index.getIndexedLength();
+		
+		if(hasTimeRange && matches.getCount() > 0) {
+			ranges = TimeIndex.open(inputFile).findRanges(from, to);
+		}
+		
+		// there is no need to map a file without any messages inside the box
+		if(matches.getCount() == 0 || (ranges != null && ranges.length == 0)) {
+			matches = null;
+			return;
+		}
+		
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + inputFile.getPath() + "'", e);
+		}
+		
+		channel = file.getChannel();
+		
+		// the region is mapped when the first message is read
+		try {
+			fileSize = channel.size();
+		} catch (IOException e) {
+			close();
+			throw new TaskException("unable to read the input file '" + inputFile.getPath() + "'", e);
+		}
+	}
+	
+	// check if a time is in the range of time, if there is one
+	private boolean isInRange(long time) {
+		return hasTimeRange == false || (time >= from && time < to);
+	}
+	
+	// map the region of the file that starts at the supplied offset
+	private void map(long offset) throws IOException {
+		
+		long size = Math.min(regionSize, fileSize - offset);
+		
+		region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		regionStart = offset;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.util.HashMap;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * a table of the strings decoded from binary files
+ * 
+ * the same phone number, subscriber id and time zone strings are repeated
+ * in every message so they are decoded once and the same String reused
+ */
+public class StringTable {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int MAX_SIZE = 4096;
+	
+	/*
+	 * private class level variables
+	 */
+	private HashMap<ByteString, String> strings = new HashMap<ByteString, String>();
+	
+	/**
+	 * get the string represented by the supplied UTF-8 bytes
+	 * 
+	 * @param bytes the UTF-8 bytes of the string
+	 * @return the string represented by the bytes
+	 */
+	public String get(ByteString bytes) {
+		
+		String string = strings.get(bytes);
+		
+		if(string == null) {
+			
+			// unusually varied input shouldn't be allowed to use an unbounded amount of memory
+			if(strings.size() == MAX_SIZE) {
+				strings.clear();
+			}
+			
+			string = bytes.toStringUtf8();
+			strings.put(bytes, string);
+		}
+		
+		return string;
+	}
+}
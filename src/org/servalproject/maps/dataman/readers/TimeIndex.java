@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.servalproject.maps.dataman.tasks.TaskException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * a sparse index of the times of the messages in a binary location file
+ * 
+ * the messages are divided into blocks of BLOCK_SIZE messages and the index 
+ * stores the offset in the file of the first message of each block, along with
+ * the earliest and latest time of the messages in the block, so the blocks 
+ * containing a range of time can be found without decoding the rest of the file
+ * 
+ * the earliest and latest times are kept for each block as the messages of 
+ * a file aren't required to be in time order, for a file that is in time order
+ * the blocks containing a range of time are always next to each other
+ * 
+ * the index is stored next to the file it indexes, with the INDEX_EXT extension
+ * added to the name of the file, as binary location files are only ever appended
+ * to the index of a file that has grown is extended rather than rebuilt
+ * 
+ * a checksum of the messages in the last block is stored with the index and 
+ * checked when the index is read, so that the index of a file that has been 
+ * replaced by a longer file isn't extended from offsets that no longer match
+ */
+public class TimeIndex {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the extension added to the name of a file to get the name of its index
+	 */
+	public static final String INDEX_EXT = ".tidx";
+	
+	/**
+	 * the number of messages in each block
+	 */
+	public static final int BLOCK_SIZE = 1024;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int MAGIC   = 0x534D5449;
+	private static final int VERSION = 2;
+	
+	private static final int BUFFER_SIZE = 65536;
+	private static final int MAX_VARINT32_SIZE = 5;
+	
+	/*
+	 * private class level variables
+	 */
+	private long[] offsets;
+	private long[] earliest;
+	private long[] latest;
+	private int    blockCount;
+	private long   indexedLength;
+	
+	// the latest time of a block and the blocks before it, and the earliest time of a block and the blocks after it
+	private long[] latestBefore;
+	private long[] earliestAfter;
+	
+	// create an empty index
+	private TimeIndex() {
+		offsets = new long[16];
+		earliest = new long[16];
+		latest = new long[16];
+	}
+	
+	/**
+	 * open the index of a binary location file, building it if it doesn't
+	 * exist, or extending it if the file has grown since it was built
+	 * 
+	 * @param dataFile the binary location file
+	 * @return the index of the file
+	 * @throws TaskException if the file cannot be read
+	 */
+	public static TimeIndex open(File dataFile) throws TaskException {
+		
+		if(dataFile == null) {
+			throw new IllegalArgumentException("the dataFile parameter is required");
+		}
+		
+		File indexFile = getIndexFile(dataFile);
+		
+		TimeIndex index = null;
+		
+		if(indexFile.isFile()) {
+			index = read(indexFile, dataFile);
+		}
+		
+		if(index != null && index.indexedLength == dataFile.length()) {
+			index.summarise();
+			return index;
+		}
+		
+		if(index == null) {
+			index = new TimeIndex();
+		}
+		
+		index.extend(dataFile);
+		index.write(indexFile, dataFile);
+		index.summarise();
+		
+		return index;
+	}
+	
+	/**
+	 * get the file used to store the index of a binary location file
+	 * 
+	 * @param dataFile the binary location file
+	 * @return the index file
+	 */
+	public static File getIndexFile(File dataFile) {
+		return new File(dataFile.getPath() + INDEX_EXT);
+	}
+	
+	/**
+	 * find the parts of the file that contain the messages in a range of time, 
+	 * the parts may also contain messages outside of the range
+	 * 
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 * @return the start and end offset of each part, one after another in ascending order
+	 */
+	public long[] findRanges(long from, long to) {
+		
+		if(from >= to) {
+			return new long[0];
+		}
+		
+		// the first block with a message at or after the start of the range
+		int first = Arrays.binarySearch(latestBefore, 0, blockCount, from);
+		
+		if(first < 0) {
+			first = -first - 1;
+		} else {
+			while(first > 0 && latestBefore[first - 1] == from) {
+				first--;
+			}
+		}
+		
+		// the block after the last block with a message before the end of the range
+		int last = Arrays.binarySearch(earliestAfter, 0, blockCount, to);
+		
+		if(last < 0) {
+			last = -last - 1;
+		} else {
+			while(last > 0 && earliestAfter[last - 1] == to) {
+				last--;
+			}
+		}
+		
+		long[] ranges = new long[16];
+		int count = 0;
+		
+		for(int i = first; i < last; i++) {
+			
+			if(earliest[i] >= to || latest[i] < from) {
+				continue;
+			}
+			
+			long start = offsets[i];
+			// the last block ends at the end of the last complete message
+			long end = i + 1 < blockCount ? offsets[i + 1] : indexedLength;
+			
+			// join blocks that are next to each other
+			if(count > 0 && ranges[count - 1] == start) {
+				ranges[count - 1] = end;
+				continue;
+			}
+			
+			if(count == ranges.length) {
+				ranges = Arrays.copyOf(ranges, count * 2);
+			}
+			
+			ranges[count++] = start;
+			ranges[count++] = end;
+		}
+		
+		return Arrays.copyOf(ranges, count);
+	}
+	
+	/**
+	 * get the number of blocks in the index
+	 * 
+	 * @return the number of blocks
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+	
+	// index the messages after the last complete block of the index
+	private void extend(File dataFile) throws TaskException {
+		
+		long offset = 0;
+		
+		// the last block may not have been full, so it is indexed again
+		if(blockCount > 0) {
+			offset = offsets[--blockCount];
+		}
+		
+		long fileLength = dataFile.length();
+		FileInputStream input;
+		
+		try {
+			input = new FileInputStream(dataFile);
+		} catch (FileNotFoundException e) {
+			throw new TaskException("unable to open the input file '" + dataFile.getPath() + "'", e);
+		}
+		
+		try {
+			input.getChannel().position(offset);
+			
+			CodedInputStream codedInput = CodedInputStream.newInstance(new BufferedInputStream(input, BUFFER_SIZE));
+			int messages = 0;
+			
+			while(offset < fileLength) {
+				
+				codedInput.resetSizeCounter();
+				
+				int length;
+				
+				try {
+					length = codedInput.readRawVarint32();
+				} catch (InvalidProtocolBufferException e) {
+					
+					// a message that is still being written is indexed the next time
+					if(fileLength - offset < MAX_VARINT32_SIZE) {
+						break;
+					}
+					
+					throw e;
+				}
+				
+				long end = offset + CodedOutputStream.computeRawVarint32Size(length) + length;
+				
+				if(end > fileLength) {
+					break;
+				}
+				
+				int oldLimit = codedInput.pushLimit(length);
+				long time = readTime(codedInput);
+				codedInput.skipRawBytes(codedInput.getBytesUntilLimit());
+				codedInput.popLimit(oldLimit);
+				
+				if(messages == 0) {
+					addBlock(offset, time);
+				} else {
+					earliest[blockCount - 1] = Math.min(earliest[blockCount - 1], time);
+					latest[blockCount - 1] = Math.max(latest[blockCount - 1], time);
+				}
+				
+				messages = (messages + 1) % BLOCK_SIZE;
+				offset = end;
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to index the input file '" + dataFile.getPath() + "'", e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException ignored) {
+				
+			}
+		}
+		
+		indexedLength = offset;
+	}
+	
+	// read the time field of a message, without decoding the other fields
+	private static long readTime(CodedInputStream codedInput) throws IOException {
+		
+		long time = 0;
+		int tag;
+		
+		while((tag = codedInput.readTag()) != 0) {
+			
+			if(tag == MessageDecoder.TIMESTAMP_TAG) {
+				time = codedInput.readInt64();
+			} else if(codedInput.skipField(tag) == false) {
+				break;
+			}
+		}
+		
+		return time;
+	}
+	
+	// start a new block
+	private void addBlock(long offset, long time) {
+		
+		if(blockCount == offsets.length) {
+			int size = blockCount * 2;
+			offsets = Arrays.copyOf(offsets, size);
+			earliest = Arrays.copyOf(earliest, size);
+			latest = Arrays.copyOf(latest, size);
+		}
+		
+		offsets[blockCount] = offset;
+		earliest[blockCount] = time;
+		latest[blockCount] = time;
+		blockCount++;
+	}
+	
+	// work out the running latest and earliest times used to search the blocks
+	private void summarise() {
+		
+		latestBefore = new long[blockCount];
+		earliestAfter = new long[blockCount];
+		
+		for(int i = 0; i < blockCount; i++) {
+			latestBefore[i] = i == 0 ? latest[i] : Math.max(latestBefore[i - 1], latest[i]);
+		}
+		
+		for(int i = blockCount - 1; i >= 0; i--) {
+			earliestAfter[i] = i == blockCount - 1 ? earliest[i] : Math.min(earliestAfter[i + 1], earliest[i]);
+		}
+	}
+	
+	// read a stored index, returning null if it doesn't match the file or can't be read
+	private static TimeIndex read(File indexFile, File dataFile) {
+		
+		DataInputStream input = null;
+		
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE));
+			
+			if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			
+			long indexedLength = input.readLong();
+			long lastModified = input.readLong();
+			long checksum = input.readLong();
+			
+			// a file that is the same length but has been modified, or has been truncated, is indexed again
+			if(indexedLength > dataFile.length() || (indexedLength == dataFile.length() && lastModified != dataFile.lastModified())) {
+				return null;
+			}
+			
+			if(input.readInt() != BLOCK_SIZE) {
+				return null;
+			}
+			
+			int blockCount = input.readInt();
+			
+			if(blockCount < 0) {
+				return null;
+			}
+			
+			TimeIndex index = new TimeIndex();
+			
+			for(int i = 0; i < blockCount; i++) {
+				index.addBlock(input.readLong(), input.readLong());
+				index.latest[i] = input.readLong();
+			}
+			
+			index.indexedLength = indexedLength;
+			
+			// the messages of the last block no longer match if the file has been replaced
+			if(index.checksumLastBlock(dataFile) != checksum) {
+				return null;
+			}
+			
+			return index;
+			
+		} catch (IOException e) {
+			// a truncated or unreadable index is rebuilt
+			return null;
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch (IOException ignored) {
+					
+				}
+			}
+		}
+	}
+	
+	// work out the checksum of the bytes of the messages in the last block
+	private long checksumLastBlock(File dataFile) throws IOException {
+		
+		CRC32 checksum = new CRC32();
+		
+		if(blockCount == 0) {
+			return checksum.getValue();
+		}
+		
+		RandomAccessFile input = new RandomAccessFile(dataFile, "r");
+		
+		try {
+			input.seek(offsets[blockCount - 1]);
+			
+			byte[] bytes = new byte[BUFFER_SIZE];
+			long remaining = indexedLength - offsets[blockCount - 1];
+			
+			while(remaining > 0) {
+				
+				int count = input.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+				
+				if(count < 0) {
+					throw new EOFException("the input file is shorter than the index");
+				}
+				
+				checksum.update(bytes, 0, count);
+				remaining -= count;
+			}
+		} finally {
+			input.close();
+		}
+		
+		return checksum.getValue();
+	}
+	
+	// store the index, an index that can't be stored is still used for this conversion
+	private void write(File indexFile, File dataFile) {
+		
+		File tempFile = null;
+		DataOutputStream output = null;
+		
+		try {
+			// write to a temporary file first so a partial index is never read
+			tempFile = File.createTempFile(dataFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+			
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(indexedLength);
+			output.writeLong(dataFile.lastModified());
+			output.writeLong(checksumLastBlock(dataFile));
+			output.writeInt(BLOCK_SIZE);
+			output.writeInt(blockCount);
+			
+			for(int i = 0; i < blockCount; i++) {
+				output.writeLong(offsets[i]);
+				output.writeLong(earliest[i]);
+				output.writeLong(latest[i]);
+			}
+			
+			output.close();
+			output = null;
+			
+			// replace any older index
+			indexFile.delete();
+			
+			if(tempFile.renameTo(indexFile)) {
+				tempFile = null;
+			}
+			
+		} catch (IOException e) {
+			// the index is extended the next time it is needed
+		} finally {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException ignored) {
+					
+				}
+			}
+			
+			if(tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+}
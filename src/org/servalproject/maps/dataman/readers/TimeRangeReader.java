@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.readers;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.tasks.TaskException;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+
+/**
+ * reads the location messages in a range of time from binary location files
+ * 
+ * the time index of each file is used to find the parts of the file that 
+ * contain the range, the mapped file is positioned at the start of each part 
+ * and reading stops at its end, so the rest of the file is never decoded,
+ * the messages are read in the order they are stored and the files in a 
+ * list are read one after another
+ */
+public class TimeRangeReader implements TraceSource {
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File>           inputFiles;
+	private int                  nextFile = 0;
+	private long                 from;
+	private long                 to;
+	
+	private MappedLocationReader reader;
+	private long[]               ranges = new long[0];
+	private int                  nextRange = 0;
+	private long                 rangeEnd = 0;
+	
+	/**
+	 * open a binary location file for reading the messages in a range of time
+	 * 
+	 * @param inputFile the binary location file
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 */
+	public TimeRangeReader(File inputFile, long from, long to) {
+		this(inputFile == null ? null : Collections.singletonList(inputFile), from, to);
+	}
+	
+	/**
+	 * open a list of binary location files for reading the messages in a 
+	 * range of time, the files are read one after another
+	 * 
+	 * @param inputFiles the list of binary location files
+	 * @param from the earliest time in the range
+	 * @param to the time after the latest time in the range
+	 */
+	public TimeRangeReader(List<File> inputFiles, long from, long to) {
+		
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the inputFiles parameter is required");
+		}
+		
+		if(from > to) {
+			throw new IllegalArgumentException("the start of the range must not be after the end");
+		}
+		
+		this.inputFiles = inputFiles;
+		this.from = from;
+		this.to = to;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#next(org.servalproject.maps.dataman.types.GpsTraceElement)
+	 */
+	@Override
+	public boolean next(GpsTraceElement element) throws TaskException {
+		
+		while(true) {
+			
+			// move on to the next part of the file at the end of each part
+			while(reader == null || reader.getPosition() >= rangeEnd) {
+				
+				if(reader != null && nextRange < ranges.length) {
+					reader.seek(ranges[nextRange++]);
+					rangeEnd = ranges[nextRange++];
+					continue;
+				}
+				
+				if(nextFile == inputFiles.size()) {
+					return false;
+				}
+				
+				close();
+				openNextFile();
+			}
+			
+			if(reader.next(element) == false) {
+				// the file has been replaced by a shorter one since it was indexed
+				rangeEnd = 0;
+				continue;
+			}
+			
+			// the parts may contain messages outside of the range
+			if(element.getTimestamp() >= from && element.getTimestamp() < to) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.dataman.pipeline.TraceSource#close()
+	 */
+	@Override
+	public void close() throws TaskException {
+		
+		if(reader != null) {
+			try {
+				reader.close();
+			} finally {
+				reader = null;
+			}
+		}
+	}
+	
+	// open the next file in the list and find the parts that contain the range
+	private void openNextFile() throws TaskException {
+		
+		File inputFile = inputFiles.get(nextFile++);
+		
+		ranges = TimeIndex.open(inputFile).findRanges(from, to);
+		nextRange = 0;
+		rangeEnd = 0;
+		
+		// there is no need to map a file without any messages in the range
+		if(ranges.length > 0) {
+			reader = new MappedLocationReader(inputFile);
+		}
+	}
+}
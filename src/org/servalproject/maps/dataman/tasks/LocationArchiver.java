@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.servalproject.maps.dataman.Utils;
+import org.servalproject.maps.dataman.builders.ArchiveWriter;
+import org.servalproject.maps.dataman.builders.BinaryLocationWriter;
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.readers.ArchiveReader;
+import org.servalproject.maps.dataman.readers.BinaryLocationReader;
+import org.servalproject.maps.dataman.readers.LocationReaders;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.protobuf.BinaryFileContract;
+
+/**
+ * methods to move location data between binary location files and location archives
+ * 
+ * the locations are written in the order they are read, and the files in 
+ * a list are read one after another into a single output file
+ */
+public class LocationArchiver {
+	
+	/*
+	 * private class level variables
+	 */
+	private boolean    verbose = false;
+	private List<File> inputFiles;
+	private File       outputFile;
+	private BoundingBox boundingBox = null;
+	private long       timeFrom = Long.MIN_VALUE;
+	private long       timeTo = Long.MAX_VALUE;
+	
+	/**
+	 * archive or extract the locations stored in a list of files into a single file
+	 * 
+	 * @param inputFiles the list of input files containing the data
+	 * @param outputFile the output file to contain the data
+	 * @param verbose indicates if verbose output is required
+	 */
+	public LocationArchiver(List<File> inputFiles, File outputFile, boolean verbose) {
+		
+		// check the parameters
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the input file parameter is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("the output file parameter is required");
+		}
+		
+		for(File inputFile : inputFiles) {
+			try {
+				if(Utils.isFileAccessible(inputFile.getCanonicalPath()) == false) {
+					throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed");
+				}
+			} catch(IOException e) {
+				throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed", e);
+			}
+		}
+		
+		try {
+			if(Utils.isFileAccessible(outputFile.getCanonicalPath()) == true) {
+				throw new IllegalArgumentException("the output file already exists");
+			}
+		}catch(IOException e) {
+			throw new IllegalArgumentException("the output file already exists", e);
+		}
+		
+		this.inputFiles = inputFiles;
+		this.outputFile = outputFile;
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * only archive or extract the locations inside a bounding box
+	 * 
+	 * @param boundingBox the bounding box, or null to include all of the locations
+	 */
+	public void setBoundingBox(BoundingBox boundingBox) {
+		this.boundingBox = boundingBox;
+	}
+	
+	/**
+	 * only archive or extract the locations in a range of time
+	 * 
+	 * @param from the earliest time in milliseconds since the epoch, or Long.MIN_VALUE
+	 * @param to the time after the latest time in milliseconds since the epoch, or Long.MAX_VALUE
+	 */
+	public void setTimeRange(long from, long to) {
+		
+		if(from > to) {
+			throw new IllegalArgumentException("the start of the time range must not be after the end");
+		}
+		
+		this.timeFrom = from;
+		this.timeTo = to;
+	}
+	
+	/**
+	 * check if a task type moves locations into or out of an archive
+	 * 
+	 * @param taskType the type of task
+	 * @return true if the task type archives or extracts locations
+	 */
+	public static boolean isArchiveTask(String taskType) {
+		return "binloctoarchive".equals(taskType) || "archivetobinloc".equals(taskType);
+	}
+	
+	/**
+	 * get the extension of the input files of a task type
+	 * 
+	 * @param taskType the type of task
+	 * @return the extension of the input files
+	 */
+	public static String getInputExtension(String taskType) {
+		
+		if("archivetobinloc".equals(taskType)) {
+			return BinaryFileContract.ARCHIVE_EXT;
+		}
+		
+		return BinaryFileContract.LOCATION_EXT;
+	}
+	
+	/**
+	 * undertake the task
+	 */
+	public void undertakeTask(String taskType) throws TaskException {
+		
+		// check on the parameters
+		if(Utils.isEmpty(taskType) == true) {
+			throw new IllegalArgumentException("the taskType parameter is required");
+		}
+		
+		if(isArchiveTask(taskType) == false) {
+			throw new TaskException("unrecognised task type parameter");
+		}
+		
+		String extension = getInputExtension(taskType);
+		
+		for(File inputFile : inputFiles) {
+			if(inputFile.getName().endsWith(extension) == false) {
+				throw new TaskException("an input file is required to end with '" + extension + "'");
+			}
+		}
+		
+		if(verbose) {
+			if(inputFiles.size() == 1) {
+				System.out.println("processing a binary file");
+			} else {
+				System.out.println("processing " + inputFiles.size() + " binary files");
+			}
+		}
+		
+		if("binloctoarchive".equals(taskType)) {
+			archive();
+		} else {
+			extract();
+		}
+	}
+	
+	/*
+	 * write the locations in binary location files to an archive
+	 */
+	private void archive() throws TaskException {
+		
+		ArchiveWriter writer;
+		
+		try {
+			writer = new ArchiveWriter(outputFile);
+		} catch (BuildException e) {
+			throw new TaskException("unable to create the output file", e);
+		}
+		
+		boolean completed = false;
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		
+		try {
+			for(File inputFile : inputFiles) {
+				
+				TraceSource source;
+				
+				// use the indexes of the file to find the locations that are included
+				if(boundingBox == null && timeFrom == Long.MIN_VALUE && timeTo == Long.MAX_VALUE) {
+					source = new BinaryLocationReader(inputFile);
+				} else {
+					source = LocationReaders.open(Collections.singletonList(inputFile), boundingBox, timeFrom, timeTo, false);
+				}
+				
+				try {
+					while(source.next(element)) {
+						writer.write(element);
+					}
+				} finally {
+					source.close();
+				}
+			}
+			
+			writer.close();
+			completed = true;
+			
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the archive", e);
+		} finally {
+			// don't leave a partial archive behind
+			if(completed == false) {
+				try {
+					writer.close();
+				} catch (BuildException ignored) {
+					
+				}
+				
+				outputFile.delete();
+			}
+		}
+		
+		if(verbose) {
+			System.out.println("archived " + writer.getLocationCount() + " locations in " + writer.getBlockCount() + " blocks");
+		}
+		
+		// the archive is still useful without them, but the locations shouldn't go missing unnoticed
+		if(writer.getSkippedCount() > 0) {
+			System.out.println("skipped " + writer.getSkippedCount() + " locations without a valid latitude and longitude");
+		}
+	}
+	
+	/*
+	 * write the locations in archives to a binary location file
+	 */
+	private void extract() throws TaskException {
+		
+		BinaryLocationWriter writer;
+		
+		try {
+			writer = new BinaryLocationWriter(outputFile, false);
+		} catch (BuildException e) {
+			throw new TaskException("unable to create the output file", e);
+		}
+		
+		ArchiveReader source = new ArchiveReader(inputFiles);
+		source.setBoundingBox(boundingBox);
+		
+		if(timeFrom != Long.MIN_VALUE || timeTo != Long.MAX_VALUE) {
+			source.setTimeRange(timeFrom, timeTo);
+		}
+		
+		boolean completed = false;
+		GpsTraceElement element = new GpsTraceElement(0, 0, 0);
+		long count = 0;
+		
+		try {
+			while(source.next(element)) {
+				writer.write(element);
+				count++;
+			}
+			
+			source.close();
+			writer.close();
+			completed = true;
+			
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the binary file", e);
+		} finally {
+			// don't leave a partial file behind
+			if(completed == false) {
+				try {
+					source.close();
+				} catch (TaskException ignored) {
+					
+				}
+				
+				try {
+					writer.close();
+				} catch (BuildException ignored) {
+					
+				}
+				
+				outputFile.delete();
+			}
+		}
+		
+		if(verbose) {
+			System.out.println("extracted " + count + " locations");
+		}
+	}
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.builders.KmlIndexBuilder;
+import org.servalproject.maps.dataman.readers.IncrementalLocationReader;
+import org.servalproject.maps.protobuf.BinaryFileContract;
+
+/**
+ * watch a directory of binary location files and convert the locations
+ * that are added to them as they arrive, rather than converting every file
+ * from the start each time
+ * 
+ * the new locations in a file are written to a numbered KML file in a 
+ * directory named after the file, an index KML file links to all of the
+ * numbered files so the whole trace can be opened at once
+ * 
+ * the latest numbered file is rewritten with the new locations until it covers 
+ * MAX_CHUNK_LENGTH bytes of the file or is MAX_CHUNK_AGE old, only then is
+ * a new numbered file started and the index rewritten, so a file that grows a 
+ * little at a time doesn't produce a numbered file for every change
+ * 
+ * the offset of the last complete message converted from each file is kept
+ * in a state file in the output directory, so watching can stop and later
+ * resume without converting any location twice, along with the time the file
+ * was modified and a checksum of the bytes before the offset, so that a file 
+ * that has been replaced by another file is converted again from the start
+ * 
+ * a single file that is still being written can also be followed, in which
+ * case a live KML file is written that refreshes the index at regular intervals
+ */
+public class LocationWatcher {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the name of the file in the output directory that records the progress of each file
+	 */
+	public static final String STATE_FILE_NAME = ".watch-state";
+	
+	/**
+	 * the time in milliseconds to wait for a burst of changes to finish before they are converted
+	 */
+	public static final long SETTLE_TIME = 500;
+	
+	/**
+	 * the suffix added to the name of the KML file that refreshes the index of a followed file
+	 */
+	public static final String LIVE_SUFFIX = "-live";
+	
+	/**
+	 * the number of bytes of a file converted into a KML file before a new KML file is started
+	 */
+	public static final long MAX_CHUNK_LENGTH = 1024 * 1024;
+	
+	/**
+	 * the time in milliseconds that new locations are added to a KML file before a new KML file is started
+	 */
+	public static final long MAX_CHUNK_AGE = 10 * 60 * 1000;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String KML_EXT = ".kml";
+	
+	// the values recorded in the state file for each file
+	private static final int STATE_OFFSET      = 0;
+	private static final int STATE_CHUNKS      = 1;
+	private static final int STATE_CHUNK_START = 2;
+	private static final int STATE_CHUNK_TIME  = 3;
+	private static final int STATE_MODIFIED    = 4;
+	private static final int STATE_CHECKSUM    = 5;
+	
+	// the number of bytes before the offset of a file that are checked
+	private static final int CHECKSUM_LENGTH = 4096;
+	
+	/*
+	 * private class level variables
+	 */
+	private File           inputDirectory;
+	private File           outputDirectory;
+	private LocationsToKml task;
+	private String         taskType;
+	private boolean        verbose;
+	
+	private Properties     state = new Properties();
+	
+	/**
+	 * create a new watcher
+	 * 
+	 * @param inputDirectory the directory containing the binary location files
+	 * @param outputDirectory the directory for the KML files
+	 * @param task the task, with its options, used to convert the new locations
+	 * @param taskType the type of task which determines the style of KML output
+	 * @param verbose indicates if verbose output is required
+	 * @throws TaskException if the output directory can't be created or its state file read
+	 */
+	public LocationWatcher(File inputDirectory, File outputDirectory, LocationsToKml task, String taskType, boolean verbose) throws TaskException {
+		
+		if(inputDirectory == null || inputDirectory.isDirectory() == false) {
+			throw new IllegalArgumentException("the input directory parameter must be a directory");
+		}
+		
+		if(outputDirectory == null) {
+			throw new IllegalArgumentException("the output directory parameter is required");
+		}
+		
+		if(task == null) {
+			throw new IllegalArgumentException("the task parameter is required");
+		}
+		
+		if(outputDirectory.isDirectory() == false && outputDirectory.mkdirs() == false) {
+			throw new TaskException("unable to create the output directory");
+		}
+		
+		this.inputDirectory = inputDirectory;
+		this.outputDirectory = outputDirectory;
+		this.task = task;
+		this.taskType = taskType;
+		this.verbose = verbose;
+		
+		// resume from where an earlier run finished
+		File stateFile = new File(outputDirectory, STATE_FILE_NAME);
+		
+		if(stateFile.isFile()) {
+			try {
+				InputStream input = new FileInputStream(stateFile);
+				
+				try {
+					state.load(input);
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to read the watch state file", e);
+			}
+		}
+	}
+	
+	/**
+	 * convert the new locations in all of the files, then watch the directory and 
+	 * convert the new locations in each file that changes until the thread is interrupted
+	 * 
+	 * @throws TaskException if the directory cannot be watched
+	 */
+	public void watch() throws TaskException {
+		
+		WatchService watcher;
+		
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			inputDirectory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			throw new TaskException("unable to watch the input directory", e);
+		}
+		
+		try {
+			// catch up with the changes made while no one was watching
+			updateAll();
+			
+			while(true) {
+				
+				WatchKey key = watcher.take();
+				
+				// let a burst of writes finish and then convert each changed file once
+				Thread.sleep(SETTLE_TIME);
+				
+				LinkedHashSet<String> changed = new LinkedHashSet<String>();
+				boolean isOverflow = false;
+				
+				while(key != null) {
+					
+					for(WatchEvent<?> event : key.pollEvents()) {
+						
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							isOverflow = true;
+						} else {
+							String name = ((Path) event.context()).getFileName().toString();
+							
+							if(name.endsWith(BinaryFileContract.LOCATION_EXT)) {
+								changed.add(name);
+							}
+						}
+					}
+					
+					if(key.reset() == false) {
+						throw new TaskException("the input directory can no longer be watched");
+					}
+					
+					key = watcher.poll();
+				}
+				
+				// some events were lost so check every file
+				if(isOverflow) {
+					updateAll();
+					continue;
+				}
+				
+				for(String name : changed) {
+					updateQuietly(new File(inputDirectory, name));
+				}
+			}
+			
+		} catch (InterruptedException e) {
+			// time to stop watching
+		} finally {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+	
+	/**
+	 * follow a single file as it grows, converting the new locations each time
+	 * its size changes until the thread is interrupted
+	 * 
+	 * the file is polled rather than watched, as changes to files on a shared
+	 * or network file system aren't always reported, so the delay before new 
+	 * locations are converted is at most the interval plus the time to convert them
+	 * 
+	 * @param inputFile the binary location file to follow, which must be in the input directory
+	 * @param interval the time in milliseconds between checks for new locations
+	 * @throws TaskException if the live KML file cannot be written
+	 */
+	public void follow(File inputFile, long interval) throws TaskException {
+		
+		if(inputFile == null) {
+			throw new IllegalArgumentException("the inputFile parameter is required");
+		}
+		
+		if(interval <= 0) {
+			throw new IllegalArgumentException("the interval parameter must be > 0");
+		}
+		
+		writeLiveIndex(getBaseName(inputFile.getName()), interval);
+		
+		long lastLength = -1;
+		long lastModified = -1;
+		
+		try {
+			while(true) {
+				
+				// only read the file when it has changed, as an incomplete 
+				// message at the end is otherwise read again each time
+				long length = inputFile.length();
+				long modified = inputFile.lastModified();
+				
+				if(length != lastLength || modified != lastModified) {
+					updateQuietly(inputFile);
+					lastLength = length;
+					lastModified = modified;
+				}
+				
+				Thread.sleep(interval);
+			}
+		} catch (InterruptedException e) {
+			// time to stop following
+		}
+	}
+	
+	/**
+	 * convert the new locations in all of the binary location files in the input directory
+	 * 
+	 * @return the number of files that had new locations
+	 */
+	public int updateAll() {
+		
+		File[] files = inputDirectory.listFiles();
+		
+		if(files == null) {
+			return 0;
+		}
+		
+		Arrays.sort(files);
+		
+		int updated = 0;
+		
+		for(File file : files) {
+			if(file.isFile() && file.getName().endsWith(BinaryFileContract.LOCATION_EXT)) {
+				if(updateQuietly(file)) {
+					updated++;
+				}
+			}
+		}
+		
+		return updated;
+	}
+	
+	/**
+	 * convert the locations added to a file since it was last converted
+	 * 
+	 * @param inputFile the binary location file
+	 * @return true if new locations were converted
+	 * @throws TaskException if the file cannot be read or the KML cannot be written
+	 */
+	public boolean update(File inputFile) throws TaskException {
+		
+		String name = inputFile.getName();
+		String baseName = getBaseName(name);
+		
+		long[] values = getState(name);
+		
+		long offset = values[STATE_OFFSET];
+		int chunks = (int) values[STATE_CHUNKS];
+		long chunkStart = values[STATE_CHUNK_START];
+		long chunkTime = values[STATE_CHUNK_TIME];
+		
+		// a file that has shrunk, is older, or has different bytes before the
+		// offset has been replaced so start it again
+		if(inputFile.length() < offset || isReplaced(inputFile, offset, values[STATE_MODIFIED], values[STATE_CHECKSUM])) {
+			
+			if(verbose) {
+				System.out.println(name + " has been replaced, converting it again");
+			}
+			
+			for(int i = 1; i <= chunks; i++) {
+				new File(outputDirectory, getChunkPath(baseName, i)).delete();
+			}
+			
+			offset = 0;
+			chunks = 0;
+			chunkStart = -1;
+		}
+		
+		if(inputFile.length() == offset) {
+			return false;
+		}
+		
+		// the last KML file is written again with the new locations added until it is large or old enough
+		long now = System.currentTimeMillis();
+		boolean isAppending = chunks > 0 && chunkStart >= 0 && offset - chunkStart < MAX_CHUNK_LENGTH && now - chunkTime < MAX_CHUNK_AGE;
+		
+		// write the locations to a temporary file, which is only kept if there are new locations
+		File chunkDirectory = new File(outputDirectory, baseName);
+		
+		if(chunkDirectory.isDirectory() == false && chunkDirectory.mkdirs() == false) {
+			throw new TaskException("unable to create the directory '" + chunkDirectory.getPath() + "'");
+		}
+		
+		File tempFile = new File(chunkDirectory, baseName + ".tmp");
+		IncrementalLocationReader reader = new IncrementalLocationReader(inputFile, isAppending ? chunkStart : offset);
+		
+		long count;
+		
+		try {
+			count = task.convert(reader, new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"), taskType);
+		} catch (IOException e) {
+			reader.close();
+			tempFile.delete();
+			throw new TaskException("unable to write the KML file", e);
+		} catch (TaskException e) {
+			tempFile.delete();
+			throw e;
+		}
+		
+		// only part of a message may have been added since the last update
+		if(count == 0 || reader.getOffset() == offset) {
+			tempFile.delete();
+			return false;
+		}
+		
+		if(isAppending == false) {
+			chunks++;
+			chunkStart = offset;
+			chunkTime = now;
+		}
+		
+		File chunkFile = new File(outputDirectory, getChunkPath(baseName, chunks));
+		
+		try {
+			Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new TaskException("unable to write the KML file '" + chunkFile.getPath() + "'", e);
+		}
+		
+		// the index already links to a KML file that has been written again
+		if(isAppending == false) {
+			writeIndex(baseName, chunks);
+		}
+		
+		// only record the progress once the KML has been written
+		long modified = inputFile.lastModified();
+		long checksum = checksumBefore(inputFile, reader.getOffset());
+		
+		state.setProperty(name, reader.getOffset() + "," + chunks + "," + chunkStart + "," + chunkTime + "," + modified + "," + checksum);
+		saveState();
+		
+		if(verbose) {
+			System.out.println(String.format("converted %d locations from %s to %s", count, name, chunkFile.getName()));
+		}
+		
+		return true;
+	}
+	
+	// update a file and report, rather than throw, any errors so other files are still converted
+	private boolean updateQuietly(File inputFile) {
+		
+		try {
+			return update(inputFile);
+		} catch (TaskException e) {
+			System.err.println("Error: unable to convert " + inputFile.getName() + "\n" + e.toString());
+			return false;
+		}
+	}
+	
+	// check if a file has been replaced since the locations before the offset were converted
+	private boolean isReplaced(File inputFile, long offset, long modified, long checksum) throws TaskException {
+		
+		// the state of earlier versions doesn't include a checksum
+		if(offset == 0 || checksum < 0) {
+			return false;
+		}
+		
+		// a file that is only appended to is never modified earlier than before
+		if(inputFile.lastModified() < modified) {
+			return true;
+		}
+		
+		return checksumBefore(inputFile, offset) != checksum;
+	}
+	
+	// work out the checksum of the bytes of a file just before an offset
+	private static long checksumBefore(File inputFile, long offset) throws TaskException {
+		
+		CRC32 checksum = new CRC32();
+		int length = (int) Math.min(CHECKSUM_LENGTH, offset);
+		byte[] bytes = new byte[length];
+		
+		try {
+			RandomAccessFile input = new RandomAccessFile(inputFile, "r");
+			
+			try {
+				input.seek(offset - length);
+				input.readFully(bytes);
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to read the input file '" + inputFile.getPath() + "'", e);
+		}
+		
+		checksum.update(bytes);
+		
+		return checksum.getValue();
+	}
+	
+	// get the values recorded for a file, the offset of the first location that hasn't 
+	// been converted, the number of KML files written, the offset and time of the 
+	// start of the last KML file, which is -1 if new locations can't be added to it, 
+	// and the time the file was modified and the checksum of the bytes before the offset, 
+	// which is -1 if it isn't known
+	private long[] getState(String name) {
+		
+		long[] values = {0, 0, -1, 0, 0, -1};
+		String value = state.getProperty(name);
+		
+		if(value == null) {
+			return values;
+		}
+		
+		// the state of earlier versions doesn't include all of the values
+		String[] fields = value.split(",");
+		
+		for(int i = 0; i < fields.length && i < values.length; i++) {
+			values[i] = Long.parseLong(fields[i]);
+		}
+		
+		return values;
+	}
+	
+	// get the name of a file without the binary location file extension
+	private static String getBaseName(String name) {
+		
+		if(name.endsWith(BinaryFileContract.LOCATION_EXT)) {
+			return name.substring(0, name.length() - BinaryFileContract.LOCATION_EXT.length());
+		}
+		
+		return name;
+	}
+	
+	// get the path of a numbered KML file relative to the output directory
+	private static String getChunkPath(String baseName, int chunk) {
+		return baseName + "/" + baseName + String.format("-%06d", chunk) + KML_EXT;
+	}
+	
+	// write the index that links to all of the KML files for a file
+	private void writeIndex(String baseName, int chunks) throws TaskException {
+		
+		File indexFile = new File(outputDirectory, baseName + KML_EXT);
+		File tempFile = new File(outputDirectory, baseName + ".tmp");
+		
+		try {
+			KmlIndexBuilder builder = new KmlIndexBuilder(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"), baseName);
+			
+			for(int i = 1; i <= chunks; i++) {
+				builder.addLink(String.format("%s part %d", baseName, i), getChunkPath(baseName, i));
+			}
+			
+			builder.close();
+			
+			Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+		} catch (BuildException e) {
+			throw new TaskException("unable to write the KML index '" + indexFile.getPath() + "'", e);
+		} catch (IOException e) {
+			throw new TaskException("unable to write the KML index '" + indexFile.getPath() + "'", e);
+		}
+	}
+	
+	// write the KML file that reloads the index of a followed file at each interval
+	private void writeLiveIndex(String baseName, long interval) throws TaskException {
+		
+		File liveFile = new File(outputDirectory, baseName + LIVE_SUFFIX + KML_EXT);
+		
+		try {
+			KmlIndexBuilder builder = new KmlIndexBuilder(new OutputStreamWriter(new FileOutputStream(liveFile), "UTF-8"), baseName);
+			builder.addLink(baseName, baseName + KML_EXT, Math.max(1, interval / 1000));
+			builder.close();
+		} catch (BuildException e) {
+			throw new TaskException("unable to write the live KML file '" + liveFile.getPath() + "'", e);
+		} catch (IOException e) {
+			throw new TaskException("unable to write the live KML file '" + liveFile.getPath() + "'", e);
+		}
+	}
+	
+	// save the progress of each file, replacing the old state file in one step
+	private void saveState() throws TaskException {
+		
+		File stateFile = new File(outputDirectory, STATE_FILE_NAME);
+		File tempFile = new File(outputDirectory, STATE_FILE_NAME + ".tmp");
+		
+		try {
+			OutputStream output = new FileOutputStream(tempFile);
+			
+			try {
+				state.store(output, "offset of the next location to convert, number of KML files written, offset and time of the start of the last KML file, time the file was modified, checksum of the bytes before the offset");
+			} finally {
+				output.close();
+			}
+			
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to save the watch state file", e);
+		}
+	}
+}
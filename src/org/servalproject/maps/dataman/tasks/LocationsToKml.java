@@ -20,24 +20,35 @@
 package org.servalproject.maps.dataman.tasks;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
 
+import org.servalproject.maps.dataman.CoordinateFormatter;
 import org.servalproject.maps.dataman.Utils;
 import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.builders.JsonBuilder;
 import org.servalproject.maps.dataman.builders.KmlBuilder;
-import org.servalproject.maps.dataman.types.GpsTraceElement;
+import org.servalproject.maps.dataman.pipeline.DedupStage;
+import org.servalproject.maps.dataman.pipeline.DeviceSplitStage;
+import org.servalproject.maps.dataman.pipeline.JsonSink;
+import org.servalproject.maps.dataman.pipeline.KmlSink;
+import org.servalproject.maps.dataman.pipeline.Pipeline;
+import org.servalproject.maps.dataman.pipeline.SimplifyStage;
+import org.servalproject.maps.dataman.pipeline.SortStage;
+import org.servalproject.maps.dataman.pipeline.TraceSink;
+import org.servalproject.maps.dataman.pipeline.TraceSource;
+import org.servalproject.maps.dataman.readers.LocationReaders;
+import org.servalproject.maps.dataman.types.BoundingBox;
 import org.servalproject.maps.dataman.types.KmlStyle;
+import org.servalproject.maps.dataman.types.ReaderTypes;
 import org.servalproject.maps.protobuf.BinaryFileContract;
-import org.servalproject.maps.protobuf.LocationMessage;
-import org.servalproject.maps.protobuf.LocationMessage.Message.Builder;
 
 /**
- * methods to process location data and output KML data
+ * methods to process location data and output KML data, or JSON and GeoJSON data
  */
 public class LocationsToKml {
 	
@@ -50,10 +61,21 @@ public class LocationsToKml {
 	 * private class level variables
 	 */
 	private boolean  verbose = false;
-	private File     inputFile;
+	private List<File> inputFiles;
 	private File     outputFile;
 	private int      fileType;
 	private KmlStyle style;
+	private String   readerType = ReaderTypes.DEFAULT;
+	private int      precision = CoordinateFormatter.FULL_PRECISION;
+	private double   simplifyTolerance = 0;
+	private boolean  splitByDevice = false;
+	private boolean  sortByTime = false;
+	private boolean  removeDuplicates = false;
+	private boolean  mergeByTime = false;
+	private int      sortMemory = SortStage.DEFAULT_MEMORY_LIMIT;
+	private BoundingBox boundingBox = null;
+	private long     timeFrom = Long.MIN_VALUE;
+	private long     timeTo = Long.MAX_VALUE;
 	
 	/**
 	 * convert the locations stored in a file into a KML file
@@ -64,9 +86,33 @@ public class LocationsToKml {
 	 * @param verbose indicates if verbose output is required
 	 */
 	public LocationsToKml(File inputFile, File outputFile, int fileType, boolean verbose, KmlStyle style) {
+		this(inputFile == null ? null : Collections.singletonList(inputFile), outputFile, fileType, verbose, style);
+	}
+	
+	/**
+	 * create a task that converts locations from a source supplied to the convert method
+	 * 
+	 * @param verbose indicates if verbose output is required
+	 * @param style the style of the KML output, may be null
+	 */
+	public LocationsToKml(boolean verbose, KmlStyle style) {
+		this.verbose = verbose;
+		this.style = style;
+		this.fileType = BINARY_FILE_TYPE;
+	}
+	
+	/**
+	 * convert the locations stored in a list of files into a single KML file
+	 * 
+	 * @param inputFiles the list of input files containing the data
+	 * @param outputFile the output file to contain the KML data
+	 * @param fileType the type of input file
+	 * @param verbose indicates if verbose output is required
+	 */
+	public LocationsToKml(List<File> inputFiles, File outputFile, int fileType, boolean verbose, KmlStyle style) {
 		
 		// check the parameters
-		if(inputFile == null) {
+		if(inputFiles == null || inputFiles.isEmpty()) {
 			throw new IllegalArgumentException("the input file parameter is required");
 		}
 		
@@ -74,12 +120,14 @@ public class LocationsToKml {
 			throw new IllegalArgumentException("the output file parameter is required");
 		}
 	
-		try {
-			if(Utils.isFileAccessible(inputFile.getCanonicalPath()) == false) {
-				throw new IllegalArgumentException("the input file cannot be accessed");
+		for(File inputFile : inputFiles) {
+			try {
+				if(Utils.isFileAccessible(inputFile.getCanonicalPath()) == false) {
+					throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed");
+				}
+			} catch(IOException e) {
+				throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed", e);
 			}
-		} catch(IOException e) {
-			throw new IllegalArgumentException("the input file cannot be accessed", e);
 		}
 		
 		try {
@@ -94,20 +142,144 @@ public class LocationsToKml {
 		
 		switch(fileType) {
 		case BINARY_FILE_TYPE:
-			if(inputFile.getName().endsWith(BinaryFileContract.LOCATION_EXT) == false) {
-				throw new IllegalArgumentException("a binary file is required to end with '" + BinaryFileContract.LOCATION_EXT + "'");
+			for(File inputFile : inputFiles) {
+				if(inputFile.getName().endsWith(BinaryFileContract.LOCATION_EXT) == false && LocationReaders.isArchive(inputFile) == false) {
+					throw new IllegalArgumentException("a binary file is required to end with '" + BinaryFileContract.LOCATION_EXT + "' or '" + BinaryFileContract.ARCHIVE_EXT + "'");
+				}
 			}
 			break;
 		default:
 			throw new IllegalArgumentException("the provided input type is invalid");
 		}
 		
-		this.inputFile = inputFile;
+		this.inputFiles = inputFiles;
 		this.outputFile = outputFile;
 		this.fileType = fileType;
 		this.style = style;
 	}
 	
+	/**
+	 * set the type of reader used to read the input file
+	 * 
+	 * @param readerType the type of reader as defined in ReaderTypes
+	 */
+	public void setReaderType(String readerType) {
+		
+		if(ReaderTypes.getReaderTypes().containsKey(readerType) == false) {
+			throw new IllegalArgumentException("the reader type was not recognised");
+		}
+		
+		this.readerType = readerType;
+	}
+	
+	/**
+	 * set the number of decimal places used for coordinates in the KML
+	 * 
+	 * @param precision the number of decimal places, or CoordinateFormatter.FULL_PRECISION
+	 */
+	public void setPrecision(int precision) {
+		
+		if(precision != CoordinateFormatter.FULL_PRECISION && (precision < 0 || precision > CoordinateFormatter.MAX_PRECISION)) {
+			throw new IllegalArgumentException("the precision must be between 0 and " + CoordinateFormatter.MAX_PRECISION);
+		}
+		
+		this.precision = precision;
+	}
+	
+	/**
+	 * simplify the trace before it is written to the KML, the locations are grouped
+	 * by device so that the trace of each device is simplified on its own
+	 * 
+	 * @param tolerance the maximum distance in metres of a removed location from the simplified trace, 0 to disable simplification
+	 */
+	public void setSimplifyTolerance(double tolerance) {
+		
+		if(tolerance < 0 || Double.isNaN(tolerance)) {
+			throw new IllegalArgumentException("the tolerance must be >= 0");
+		}
+		
+		this.simplifyTolerance = tolerance;
+	}
+	
+	/**
+	 * write the locations recorded by each device as a separate trace
+	 * 
+	 * @param splitByDevice if true a separate trace is written for each device
+	 */
+	public void setSplitByDevice(boolean splitByDevice) {
+		this.splitByDevice = splitByDevice;
+	}
+	
+	/**
+	 * sort the locations by device and then by time before they are written to the KML
+	 * 
+	 * @param sortByTime if true the locations are sorted
+	 */
+	public void setSortByTime(boolean sortByTime) {
+		this.sortByTime = sortByTime;
+	}
+	
+	/**
+	 * set the amount of memory used to sort locations, larger inputs are sorted using temporary files
+	 * 
+	 * @param megabytes the approximate amount of memory in megabytes
+	 */
+	public void setSortMemory(int megabytes) {
+		
+		if(megabytes < 1) {
+			throw new IllegalArgumentException("the sort memory must be at least 1 megabyte");
+		}
+		
+		this.sortMemory = (int) Math.min(Integer.MAX_VALUE, megabytes * 1024L * 1024L / SortStage.BYTES_PER_ELEMENT);
+	}
+	
+	/**
+	 * remove duplicate locations before they are written to the KML
+	 * 
+	 * @param removeDuplicates if true duplicate locations are removed
+	 */
+	public void setRemoveDuplicates(boolean removeDuplicates) {
+		this.removeDuplicates = removeDuplicates;
+	}
+	
+	/**
+	 * merge the locations from all of the input files by time, rather than reading one file after another
+	 * 
+	 * @param mergeByTime if true the locations in the input files are merged by time
+	 */
+	public void setMergeByTime(boolean mergeByTime) {
+		this.mergeByTime = mergeByTime;
+	}
+	
+	/**
+	 * only convert the locations inside a bounding box, the locations are found using the
+	 * spatial index of each input file, which is built the first time it is needed, and 
+	 * are read from the mapped file whatever the reader type
+	 * 
+	 * @param boundingBox the bounding box, or null to convert all of the locations
+	 */
+	public void setBoundingBox(BoundingBox boundingBox) {
+		this.boundingBox = boundingBox;
+	}
+	
+	/**
+	 * only convert the locations in a range of time, the locations are found using the
+	 * time index of each input file, which is built the first time it is needed and 
+	 * extended as the file grows, and are read from the mapped file whatever the reader type
+	 * 
+	 * @param from the earliest time in milliseconds since the epoch, or Long.MIN_VALUE
+	 * @param to the time after the latest time in milliseconds since the epoch, or Long.MAX_VALUE
+	 */
+	public void setTimeRange(long from, long to) {
+		
+		if(from > to) {
+			throw new IllegalArgumentException("the start of the time range must not be after the end");
+		}
+		
+		this.timeFrom = from;
+		this.timeTo = to;
+	}
+	
 	/**
 	 * undertake the task
 	 */
@@ -118,136 +290,217 @@ public class LocationsToKml {
 			throw new IllegalArgumentException("the taskType parameter is required");
 		}
 		
-		if(taskType.equals("binloctokml") == true) {
-			switch(fileType) {
-			case BINARY_FILE_TYPE:
-				processBinaryFileBasicOutput(inputFile, outputFile);
-				break;
-			default:
-				return;
-			}
-		} else if(taskType.equals("binloctokml2") == true) {
-			switch(fileType) {
-			case BINARY_FILE_TYPE:
-				processBinaryFileTimeOutput(inputFile, outputFile);
-				break;
-			default:
-				return;
-			}
-		} else {
+		if(inputFiles == null) {
+			throw new TaskException("the task has no input files");
+		}
+		
+		// check the task type before any output is created
+		if(getKmlOutputType(taskType) == 0 && getJsonOutputType(taskType) == 0) {
 			throw new TaskException("unrecognised task type parameter");
 		}
+		
+		switch(fileType) {
+		case BINARY_FILE_TYPE:
+			processBinaryFile(inputFiles, outputFile, taskType);
+			break;
+		default:
+			return;
+		}
 	}
 	
-	// private method to retrieve the GPS trace from the binary file
-	private ArrayList<GpsTraceElement> retrieveTraceFromBinaryFile(File inputFile) throws TaskException {
+	/*
+	 * stream the elements in a binary file into a new KML or JSON file
+	 */
+	private void processBinaryFile(List<File> inputFiles, File outputFile, String taskType) throws TaskException {
+		
+		if(verbose) {
+			if(inputFiles.size() == 1) {
+				System.out.println("processing a binary file");
+			} else {
+				System.out.println("processing " + inputFiles.size() + " binary files");
+			}
+		}
+		
+		// read the GPS trace and add it to the KML as it is read
+		TraceSource source;
 		
-		// declare helper variables
-		FileInputStream inputStream = null;
-		ArrayList<GpsTraceElement> trace = new ArrayList<GpsTraceElement>();
+		if(boundingBox == null && timeFrom == Long.MIN_VALUE && timeTo == Long.MAX_VALUE) {
+			source = LocationReaders.open(inputFiles, readerType, mergeByTime);
+		} else {
+			source = LocationReaders.open(inputFiles, boundingBox, timeFrom, timeTo, mergeByTime);
+		}
+		
+		Writer writer;
+		
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8");
+		} catch (IOException e) {
+			source.close();
+			throw new TaskException("unable to create the output file", e);
+		}
+		
+		boolean completed = false;
 		
-		// open the input stream
 		try {
-			inputStream = new FileInputStream(inputFile);
-		} catch(FileNotFoundException e) {
-			throw new TaskException("unable to open the input file", e);
+			convert(source, writer, taskType);
+			completed = true;
+		} finally {
+			// don't leave an incomplete file behind if something went wrong
+			if(completed == false) {
+				outputFile.delete();
+			}
 		}
+	}
+	
+	/**
+	 * convert the elements read from a source into KML or JSON, the source and the writer are 
+	 * closed once the conversion is complete, this allows locations to be converted from streams
+	 * such as network connections rather than files
+	 * 
+	 * @param source the source of the elements
+	 * @param writer the writer used to output the KML or JSON
+	 * @param taskType the type of task which determines the type and style of output
+	 * @return the number of elements converted
+	 * @throws TaskException if the conversion fails
+	 */
+	public long convert(TraceSource source, Writer writer, String taskType) throws TaskException {
 		
-		// process the messages in the file
-		Builder messageBuilder = LocationMessage.Message.newBuilder();
+		TraceSink sink;
 		
 		try {
-			while(messageBuilder.mergeDelimitedFrom(inputStream) == true) {
+			sink = createSink(writer, taskType);
+		} catch (TaskException e) {
+			try {
+				writer.close();
+			} catch (IOException ignored) {
 				
-				// add the coordinates to the list
-				trace.add(new GpsTraceElement(
-						messageBuilder.getLatitude(),
-						messageBuilder.getLongitude(),
-						messageBuilder.getTimestamp(),
-						messageBuilder.getTimeZone()
-						));
 			}
 			
-			// play nice and tidy up
-			inputStream.close();
-		} catch (IOException e) {
-			throw new TaskException("unable to read messages from the binary file", e);
+			source.close();
+			throw e;
 		}
 		
-		return trace;
+		return convert(source, sink);
 	}
-	 
-	/*
-	 * process a binary file
+	
+	/**
+	 * check if a task type produces JSON rather than KML
+	 * 
+	 * @param taskType the type of task
+	 * @return true if the task type produces JSON
 	 */
-	private void processBinaryFileBasicOutput(File inputFile, File outputFile) throws TaskException {
+	public static boolean isJsonTask(String taskType) {
+		return getJsonOutputType(taskType) != 0;
+	}
+	
+	// get the type of KML output for a task, or 0 if the task doesn't produce KML
+	private static int getKmlOutputType(String taskType) {
 		
-		if(verbose) {
-			System.out.println("processing a binary file");
+		if("binloctokml".equals(taskType)) {
+			return KmlSink.BASIC_OUTPUT;
+		} else if("binloctokml2".equals(taskType)) {
+			return KmlSink.TIME_SPAN_OUTPUT;
+		} else if("binloctokml3".equals(taskType)) {
+			return KmlSink.TRACK_OUTPUT;
 		}
 		
-		ArrayList<GpsTraceElement> trace = retrieveTraceFromBinaryFile(inputFile);
+		return 0;
+	}
+	
+	// get the type of JSON output for a task, or 0 if the task doesn't produce JSON
+	private static int getJsonOutputType(String taskType) {
 		
-		// build the KML
-		try {
-			
-			// start a new KML file
-			KmlBuilder builder = new KmlBuilder();
-			
-			// add any style info
-			builder.setStyle(style);
-			
-			// add the GPS trace
-			builder.addTrace(trace);
+		if("binloctojson".equals(taskType)) {
+			return JsonBuilder.LOCATION_OUTPUT;
+		} else if("binloctogeojson".equals(taskType)) {
+			return JsonBuilder.GEOJSON_OUTPUT;
+		}
+		
+		return 0;
+	}
+	
+	/*
+	 * create the sink that writes the output for a task type
+	 */
+	private TraceSink createSink(Writer writer, String taskType) throws TaskException {
+		
+		int kmlOutputType = getKmlOutputType(taskType);
+		int jsonOutputType = getJsonOutputType(taskType);
+		
+		if(kmlOutputType != 0) {
 			
-			// output the KML to a file
-			PrintWriter printWriter = new PrintWriter(new FileOutputStream(outputFile));
-			builder.outputToFile(printWriter);
+			try {
+				// start a new KML file
+				KmlBuilder builder = new KmlBuilder(writer);
+				
+				// add any style info
+				builder.setStyle(style);
+				
+				// round the coordinates if required
+				builder.setPrecision(precision);
+				
+				return new KmlSink(builder, kmlOutputType);
+				
+			} catch (BuildException e) {
+				throw new TaskException("unable to build the KML file", e);
+			}
 			
-			// close the output file
-			printWriter.close();
+		} else if(jsonOutputType != 0) {
 			
-		} catch (BuildException e) {
-			throw new TaskException("unable to build the KML file", e);
-		} catch (FileNotFoundException e) {
-			throw new TaskException("unable to build the KML file", e);
+			try {
+				// start a new JSON file
+				JsonBuilder builder = new JsonBuilder(writer, jsonOutputType);
+				
+				// round the coordinates if required
+				builder.setPrecision(precision);
+				
+				return new JsonSink(builder);
+				
+			} catch (BuildException e) {
+				throw new TaskException("unable to build the JSON file", e);
+			}
 		}
+		
+		throw new TaskException("unrecognised task type parameter");
 	}
 	
 	/*
-	 * process a binary file
+	 * convert the elements from a source into a sink
 	 */
-	private void processBinaryFileTimeOutput(File inputFile, File outputFile) throws TaskException {
+	private long convert(TraceSource source, TraceSink sink) throws TaskException {
 		
-		if(verbose) {
-			System.out.println("processing a binary file");
+
+		DedupStage dedup = null;
+		
+		if(removeDuplicates) {
+			dedup = new DedupStage(source);
+			source = dedup;
 		}
 		
-		ArrayList<GpsTraceElement> trace = retrieveTraceFromBinaryFile(inputFile);
+		// sorted elements are already grouped by device, simplifying 
+		// interleaved devices would leave nothing to remove
+		if(sortByTime) {
+			source = new SortStage(source, sortMemory);
+		} else if(splitByDevice || simplifyTolerance > 0) {
+			source = new DeviceSplitStage(source);
+		}
 		
-		// build the KML
-		try {
-			
-			// start a new KML file
-			KmlBuilder builder = new KmlBuilder();
-			
-			// add any style info
-			builder.setStyle(style);
-			
-			// add the GPS trace
-			builder.addTraceWithTime(trace);
-			
-			// output the KML to a file
-			PrintWriter printWriter = new PrintWriter(new FileOutputStream(outputFile));
-			builder.outputToFile(printWriter);
-			
-			// close the output file
-			printWriter.close();
+		if(simplifyTolerance > 0) {
+			source = new SimplifyStage(source, simplifyTolerance);
+		}
+		
+		Pipeline pipeline = new Pipeline(source, sink);
+		pipeline.setSplitByDevice(splitByDevice);
+		long count = pipeline.run();
+		
+		if(verbose) {
+			System.out.println("processed " + count + " locations");
 			
-		} catch (BuildException e) {
-			throw new TaskException("unable to build the KML file", e);
-		} catch (FileNotFoundException e) {
-			throw new TaskException("unable to build the KML file", e);
+			if(dedup != null) {
+				System.out.println("removed " + dedup.getDuplicateCount() + " duplicate locations");
+			}
 		}
+		
+		return count;
 	}
 }
@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.servalproject.maps.dataman.CoordinateFormatter;
+import org.servalproject.maps.dataman.Utils;
+import org.servalproject.maps.dataman.builders.BuildException;
+import org.servalproject.maps.dataman.builders.JsonBuilder;
+import org.servalproject.maps.dataman.builders.KmlBuilder;
+import org.servalproject.maps.dataman.pipeline.PoiSource;
+import org.servalproject.maps.dataman.readers.BinaryPoiReader;
+import org.servalproject.maps.dataman.readers.CategoryPartitioner;
+import org.servalproject.maps.dataman.readers.SpatialReader;
+import org.servalproject.maps.dataman.types.BoundingBox;
+import org.servalproject.maps.dataman.types.PoiElement;
+import org.servalproject.maps.protobuf.BinaryFileContract;
+
+/**
+ * methods to process point of interest data and output KML or JSON data
+ * 
+ * each point of interest is written as soon as it is read so the memory
+ * used does not depend on the number of points of interest
+ * 
+ * the points of interest can also be grouped by category, in which case 
+ * they are first split into a temporary file for each category and then
+ * each category is converted in parallel
+ */
+public class PointsOfInterestToKml {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * write all of the points of interest in the order they are read
+	 */
+	public static final int NO_CATEGORIES = 0;
+	
+	/**
+	 * write the points of interest in each category to a separate KML Folder
+	 */
+	public static final int CATEGORY_FOLDERS = 1;
+	
+	/**
+	 * write the points of interest in each category to a separate file, named
+	 * after the output file with the category added
+	 */
+	public static final int CATEGORY_FILES = 2;
+	
+	/*
+	 * private class level variables
+	 */
+	private boolean    verbose = false;
+	private List<File> inputFiles;
+	private File       outputFile;
+	private int        precision = CoordinateFormatter.FULL_PRECISION;
+	private int        categoryOutput = NO_CATEGORIES;
+	private int        parallelism = Runtime.getRuntime().availableProcessors();
+	private BoundingBox boundingBox = null;
+	
+	/**
+	 * convert the points of interest stored in a list of files into a single KML or JSON file
+	 * 
+	 * @param inputFiles the list of input files containing the data
+	 * @param outputFile the output file to contain the KML or JSON data
+	 * @param verbose indicates if verbose output is required
+	 */
+	public PointsOfInterestToKml(List<File> inputFiles, File outputFile, boolean verbose) {
+		
+		// check the parameters
+		if(inputFiles == null || inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("the input file parameter is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("the output file parameter is required");
+		}
+		
+		for(File inputFile : inputFiles) {
+			try {
+				if(Utils.isFileAccessible(inputFile.getCanonicalPath()) == false) {
+					throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed");
+				}
+			} catch(IOException e) {
+				throw new IllegalArgumentException("the input file '" + inputFile.getPath() + "' cannot be accessed", e);
+			}
+			
+			if(inputFile.getName().endsWith(BinaryFileContract.POI_EXT) == false) {
+				throw new IllegalArgumentException("a binary file is required to end with '" + BinaryFileContract.POI_EXT + "'");
+			}
+		}
+		
+		try {
+			if(Utils.isFileAccessible(outputFile.getCanonicalPath()) == true) {
+				throw new IllegalArgumentException("the output file already exists");
+			}
+		}catch(IOException e) {
+			throw new IllegalArgumentException("the output file already exists", e);
+		}
+		
+		this.inputFiles = inputFiles;
+		this.outputFile = outputFile;
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * set the number of decimal places used for coordinates
+	 * 
+	 * @param precision the number of decimal places, or CoordinateFormatter.FULL_PRECISION
+	 */
+	public void setPrecision(int precision) {
+		
+		if(precision != CoordinateFormatter.FULL_PRECISION && (precision < 0 || precision > CoordinateFormatter.MAX_PRECISION)) {
+			throw new IllegalArgumentException("the precision must be between 0 and " + CoordinateFormatter.MAX_PRECISION);
+		}
+		
+		this.precision = precision;
+	}
+	
+	/**
+	 * set how the points of interest in each category are written
+	 * 
+	 * @param categoryOutput one of NO_CATEGORIES, CATEGORY_FOLDERS or CATEGORY_FILES
+	 */
+	public void setCategoryOutput(int categoryOutput) {
+		
+		switch(categoryOutput) {
+		case NO_CATEGORIES:
+		case CATEGORY_FOLDERS:
+		case CATEGORY_FILES:
+			break;
+		default:
+			throw new IllegalArgumentException("the provided category output is invalid");
+		}
+		
+		this.categoryOutput = categoryOutput;
+	}
+	
+	/**
+	 * set the number of categories that are converted at the same time
+	 * 
+	 * @param parallelism the number of categories converted at the same time
+	 */
+	public void setParallelism(int parallelism) {
+		
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("the parallelism must be at least 1");
+		}
+		
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * only convert the points of interest inside a bounding box, the points of interest
+	 * are found using the spatial index of each input file, which is built the first 
+	 * time it is needed
+	 * 
+	 * @param boundingBox the bounding box, or null to convert all of the points of interest
+	 */
+	public void setBoundingBox(BoundingBox boundingBox) {
+		this.boundingBox = boundingBox;
+	}
+	
+	/**
+	 * check if a task type converts points of interest
+	 * 
+	 * @param taskType the type of task
+	 * @return true if the task type converts points of interest
+	 */
+	public static boolean isPoiTask(String taskType) {
+		return "binpoitokml".equals(taskType) || "binpoitojson".equals(taskType);
+	}
+	
+	/**
+	 * undertake the task
+	 */
+	public void undertakeTask(String taskType) throws TaskException {
+		
+		// check on the parameters
+		if(Utils.isEmpty(taskType) == true) {
+			throw new IllegalArgumentException("the taskType parameter is required");
+		}
+		
+		// check the task type before any output is created
+		if(isPoiTask(taskType) == false) {
+			throw new TaskException("unrecognised task type parameter");
+		}
+		
+		if(categoryOutput == CATEGORY_FOLDERS && "binpoitokml".equals(taskType) == false) {
+			throw new TaskException("only KML output can contain a folder for each category");
+		}
+		
+		if(verbose) {
+			if(inputFiles.size() == 1) {
+				System.out.println("processing a binary file");
+			} else {
+				System.out.println("processing " + inputFiles.size() + " binary files");
+			}
+		}
+		
+		if(categoryOutput != NO_CATEGORIES) {
+			processByCategory(taskType);
+			return;
+		}
+		
+		PoiSource source;
+		
+		if(boundingBox == null) {
+			source = new BinaryPoiReader(inputFiles);
+		} else {
+			source = new SpatialReader(inputFiles, boundingBox);
+		}
+		
+		Writer writer;
+		
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8");
+		} catch (IOException e) {
+			source.close();
+			throw new TaskException("unable to create the output file", e);
+		}
+		
+		boolean completed = false;
+		long count;
+		
+		try {
+			count = convert(source, writer, taskType);
+			completed = true;
+		} finally {
+			// don't leave an incomplete file behind if something went wrong
+			if(completed == false) {
+				outputFile.delete();
+			}
+		}
+		
+		if(verbose) {
+			System.out.println("processed " + count + " points of interest");
+		}
+	}
+	
+	/**
+	 * convert the points of interest read from a source into KML or JSON, the source 
+	 * and the writer are closed once the conversion is complete
+	 * 
+	 * @param source the source of the points of interest
+	 * @param writer the writer used to output the KML or JSON
+	 * @param taskType the type of task which determines the type of output
+	 * @return the number of points of interest converted
+	 * @throws TaskException if the conversion fails
+	 */
+	public long convert(PoiSource source, Writer writer, String taskType) throws TaskException {
+		
+		KmlBuilder kmlBuilder = null;
+		JsonBuilder jsonBuilder = null;
+		
+		try {
+			if("binpoitokml".equals(taskType)) {
+				kmlBuilder = new KmlBuilder(writer);
+				kmlBuilder.setPrecision(precision);
+			} else if("binpoitojson".equals(taskType)) {
+				jsonBuilder = new JsonBuilder(writer, JsonBuilder.POI_OUTPUT);
+				jsonBuilder.setPrecision(precision);
+			}
+		} catch (BuildException e) {
+			closeQuietly(source, writer);
+			throw new TaskException("unable to build the output file", e);
+		}
+		
+		if(kmlBuilder == null && jsonBuilder == null) {
+			closeQuietly(source, writer);
+			throw new TaskException("unrecognised task type parameter");
+		}
+		
+		return write(source, kmlBuilder, jsonBuilder);
+	}
+	
+	/*
+	 * write the points of interest from a source to one of the builders, closing the 
+	 * source and the builder, or aborting the builder if anything goes wrong so that
+	 * the end of the output isn't written
+	 */
+	private static long write(PoiSource source, KmlBuilder kmlBuilder, JsonBuilder jsonBuilder) throws TaskException {
+		
+		PoiElement poi = new PoiElement();
+		long count = 0;
+		
+		try {
+			while(source.next(poi)) {
+				
+				if(kmlBuilder != null) {
+					kmlBuilder.addPointOfInterest(poi);
+				} else {
+					jsonBuilder.addPointOfInterest(poi);
+				}
+				
+				count++;
+			}
+			
+			source.close();
+			
+			if(kmlBuilder != null) {
+				kmlBuilder.close();
+			} else {
+				jsonBuilder.close();
+			}
+			
+		} catch (BuildException e) {
+			abortQuietly(source, kmlBuilder, jsonBuilder);
+			throw new TaskException("unable to build the output file", e);
+		} catch (TaskException e) {
+			abortQuietly(source, kmlBuilder, jsonBuilder);
+			throw e;
+		}
+		
+		return count;
+	}
+	
+	/*
+	 * split the points of interest by category and convert each category in parallel
+	 */
+	private void processByCategory(String taskType) throws TaskException {
+		
+		CategoryPartitioner partitioner = new CategoryPartitioner();
+		partitioner.setBoundingBox(boundingBox);
+		TreeMap<Long, File> partitions = partitioner.partition(inputFiles);
+		
+		if(verbose) {
+			System.out.println("split " + partitioner.getCount() + " points of interest into " + partitions.size() + " categories");
+		}
+		
+		TreeMap<Long, File> fragments = new TreeMap<Long, File>();
+		
+		try {
+			// work out where each category is written
+			for(Long category : partitions.keySet()) {
+				
+				File target;
+				
+				if(categoryOutput == CATEGORY_FOLDERS) {
+					try {
+						target = File.createTempFile("folder", ".kml");
+					} catch (IOException e) {
+						throw new TaskException("unable to create a temporary file", e);
+					}
+				} else {
+					target = getCategoryFile(category);
+					
+					if(target.exists()) {
+						throw new TaskException("the output file '" + target.getPath() + "' already exists");
+					}
+				}
+				
+				fragments.put(category, target);
+			}
+			
+			convertCategories(partitions, fragments, taskType);
+			
+			// add the folders to the output file in order of category
+			if(categoryOutput == CATEGORY_FOLDERS) {
+				concatenateFolders(fragments);
+			}
+			
+		} finally {
+			partitioner.delete();
+			
+			if(categoryOutput == CATEGORY_FOLDERS) {
+				for(File fragment : fragments.values()) {
+					fragment.delete();
+				}
+			}
+		}
+	}
+	
+	/*
+	 * convert the file for each category at the same time, largest first so that
+	 * a large category that is started last doesn't hold up the rest of the task
+	 */
+	private void convertCategories(TreeMap<Long, File> partitions, final TreeMap<Long, File> targets, final String taskType) throws TaskException {
+		
+		ArrayList<Map.Entry<Long, File>> entries = new ArrayList<Map.Entry<Long, File>>(partitions.entrySet());
+		
+		Collections.sort(entries, new Comparator<Map.Entry<Long, File>>() {
+			@Override
+			public int compare(Map.Entry<Long, File> a, Map.Entry<Long, File> b) {
+				return Long.compare(b.getValue().length(), a.getValue().length());
+			}
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, entries.size())), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "category-converter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+		
+		try {
+			for(Map.Entry<Long, File> entry : entries) {
+				
+				final long category = entry.getKey();
+				final File partition = entry.getValue();
+				
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return convertCategory(category, partition, targets.get(category), taskType);
+					}
+				}));
+			}
+			
+			long count = 0;
+			
+			for(Future<Long> result : results) {
+				try {
+					count += result.get();
+				} catch (ExecutionException e) {
+					
+					// a file that was only partly written is no use
+					if(categoryOutput == CATEGORY_FILES) {
+						for(File target : targets.values()) {
+							target.delete();
+						}
+					}
+					
+					if(e.getCause() instanceof TaskException) {
+						throw (TaskException) e.getCause();
+					}
+					
+					throw new TaskException("unable to convert the points of interest", e.getCause());
+				}
+			}
+			
+			if(verbose) {
+				System.out.println("processed " + count + " points of interest");
+			}
+			
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while converting the points of interest", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/*
+	 * convert the points of interest in a category to a KML Folder or a file of their own
+	 */
+	private long convertCategory(long category, File partition, File target, String taskType) throws TaskException {
+		
+		PoiSource source = new BinaryPoiReader(partition);
+		Writer writer;
+		
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(target), "UTF-8");
+		} catch (IOException e) {
+			source.close();
+			throw new TaskException("unable to create the output file '" + target.getPath() + "'", e);
+		}
+		
+		if(categoryOutput == CATEGORY_FILES) {
+			return convert(source, writer, taskType);
+		}
+		
+		KmlBuilder builder;
+		
+		try {
+			builder = KmlBuilder.createFolder(writer, "Category " + category);
+			builder.setPrecision(precision);
+		} catch (BuildException e) {
+			closeQuietly(source, writer);
+			throw new TaskException("unable to build the output file", e);
+		}
+		
+		return write(source, builder, null);
+	}
+	
+	/*
+	 * write the output file with the start and end of the KML document around the 
+	 * folders, which are copied in directly as they are already encoded
+	 */
+	private void concatenateFolders(TreeMap<Long, File> folders) throws TaskException {
+		
+		FileOutputStream output;
+		
+		try {
+			output = new FileOutputStream(outputFile);
+		} catch (IOException e) {
+			throw new TaskException("unable to create the output file", e);
+		}
+		
+		boolean completed = false;
+		
+		try {
+			KmlBuilder builder = new KmlBuilder(new OutputStreamWriter(output, "UTF-8"));
+			builder.flush();
+			
+			FileChannel target = output.getChannel();
+			
+			for(File folder : folders.values()) {
+				
+				FileChannel source = new FileInputStream(folder).getChannel();
+				
+				try {
+					long position = 0;
+					long size = source.size();
+					
+					while(position < size) {
+						position += source.transferTo(position, size - position, target);
+					}
+				} finally {
+					source.close();
+				}
+			}
+			
+			builder.close();
+			completed = true;
+			
+		} catch (BuildException e) {
+			throw new TaskException("unable to build the output file", e);
+		} catch (IOException e) {
+			throw new TaskException("unable to build the output file", e);
+		} finally {
+			try {
+				output.close();
+			} catch (IOException e) {
+				
+			}
+			
+			// don't leave an incomplete file behind if something went wrong
+			if(completed == false) {
+				outputFile.delete();
+			}
+		}
+	}
+	
+	// get the file for a category, named after the output file with the category added
+	private File getCategoryFile(long category) {
+		
+		String name = outputFile.getName();
+		int extension = name.lastIndexOf('.');
+		
+		if(extension > 0) {
+			name = name.substring(0, extension) + "-" + category + name.substring(extension);
+		} else {
+			name = name + "-" + category;
+		}
+		
+		return new File(outputFile.getAbsoluteFile().getParentFile(), name);
+	}
+	
+	// release the resources used by a conversion that failed without hiding the original exception
+	private static void closeQuietly(PoiSource source, Writer writer) {
+		
+		try {
+			source.close();
+		} catch (TaskException e) {
+			
+		}
+		
+		try {
+			writer.close();
+		} catch (IOException e) {
+			
+		}
+	}
+	
+	// release the resources used by a conversion that failed part way through, without 
+	// writing the end of the output or hiding the original exception
+	private static void abortQuietly(PoiSource source, KmlBuilder kmlBuilder, JsonBuilder jsonBuilder) {
+		
+		try {
+			source.close();
+		} catch (TaskException e) {
+			
+		}
+		
+		try {
+			if(kmlBuilder != null) {
+				kmlBuilder.abort();
+			} else {
+				jsonBuilder.abort();
+			}
+		} catch (BuildException e) {
+			
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.types;
+
+/**
+ * a utility class used to represent an area bounded by lines of latitude and longitude
+ * 
+ * a box with a west edge greater than its east edge crosses the 180th meridian
+ */
+public class BoundingBox {
+	
+	/*
+	 * class level private variables
+	 */
+	private double west;
+	private double south;
+	private double east;
+	private double north;
+	
+	/**
+	 * create a new bounding box
+	 * 
+	 * @param west the longitude of the west edge
+	 * @param south the latitude of the south edge
+	 * @param east the longitude of the east edge
+	 * @param north the latitude of the north edge
+	 */
+	public BoundingBox(double west, double south, double east, double north) {
+		
+		if(isLongitude(west) == false || isLongitude(east) == false) {
+			throw new IllegalArgumentException("the longitude of the edges must be between -180 and 180");
+		}
+		
+		if(isLatitude(south) == false || isLatitude(north) == false) {
+			throw new IllegalArgumentException("the latitude of the edges must be between -90 and 90");
+		}
+		
+		if(south > north) {
+			throw new IllegalArgumentException("the south edge must not be north of the north edge");
+		}
+		
+		this.west = west;
+		this.south = south;
+		this.east = east;
+		this.north = north;
+	}
+	
+	/**
+	 * parse a bounding box from a list of the edges in the order west,south,east,north
+	 * 
+	 * @param edges the comma separated list of edges
+	 * @return the bounding box
+	 */
+	public static BoundingBox parse(String edges) {
+		
+		if(edges == null) {
+			throw new IllegalArgumentException("the edges parameter is required");
+		}
+		
+		String[] values = edges.split(",");
+		
+		if(values.length != 4) {
+			throw new IllegalArgumentException("the bounding box must be four numbers in the order west,south,east,north");
+		}
+		
+		double[] numbers = new double[4];
+		
+		for(int i = 0; i < values.length; i++) {
+			try {
+				numbers[i] = Double.parseDouble(values[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("the bounding box must be four numbers in the order west,south,east,north");
+			}
+		}
+		
+		return new BoundingBox(numbers[0], numbers[1], numbers[2], numbers[3]);
+	}
+	
+	/**
+	 * check if a location is inside the box, locations on the edges are inside
+	 * 
+	 * @param latitude the latitude of the location
+	 * @param longitude the longitude of the location
+	 * @return true if the location is inside the box
+	 */
+	public boolean contains(double latitude, double longitude) {
+		
+		if(latitude < south || latitude > north || Double.isNaN(latitude)) {
+			return false;
+		}
+		
+		if(crossesMeridian()) {
+			return longitude >= west || longitude <= east;
+		} else {
+			return longitude >= west && longitude <= east;
+		}
+	}
+	
+	/**
+	 * check if the box crosses the 180th meridian
+	 * 
+	 * @return true if the west edge is greater than the east edge
+	 */
+	public boolean crossesMeridian() {
+		return west > east;
+	}
+
+	public double getWest() {
+		return west;
+	}
+
+	public double getSouth() {
+		return south;
+	}
+
+	public double getEast() {
+		return east;
+	}
+
+	public double getNorth() {
+		return north;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return west + "," + south + "," + east + "," + north;
+	}
+	
+	// check that a value is a valid longitude
+	private static boolean isLongitude(double value) {
+		return value >= -180 && value <= 180;
+	}
+	
+	// check that a value is a valid latitude
+	private static boolean isLatitude(double value) {
+		return value >= -90 && value <= 90;
+	}
+}
@@ -31,6 +31,8 @@ public class GpsTraceElement {
 	private double longitude;
 	private long   timestamp;
 	private String timezone;
+	private String phoneNumber;
+	private String subscriberId;
 	
 	/**
 	 * construct a new GpsTraceElement object
@@ -60,6 +62,40 @@ public class GpsTraceElement {
 		this(latitude, longitude, timestamp, null);
 	}
 
+	public String getPhoneNumber() {
+		return phoneNumber;
+	}
+
+	public void setPhoneNumber(String phoneNumber) {
+		this.phoneNumber = phoneNumber;
+	}
+
+	public String getSubscriberId() {
+		return subscriberId;
+	}
+
+	public void setSubscriberId(String subscriberId) {
+		this.subscriberId = subscriberId;
+	}
+	
+	/**
+	 * get an identifier for the device that recorded this coordinate
+	 * 
+	 * @return the subscriber id if available, otherwise the phone number, otherwise an empty string
+	 */
+	public String getDeviceId() {
+		
+		if(subscriberId != null && subscriberId.length() > 0) {
+			return subscriberId;
+		}
+		
+		if(phoneNumber != null) {
+			return phoneNumber;
+		}
+		
+		return "";
+	}
+
 	public String getTimezone() {
 		return timezone;
 	}
@@ -92,4 +128,18 @@ public class GpsTraceElement {
 		this.timestamp = timestamp;
 	}
 	
+	/**
+	 * copy all of the values of another element into this element
+	 * 
+	 * @param element the element to copy
+	 */
+	public void copyFrom(GpsTraceElement element) {
+		latitude = element.latitude;
+		longitude = element.longitude;
+		timestamp = element.timestamp;
+		timezone = element.timezone;
+		phoneNumber = element.phoneNumber;
+		subscriberId = element.subscriberId;
+	}
+	
 }
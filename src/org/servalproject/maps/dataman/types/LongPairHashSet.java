@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.types;
+
+import java.util.Arrays;
+
+/**
+ * a set of pairs of primitive long values using open addressing with linear probing,
+ * the two values of a pair are kept in parallel arrays so each pair uses between
+ * 21 and 43 bytes of memory rather than the many more used by objects in a HashSet
+ * 
+ * the pairs are usually two independent hashes of a larger key, the first value 
+ * is used to find the slot of a pair
+ */
+public class LongPairHashSet {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the largest number of slots in the set, the set holds at most one less pair than this
+	 */
+	public static final int MAX_CAPACITY = 1 << 30;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int   DEFAULT_CAPACITY = 1024;
+	private static final float LOAD_FACTOR = 0.75f;
+	
+	/*
+	 * private class level variables
+	 */
+	
+	// a pair of zeros marks an empty slot so it is tracked separately
+	private long[]  firsts;
+	private long[]  seconds;
+	private int     mask;
+	private long    size = 0;
+	private long    resizeAt;
+	private boolean hasZero = false;
+	
+	/**
+	 * create a new empty set
+	 */
+	public LongPairHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * create a new empty set
+	 * 
+	 * @param expectedSize the number of pairs the set is expected to hold
+	 */
+	public LongPairHashSet(long expectedSize) {
+		
+		if(expectedSize < 0) {
+			throw new IllegalArgumentException("the expectedSize parameter must be >= 0");
+		}
+		
+		int capacity = 16;
+		
+		while(capacity < expectedSize / LOAD_FACTOR && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		
+		allocate(capacity);
+	}
+	
+	/**
+	 * add a pair to the set
+	 * 
+	 * @param first the first value of the pair
+	 * @param second the second value of the pair
+	 * @return true if the pair was added, false if it was already in the set
+	 * @throws IllegalStateException if the set is full
+	 */
+	public boolean add(long first, long second) {
+		
+		if(first == 0 && second == 0) {
+			if(hasZero) {
+				return false;
+			}
+			
+			hasZero = true;
+			size++;
+			return true;
+		}
+		
+		int slot = slot(first);
+		
+		while(firsts[slot] != 0 || seconds[slot] != 0) {
+			if(firsts[slot] == first && seconds[slot] == second) {
+				return false;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		if(size >= resizeAt) {
+			grow();
+			
+			// the slot moves when the set grows
+			slot = slot(first);
+			
+			while(firsts[slot] != 0 || seconds[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+		}
+		
+		firsts[slot] = first;
+		seconds[slot] = second;
+		size++;
+		
+		return true;
+	}
+	
+	/**
+	 * check if a pair is in the set
+	 * 
+	 * @param first the first value of the pair
+	 * @param second the second value of the pair
+	 * @return true if the pair is in the set
+	 */
+	public boolean contains(long first, long second) {
+		
+		if(first == 0 && second == 0) {
+			return hasZero;
+		}
+		
+		int slot = slot(first);
+		
+		while(firsts[slot] != 0 || seconds[slot] != 0) {
+			if(firsts[slot] == first && seconds[slot] == second) {
+				return true;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * get the number of pairs in the set
+	 * 
+	 * @return the number of pairs in the set
+	 */
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * remove all of the pairs from the set
+	 */
+	public void clear() {
+		Arrays.fill(firsts, 0);
+		Arrays.fill(seconds, 0);
+		size = 0;
+		hasZero = false;
+	}
+	
+	// find the first slot for a pair, mixing the bits in case the values are not well distributed
+	private int slot(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		return (int) value & mask;
+	}
+	
+	private void allocate(int capacity) {
+		firsts = new long[capacity];
+		seconds = new long[capacity];
+		mask = capacity - 1;
+		resizeAt = Math.min((long) (capacity * (double) LOAD_FACTOR), capacity - 1L);
+	}
+	
+	// double the capacity and reinsert the existing pairs
+	private void grow() {
+		
+		// the empty slots that are left keep the runs of full slots finite
+		if(firsts.length == MAX_CAPACITY) {
+			
+			if(size >= MAX_CAPACITY - 1L) {
+				throw new IllegalStateException("the set is full");
+			}
+			
+			resizeAt = MAX_CAPACITY - 1L;
+			return;
+		}
+		
+		long[] oldFirsts = firsts;
+		long[] oldSeconds = seconds;
+		allocate(oldFirsts.length * 2);
+		
+		for(int i = 0; i < oldFirsts.length; i++) {
+			if(oldFirsts[i] != 0 || oldSeconds[i] != 0) {
+				int slot = slot(oldFirsts[i]);
+				
+				while(firsts[slot] != 0 || seconds[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				
+				firsts[slot] = oldFirsts[i];
+				seconds[slot] = oldSeconds[i];
+			}
+		}
+	}
+}
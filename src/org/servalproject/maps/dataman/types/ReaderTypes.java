@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.types;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * a utility class to manage the various ways of reading binary files
+ */
+public class ReaderTypes {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * read the file through a buffered stream
+	 */
+	public static final String STREAM = "stream";
+	
+	/**
+	 * read the file by mapping it into memory
+	 */
+	public static final String MAPPED = "mapped";
+	
+	/**
+	 * read the file by decoding chunks of it in parallel
+	 */
+	public static final String PARALLEL = "parallel";
+	
+	/**
+	 * the reader type used when none is specified
+	 */
+	public static final String DEFAULT = STREAM;
+
+	/**
+	 * return the list of reader types that can be used
+	 * 
+	 * @return a hashmap where the key is the reader type, and the value is the reader description
+	 */
+	public static HashMap<String, String> getReaderTypes() {
+
+		HashMap<String, String> readerTypes = new HashMap<String, String>();
+		
+		readerTypes.put(STREAM, "Read the binary file through a buffered stream");
+		readerTypes.put(MAPPED, "Map the binary file into memory, suitable for very large files");
+		readerTypes.put(PARALLEL, "Decode chunks of the binary file in parallel using all of the available processors");
+		
+		return readerTypes;
+	}
+	
+	/**
+	 * return the list reader types as a plain text list
+	 * 
+	 * @return the plain text list of reader types
+	 */
+	public static String getReaderList() {
+		
+		HashMap<String, String> readerTypes = getReaderTypes();
+		
+		StringBuilder list = new StringBuilder("\n");
+		
+		Set<String> keys = readerTypes.keySet();
+		
+		for(String key : keys) {
+			
+			list.append("  - " + key + ": " + readerTypes.get(key) + "\n");
+		}
+		
+		return list.toString();
+	}
+}
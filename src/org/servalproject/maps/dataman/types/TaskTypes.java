@@ -38,6 +38,13 @@ public class TaskTypes {
 		
 		taskTypes.put("binloctokml", "Convert a binary location file to a KML file");
 		taskTypes.put("binloctokml2", "Convert a binary location file to a KML file including time span elements");
+		taskTypes.put("binloctokml3", "Convert a binary location file to a KML file containing a gx:Track with a time for each location");
+		taskTypes.put("binloctojson", "Convert a binary location file to a JSON file containing every field of each location");
+		taskTypes.put("binloctogeojson", "Convert a binary location file to a GeoJSON file containing a LineString feature for each trace");
+		taskTypes.put("binpoitokml", "Convert a binary POI file to a KML file containing a Placemark for each point of interest");
+		taskTypes.put("binpoitojson", "Convert a binary POI file to a JSON file containing every field of each point of interest");
+		taskTypes.put("binloctoarchive", "Convert a binary location file to a compact location archive");
+		taskTypes.put("archivetobinloc", "Convert a location archive back to a binary location file");
 		
 		return taskTypes;
 	}
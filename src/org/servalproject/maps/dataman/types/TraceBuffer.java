@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Data Manipulator Software
+ *
+ * Serval Maps Data Manipulator Software is free software; you can 
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.dataman.types;
+
+import java.util.HashMap;
+
+/**
+ * a compact in memory store of GPS trace elements
+ * 
+ * the values of the elements are stored in primitive arrays rather than
+ * as a list of objects, and each time zone, phone number and subscriber id
+ * is stored once in a table with the elements referring to it by index
+ */
+public class TraceBuffer {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int DEFAULT_CAPACITY = 1024;
+	
+	/*
+	 * private class level variables
+	 */
+	private double[] latitudes;
+	private double[] longitudes;
+	private long[]   timestamps;
+	private int[]    timezones;
+	private int[]    phoneNumbers;
+	private int[]    subscriberIds;
+	private int      size = 0;
+	
+	private String[]                 stringTable = new String[8];
+	private int                      stringCount = 0;
+	private HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+	
+	/**
+	 * create a new empty buffer
+	 */
+	public TraceBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * create a new empty buffer
+	 * 
+	 * @param capacity the number of elements that can be stored before the buffer grows
+	 */
+	public TraceBuffer(int capacity) {
+		
+		if(capacity < 1) {
+			throw new IllegalArgumentException("the capacity parameter must be > 0");
+		}
+		
+		latitudes  = new double[capacity];
+		longitudes = new double[capacity];
+		timestamps = new long[capacity];
+		timezones  = new int[capacity];
+		phoneNumbers  = new int[capacity];
+		subscriberIds = new int[capacity];
+	}
+	
+	/**
+	 * add an element to the end of the buffer
+	 * 
+	 * @param element the element to add, its values are copied
+	 */
+	public void add(GpsTraceElement element) {
+		
+		if(size == latitudes.length) {
+			grow();
+		}
+		
+		latitudes[size]     = element.getLatitude();
+		longitudes[size]    = element.getLongitude();
+		timestamps[size]    = element.getTimestamp();
+		timezones[size]     = indexOfString(element.getTimezone());
+		phoneNumbers[size]  = indexOfString(element.getPhoneNumber());
+		subscriberIds[size] = indexOfString(element.getSubscriberId());
+		size++;
+	}
+	
+	/**
+	 * add an element to the end of the buffer
+	 * 
+	 * @param latitude the latitude coordinate in decimal notation
+	 * @param longitude the longitude coordinate in decimal notation
+	 * @param timestamp the timestamp of when this coordinate was recorded 
+	 * @param timezone  the timezone of when this coordinate was recorded
+	 */
+	public void add(double latitude, double longitude, long timestamp, String timezone) {
+		
+		if(size == latitudes.length) {
+			grow();
+		}
+		
+		latitudes[size]     = latitude;
+		longitudes[size]    = longitude;
+		timestamps[size]    = timestamp;
+		timezones[size]     = indexOfString(timezone);
+		phoneNumbers[size]  = indexOfString(null);
+		subscriberIds[size] = indexOfString(null);
+		size++;
+	}
+	
+	/**
+	 * copy the values of an element in the buffer into the supplied element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @param element the element to populate
+	 */
+	public void get(int index, GpsTraceElement element) {
+		
+		checkIndex(index);
+		
+		element.setLatitude(latitudes[index]);
+		element.setLongitude(longitudes[index]);
+		element.setTimestamp(timestamps[index]);
+		element.setTimezone(stringTable[timezones[index]]);
+		element.setPhoneNumber(stringTable[phoneNumbers[index]]);
+		element.setSubscriberId(stringTable[subscriberIds[index]]);
+	}
+	
+	/**
+	 * get the latitude of an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the latitude in degrees
+	 */
+	public double getLatitude(int index) {
+		checkIndex(index);
+		return latitudes[index];
+	}
+	
+	/**
+	 * get the longitude of an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the longitude in degrees
+	 */
+	public double getLongitude(int index) {
+		checkIndex(index);
+		return longitudes[index];
+	}
+	
+	/**
+	 * get the time of an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getTimestamp(int index) {
+		checkIndex(index);
+		return timestamps[index];
+	}
+	
+	/**
+	 * get the time zone of an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the id of the time zone
+	 */
+	public String getTimezone(int index) {
+		checkIndex(index);
+		return stringTable[timezones[index]];
+	}
+	
+	/**
+	 * get the phone number of the device that recorded an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the phone number
+	 */
+	public String getPhoneNumber(int index) {
+		checkIndex(index);
+		return stringTable[phoneNumbers[index]];
+	}
+	
+	/**
+	 * get the subscriber id of the device that recorded an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the subscriber id
+	 */
+	public String getSubscriberId(int index) {
+		checkIndex(index);
+		return stringTable[subscriberIds[index]];
+	}
+	
+	/**
+	 * get an identifier for the device that recorded an element
+	 * 
+	 * @param index the index of the element in the buffer
+	 * @return the subscriber id if available, otherwise the phone number, otherwise an empty string
+	 * @see GpsTraceElement#getDeviceId()
+	 */
+	public String getDeviceId(int index) {
+		
+		String subscriberId = getSubscriberId(index);
+		
+		if(subscriberId != null && subscriberId.length() > 0) {
+			return subscriberId;
+		}
+		
+		String phoneNumber = getPhoneNumber(index);
+		
+		if(phoneNumber != null) {
+			return phoneNumber;
+		}
+		
+		return "";
+	}
+	
+	/**
+	 * get the number of elements in the buffer
+	 * 
+	 * @return the number of elements in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * remove all of the elements from the buffer, keeping the storage
+	 * that has already been allocated
+	 */
+	public void clear() {
+		size = 0;
+	}
+	
+	// get the index of a string in the table, adding it if required
+	private int indexOfString(String string) {
+		
+		Integer index = stringIndexes.get(string);
+		
+		if(index == null) {
+			
+			if(stringCount == stringTable.length) {
+				String[] grown = new String[stringTable.length * 2];
+				System.arraycopy(stringTable, 0, grown, 0, stringTable.length);
+				stringTable = grown;
+			}
+			
+			index = Integer.valueOf(stringCount);
+			stringTable[stringCount++] = string;
+			stringIndexes.put(string, index);
+		}
+		
+		return index.intValue();
+	}
+	
+	private void grow() {
+		
+		int capacity = latitudes.length * 2;
+		
+		double[] newLatitudes = new double[capacity];
+		System.arraycopy(latitudes, 0, newLatitudes, 0, size);
+		latitudes = newLatitudes;
+		
+		double[] newLongitudes = new double[capacity];
+		System.arraycopy(longitudes, 0, newLongitudes, 0, size);
+		longitudes = newLongitudes;
+		
+		long[] newTimestamps = new long[capacity];
+		System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+		timestamps = newTimestamps;
+		
+		int[] newTimezones = new int[capacity];
+		System.arraycopy(timezones, 0, newTimezones, 0, size);
+		timezones = newTimezones;
+		
+		int[] newPhoneNumbers = new int[capacity];
+		System.arraycopy(phoneNumbers, 0, newPhoneNumbers, 0, size);
+		phoneNumbers = newPhoneNumbers;
+		
+		int[] newSubscriberIds = new int[capacity];
+		System.arraycopy(subscriberIds, 0, newSubscriberIds, 0, size);
+		subscriberIds = newSubscriberIds;
+	}
+	
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " is outside of the buffer of size " + size);
+		}
+	}
+}
@@ -33,5 +33,10 @@ public class BinaryFileContract {
 	 * the file extension for the POI binary file
 	 */
 	public static final String POI_EXT = ".smapp";
+	
+	/**
+	 * the file extension for the location archive file
+	 */
+	public static final String ARCHIVE_EXT = ".smapa";
 
 }